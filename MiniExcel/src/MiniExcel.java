@@ -1,37 +1,224 @@
 import javax.swing.*;
 import javax.swing.table.*;
+import javax.swing.event.TableModelEvent;
 import java.awt.*;
+import java.awt.datatransfer.*;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import java.awt.event.*;
 import java.io.*;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
 import java.util.regex.*;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import javax.xml.stream.*;
 
 public class MiniExcel extends JFrame {
     private JTable table;
     private CustomTableModel model;
     private int rows = 45, cols = 13; // start with 13 cols, 45 rows
-    private List<List<String>> sheet;
-    private Stack<State> undoStack = new Stack<>();
-    private Stack<State> redoStack = new Stack<>();
+    private final Workbook workbook = new Workbook();
+    private Sheet sheet; // the active sheet of the workbook
+    private Stack<Edit> undoStack = new Stack<>();
+    private Stack<Edit> redoStack = new Stack<>();
+    private final Map<Sheet, Stack<Edit>> undoStacks = new HashMap<>(), redoStacks = new HashMap<>(); // of inactive sheets
+    private JTabbedPane sheetTabs;
+    private boolean updatingTabs = false;
+    private JCheckBoxMenuItem filterMenuItem;
+    private EditBatch pendingEdit; // collects the writes of the user action in progress
     private JTextField formulaBar;
     private JTable rowHeaderTable;
-    private String clipboard = "";
-    private boolean suppressStateChanges = false;
+    private ClipboardBlock clipboard;
     private boolean showFormulas = false;
+    private FilterSorter filterSorter;
+    private AutoFilter autoFilter; // null while AutoFilter is off
+    private TextIndex textIndex; // built on the first search
+    private FindDialog findDialog;
+    private final List<Pivot> pivots = new ArrayList<>(); // live pivot tables of the sheet
+    private Journal journal; // null when crash recovery is off or has failed
+    private boolean recovered = false; // the workbook was restored from the journal at startup
+    private SwingWorker<Void, Void> writing; // the save or export running in the background, if any
+    // calculation modes, as in Excel: tables here are the PivotTables, which otherwise refresh on every edit
+    private static final int CALC_AUTOMATIC = 0, CALC_EXCEPT_TABLES = 1, CALC_MANUAL = 2;
+    private int calcMode = CALC_AUTOMATIC;
+    private Workbook.Recalc recalc; // the Calculate Now in progress, if any
+    private JLabel statusLabel;
+    private RenderCache renderCache; // display text of the active sheet's cells as last painted
+    private TableEvents tableEvents; // changes of the active sheet on their way to the table
 
-    private static class State {
-        List<List<String>> sheet;
-        int rows, cols;
-        State(List<List<String>> sheet, int rows, int cols) {
-            this.sheet = deepCopy(sheet);
-            this.rows = rows;
-            this.cols = cols;
+    // One undoable user action; undo() and redo() are applied in stack order
+    private interface Edit {
+        void undo();
+        void redo();
+    }
+
+    // Cell writes of one action, e.g. a single edit or a whole paste
+    private static class CellEdit implements Edit {
+        private final Sheet target;
+        private int size = 0;
+        private int[] rowIdx = new int[4], colIdx = new int[4];
+        private String[] before = new String[4], after = new String[4];
+
+        CellEdit(Sheet target) {
+            this.target = target;
+        }
+
+        void add(int r, int c, String oldValue, String newValue) {
+            if (size == rowIdx.length) {
+                int cap = size * 2;
+                rowIdx = Arrays.copyOf(rowIdx, cap);
+                colIdx = Arrays.copyOf(colIdx, cap);
+                before = Arrays.copyOf(before, cap);
+                after = Arrays.copyOf(after, cap);
+            }
+            rowIdx[size] = r;
+            colIdx[size] = c;
+            before[size] = oldValue;
+            after[size] = newValue;
+            size++;
+        }
+
+        @Override
+        public void undo() {
+            for (int i = size - 1; i >= 0; i--) target.set(rowIdx[i], colIdx[i], before[i]);
+        }
+
+        @Override
+        public void redo() {
+            for (int i = 0; i < size; i++) target.set(rowIdx[i], colIdx[i], after[i]);
+        }
+    }
+
+    // Rows or columns inserted/deleted at a position; keeps the physical ids instead of cell data
+    private static class StructureEdit implements Edit {
+        private final Sheet target;
+        private final boolean rowAxis, insert;
+        private final int at;
+        private int[] ids;
+        private Sheet.Removal removal;
+
+        StructureEdit(Sheet target, boolean rowAxis, int at, int[] ids) {
+            this.target = target;
+            this.rowAxis = rowAxis;
+            this.insert = true;
+            this.at = at;
+            this.ids = ids;
+        }
+
+        StructureEdit(Sheet target, Sheet.Removal removal) {
+            this.target = target;
+            this.rowAxis = removal.rowAxis;
+            this.insert = false;
+            this.at = removal.at;
+            this.ids = removal.ids;
+            this.removal = removal;
+        }
+
+        // Grow an insert that ends exactly where the next one starts (e.g. a paste growing the sheet)
+        boolean extend(boolean rowAxis, int at, int[] more) {
+            if (!insert || rowAxis != this.rowAxis || at != this.at + ids.length) return false;
+            int[] merged = Arrays.copyOf(ids, ids.length + more.length);
+            System.arraycopy(more, 0, merged, ids.length, more.length);
+            ids = merged;
+            return true;
+        }
+
+        @Override
+        public void undo() {
+            if (insert) target.delete(rowAxis, at, ids.length);
+            else target.restore(removal);
+        }
+
+        @Override
+        public void redo() {
+            if (insert) target.insert(rowAxis, at, ids);
+            else removal = target.delete(rowAxis, at, ids.length);
+        }
+    }
+
+    // A sort: just the permutation of the sorted block (plus re-anchored references)
+    private static class SortEdit implements Edit {
+        private final Sheet target;
+        private Sheet.Reorder reorder;
+
+        SortEdit(Sheet target, Sheet.Reorder reorder) {
+            this.target = target;
+            this.reorder = reorder;
+        }
+
+        @Override
+        public void undo() {
+            target.undoReorder(reorder);
+        }
+
+        @Override
+        public void redo() {
+            reorder = target.reorderRows(reorder.from, reorder.order);
+        }
+    }
+
+    // Everything one user action changed, undone as a single step
+    private static class EditBatch implements Edit {
+        private final List<Edit> parts = new ArrayList<>();
+
+        void add(Edit edit) {
+            parts.add(edit);
+        }
+
+        CellEdit cells(Sheet target) {
+            Edit last = parts.isEmpty() ? null : parts.get(parts.size() - 1);
+            if (last instanceof CellEdit && ((CellEdit) last).target == target) return (CellEdit) last;
+            CellEdit edit = new CellEdit(target);
+            parts.add(edit);
+            return edit;
+        }
+
+        void structure(StructureEdit edit) {
+            Edit last = parts.isEmpty() ? null : parts.get(parts.size() - 1);
+            if (last instanceof StructureEdit && ((StructureEdit) last).target == edit.target
+                    && edit.insert && ((StructureEdit) last).extend(edit.rowAxis, edit.at, edit.ids)) return;
+            parts.add(edit);
+        }
+
+        boolean isEmpty() {
+            return parts.isEmpty();
+        }
+
+        @Override
+        public void undo() {
+            for (int i = parts.size() - 1; i >= 0; i--) parts.get(i).undo();
         }
-        private static List<List<String>> deepCopy(List<List<String>> original) {
-            List<List<String>> copy = new ArrayList<>();
-            for (List<String> row : original) copy.add(new ArrayList<>(row));
-            return copy;
+
+        @Override
+        public void redo() {
+            for (Edit part : parts) part.redo();
         }
     }
 
@@ -39,26 +226,38 @@ public class MiniExcel extends JFrame {
         super("MiniExcel – A Spreadsheet Editor");
         try { UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName()); } catch(Exception ignored) {}
 
-        initializeSheet();
+        if (Journal.ENABLED) recoverWorkbook();
+        if (!recovered) initializeSheet();
         model = new CustomTableModel();
 
-        String[] headers = new String[cols];
-        for (int i = 0; i < cols; i++) headers[i] = getExcelColumnName(i);
-        model.setColumnIdentifiers(headers);
-
         table = new JTable(model) {
             public String getToolTipText(MouseEvent e) {
                 Point p = e.getPoint();
-                int row = rowAtPoint(p), col = columnAtPoint(p);
-                if(row >= 0 && col >= 0 && row < sheet.size() && col < sheet.get(row).size()) {
-                    String raw = sheet.get(row).get(col);
-                    return raw != null && raw.startsWith("=") ? raw : raw;
+                int row = modelRow(rowAtPoint(p)), col = columnAtPoint(p);
+                if(row >= 0 && col >= 0 && row < rows && col < cols) {
+                    String raw = sheet.get(row, col);
+                    return raw.isEmpty() ? null : raw;
                 }
                 return null;
             }
+
         };
+        renderCache = new RenderCache();
+        renderCache.attach(sheet);
+        table.setDefaultRenderer(Object.class, new CellRenderer());
+        tableEvents = new TableEvents();
+        tableEvents.attach(sheet);
+        filterSorter = new FilterSorter();
+        table.setRowSorter(filterSorter);
+        table.getTableHeader().addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int col = table.columnAtPoint(e.getPoint());
+                if (autoFilter != null && col >= 0) showFilterDialog(col);
+            }
+        });
         table.setAutoResizeMode(JTable.AUTO_RESIZE_OFF);
-        table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        table.setSelectionMode(ListSelectionModel.SINGLE_INTERVAL_SELECTION);
         table.setCellSelectionEnabled(true);
         table.setShowGrid(true);
         table.setGridColor(Color.GRAY);
@@ -106,15 +305,24 @@ public class MiniExcel extends JFrame {
 
         JToolBar bottomToolBar = createToolBar();
         bottomToolBar.setBackground(new Color(255,200,0));
-        add(bottomToolBar, BorderLayout.SOUTH);
+        sheetTabs = createSheetTabs();
+        rebuildTabs();
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        bottomPanel.add(sheetTabs, BorderLayout.NORTH);
+        statusLabel = new JLabel("Ready");
+        statusLabel.setBorder(BorderFactory.createEmptyBorder(2, 6, 2, 6));
+        bottomPanel.add(statusLabel, BorderLayout.CENTER);
+        bottomPanel.add(bottomToolBar, BorderLayout.SOUTH);
+        add(bottomPanel, BorderLayout.SOUTH);
+        model.addTableModelListener(e -> updateStatus());
 
         DefaultCellEditor cellEditor = new DefaultCellEditor(new JTextField()) {
             @Override
             public Component getTableCellEditorComponent(JTable table, Object value, boolean isSelected, int row, int column) {
                 JTextField editor = (JTextField) super.getTableCellEditorComponent(table, value, isSelected, row, column);
-                if(row >= 0 && column >=0 && row<sheet.size() && column<sheet.get(row).size()) {
-                    String raw = sheet.get(row).get(column);
-                    editor.setText(raw==null?"":raw);
+                row = modelRow(row);
+                if(row >= 0 && column >=0 && row<rows && column<cols) {
+                    editor.setText(sheet.get(row, column));
                 }
                 return editor;
             }
@@ -122,7 +330,7 @@ public class MiniExcel extends JFrame {
             public boolean stopCellEditing() {
                 boolean ok = super.stopCellEditing();
                 if(ok) {
-                    int row = table.getEditingRow(), col = table.getEditingColumn();
+                    int row = modelRow(table.getEditingRow()), col = table.getEditingColumn();
                     if(row>=0 && col>=0) model.setRawValueAt((String)getCellEditorValue(), row, col);
                 }
                 return ok;
@@ -135,11 +343,14 @@ public class MiniExcel extends JFrame {
             public void keyPressed(KeyEvent e) {
                 if(e.isControlDown()) {
                     switch(e.getKeyCode()) {
-                        case KeyEvent.VK_C: copyCell(); break;
-                        case KeyEvent.VK_V: pasteCell(); break;
-                        case KeyEvent.VK_X: cutCell(); break;
+                        // consume so JTable's own TransferHandler doesn't overwrite the clipboard
+                        case KeyEvent.VK_C: copySelection(); e.consume(); break;
+                        case KeyEvent.VK_V: pasteSelection(); e.consume(); break;
+                        case KeyEvent.VK_X: cutSelection(); e.consume(); break;
                         case KeyEvent.VK_Z: undo(); break;
                         case KeyEvent.VK_Y: redo(); break;
+                        case KeyEvent.VK_F: showFindDialog(false); break;
+                        case KeyEvent.VK_H: showFindDialog(true); break;
                         case KeyEvent.VK_F2:
                             int r = table.getSelectedRow(), c = table.getSelectedColumn();
                             if(r>=0 && c>=0) table.editCellAt(r,c);
@@ -153,13 +364,19 @@ public class MiniExcel extends JFrame {
         table.getColumnModel().getSelectionModel().addListSelectionListener(e -> updateFormulaBar());
 
         formulaBar.addActionListener(e -> {
-            int r = table.getSelectedRow(), c = table.getSelectedColumn();
+            int r = modelRow(table.getSelectedRow()), c = table.getSelectedColumn();
             if(r>=0 && c>=0) model.setRawValueAt(formulaBar.getText(), r, c);
         });
 
-        saveState();
-
         setDefaultCloseOperation(EXIT_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                awaitWriting();
+                closeJournal();
+            }
+        });
+        if (journal != null) startJournal();
         setSize(1400,800);
         setVisible(true);
     }
@@ -170,13 +387,23 @@ public class MiniExcel extends JFrame {
         // File Menu
         JMenu fileMenu = new JMenu("File");
         JMenuItem saveItem = new JMenuItem("Save");
-        saveItem.addActionListener(e -> saveCSV());
+        saveItem.addActionListener(e -> saveWorkbook());
         JMenuItem loadItem = new JMenuItem("Load");
-        loadItem.addActionListener(e -> loadCSV());
+        loadItem.addActionListener(e -> loadWorkbook());
+        JMenuItem viewItem = new JMenuItem("Open as View...");
+        viewItem.addActionListener(e -> openView());
+        JMenuItem importItem = new JMenuItem("Import XLSX...");
+        importItem.addActionListener(e -> importXlsx());
+        JMenuItem exportItem = new JMenuItem("Export XLSX...");
+        exportItem.addActionListener(e -> exportXlsx());
         JMenuItem exitItem = new JMenuItem("Exit");
-        exitItem.addActionListener(e -> System.exit(0));
+        exitItem.addActionListener(e -> dispatchEvent(new WindowEvent(this, WindowEvent.WINDOW_CLOSING)));
         fileMenu.add(saveItem);
         fileMenu.add(loadItem);
+        fileMenu.add(viewItem);
+        fileMenu.addSeparator();
+        fileMenu.add(importItem);
+        fileMenu.add(exportItem);
         fileMenu.addSeparator();
         fileMenu.add(exitItem);
         menuBar.add(fileMenu);
@@ -188,17 +415,24 @@ public class MiniExcel extends JFrame {
         JMenuItem redoItem = new JMenuItem("Redo");
         redoItem.addActionListener(e -> redo());
         JMenuItem cutItem = new JMenuItem("Cut");
-        cutItem.addActionListener(e -> cutCell());
+        cutItem.addActionListener(e -> cutSelection());
         JMenuItem copyItem = new JMenuItem("Copy");
-        copyItem.addActionListener(e -> copyCell());
+        copyItem.addActionListener(e -> copySelection());
         JMenuItem pasteItem = new JMenuItem("Paste");
-        pasteItem.addActionListener(e -> pasteCell());
+        pasteItem.addActionListener(e -> pasteSelection());
+        JMenuItem findItem = new JMenuItem("Find...");
+        findItem.addActionListener(e -> showFindDialog(false));
+        JMenuItem replaceItem = new JMenuItem("Replace...");
+        replaceItem.addActionListener(e -> showFindDialog(true));
         editMenu.add(undoItem);
         editMenu.add(redoItem);
         editMenu.addSeparator();
         editMenu.add(cutItem);
         editMenu.add(copyItem);
         editMenu.add(pasteItem);
+        editMenu.addSeparator();
+        editMenu.add(findItem);
+        editMenu.add(replaceItem);
         menuBar.add(editMenu);
 
         // Insert Menu
@@ -221,6 +455,58 @@ public class MiniExcel extends JFrame {
         deleteMenu.add(deleteColItem);
         menuBar.add(deleteMenu);
 
+        // Data Menu
+        JMenu dataMenu = new JMenu("Data");
+        JMenuItem sortItem = new JMenuItem("Sort...");
+        sortItem.addActionListener(e -> showSortDialog());
+        filterMenuItem = new JCheckBoxMenuItem("AutoFilter");
+        filterMenuItem.addActionListener(e -> toggleAutoFilter(filterMenuItem.isSelected()));
+        JMenuItem reapplyItem = new JMenuItem("Reapply Filter");
+        reapplyItem.addActionListener(e -> applyFilter());
+        JMenuItem pivotItem = new JMenuItem("PivotTable...");
+        pivotItem.addActionListener(e -> showPivotDialog());
+        JMenuItem dataTableItem = new JMenuItem("What-If Data Table...");
+        dataTableItem.addActionListener(e -> showDataTableDialog());
+        dataMenu.add(sortItem);
+        dataMenu.addSeparator();
+        dataMenu.add(filterMenuItem);
+        dataMenu.add(reapplyItem);
+        dataMenu.addSeparator();
+        dataMenu.add(pivotItem);
+        dataMenu.add(dataTableItem);
+        menuBar.add(dataMenu);
+
+        // Sheet Menu
+        JMenu sheetMenu = new JMenu("Sheet");
+        JMenuItem addSheetItem = new JMenuItem("Insert Sheet...");
+        addSheetItem.addActionListener(e -> addSheet());
+        JMenuItem renameSheetItem = new JMenuItem("Rename Sheet...");
+        renameSheetItem.addActionListener(e -> renameSheet());
+        JMenuItem deleteSheetItem = new JMenuItem("Delete Sheet");
+        deleteSheetItem.addActionListener(e -> deleteSheet());
+        sheetMenu.add(addSheetItem);
+        sheetMenu.add(renameSheetItem);
+        sheetMenu.add(deleteSheetItem);
+        menuBar.add(sheetMenu);
+
+        // Formulas Menu
+        JMenu formulasMenu = new JMenu("Formulas");
+        ButtonGroup calcGroup = new ButtonGroup();
+        String[] calcNames = {"Automatic", "Automatic Except for Tables", "Manual"};
+        for (int i = 0; i < calcNames.length; i++) {
+            int mode = i;
+            JRadioButtonMenuItem calcItem = new JRadioButtonMenuItem(calcNames[i], mode == calcMode);
+            calcItem.addActionListener(e -> setCalcMode(mode));
+            calcGroup.add(calcItem);
+            formulasMenu.add(calcItem);
+        }
+        formulasMenu.addSeparator();
+        JMenuItem calculateItem = new JMenuItem("Calculate Now");
+        calculateItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F9, 0));
+        calculateItem.addActionListener(e -> calculateNow());
+        formulasMenu.add(calculateItem);
+        menuBar.add(formulasMenu);
+
         // View menu with Show Formulas (kept for completeness)
         JMenu viewMenu = new JMenu("View");
         JCheckBoxMenuItem showFormMenuItem = new JCheckBoxMenuItem("Show Formulas");
@@ -229,6 +515,9 @@ public class MiniExcel extends JFrame {
             model.fireTableDataChanged();
         });
         viewMenu.add(showFormMenuItem);
+        JMenuItem numberFormatItem = new JMenuItem("Number Format...");
+        numberFormatItem.addActionListener(e -> showNumberFormatDialog());
+        viewMenu.add(numberFormatItem);
         menuBar.add(viewMenu);
 
         return menuBar;
@@ -296,25 +585,84 @@ public class MiniExcel extends JFrame {
     private void updateColumnWidths() {
         TableColumnModel cm = table.getColumnModel();
         for (int i = 0; i < cm.getColumnCount(); i++) {
-            TableColumn col = cm.getColumn(i);
-            col.setPreferredWidth(120); // adjust width as needed
-            col.setMinWidth(60);
+            sizeColumn(cm.getColumn(i));
         }
     }
+
+    private static void sizeColumn(TableColumn col) {
+        col.setPreferredWidth(120); // adjust width as needed
+        col.setMinWidth(60);
+    }
     private void initializeSheet() {
-        sheet = new ArrayList<>();
-        for (int i = 0; i < rows; i++) {
-            List<String> row = new ArrayList<>();
-            for (int j = 0; j < cols; j++) {
-                row.add("");
+        sheet = new Sheet(rows, cols);
+        workbook.add("Sheet1", sheet);
+    }
+
+    // Restore the workbook of the last session from the journal directory, if there is one
+    private void recoverWorkbook() {
+        journal = new Journal(new File(Journal.DIR), workbook);
+        try {
+            if (!journal.lock()) {
+                // another MiniExcel owns the directory; recovering or checkpointing would break its journal
+                JOptionPane.showMessageDialog(this, "Crash recovery is off for this session: " + Journal.DIR + " is in use by another MiniExcel");
+                journal = null;
+                return;
             }
-            sheet.add(row);
+            recovered = journal.recover();
+        } catch (IOException | UncheckedIOException e) {
+            // leave the files alone so that nothing more is lost, and run without recovery
+            JOptionPane.showMessageDialog(this, "Could not recover the last session from " + Journal.DIR + ": " + e.getMessage());
+            workbook.clear();
+            try {
+                journal.unlock();
+            } catch (IOException ignored) {}
+            journal = null;
+            return;
+        }
+        if (recovered) {
+            sheet = workbook.sheet(0);
+            syncSize();
+        }
+    }
+
+    private void startJournal() {
+        try {
+            journal.start();
+        } catch (IOException e) {
+            journalFailed(e);
+            return;
+        }
+        // periodic checkpoints keep the journal short and the replay at startup fast
+        new javax.swing.Timer(30_000, e -> checkpoint()).start();
+    }
+
+    private void checkpoint() {
+        if (journal == null || !journal.hasChanges()) return;
+        try {
+            journal.checkpoint(false);
+        } catch (IOException e) {
+            journalFailed(e);
+        }
+    }
+
+    private void closeJournal() {
+        if (journal == null) return;
+        if (table.isEditing()) table.getCellEditor().stopCellEditing();
+        try {
+            journal.close();
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Could not write the recovery checkpoint: " + e.getMessage());
         }
     }
 
+    private void journalFailed(IOException e) {
+        journal = null;
+        JOptionPane.showMessageDialog(this, "Crash recovery is off for this session: " + e.getMessage());
+    }
+
     // Converts 0-based column index to Excel-style name
 // 0 -> A, 25 -> Z, 26 -> AA, 27 -> AB, 701 -> ZZ, 702 -> AAA
-    private String getExcelColumnName(int index) {
+    private static String getExcelColumnName(int index) {
         StringBuilder name = new StringBuilder();
         index++; // convert to 1-based
 
@@ -326,26 +674,53 @@ public class MiniExcel extends JFrame {
         return name.toString();
     }
 
-    private void saveState() {
-        if (suppressStateChanges) return;
-        // push a snapshot to undo stack
-        undoStack.push(new State(sheet, rows, cols));
-        // new change -> clear redo
-        redoStack.clear();
+    private void beginEdit() {
+        pendingEdit = new EditBatch();
+    }
+
+    // Push the collected writes as one undo step
+    private void endEdit() {
+        EditBatch batch = pendingEdit;
+        pendingEdit = null;
+        if (batch != null && !batch.isEmpty()) {
+            undoStack.push(batch);
+            // new change -> clear redo
+            redoStack.clear();
+        }
+    }
+
+    // Write one cell as part of the current action
+    private void writeCell(int r, int c, String value) {
+        boolean single = pendingEdit == null;
+        if (single) beginEdit();
+        String raw = value == null ? "" : value;
+        String old = sheet.set(r, c, raw);
+        if (!old.equals(raw)) pendingEdit.cells(sheet).add(r, c, old, raw);
+        if (single) endEdit();
+    }
+
+    private void insertLines(boolean rowAxis, int at, int count) {
+        int[] ids = rowAxis ? sheet.insertRows(at, count) : sheet.insertColumns(at, count);
+        pendingEdit.structure(new StructureEdit(sheet, rowAxis, at, ids));
+        syncSize();
+    }
+
+    private void deleteLines(boolean rowAxis, int at, int count) {
+        pendingEdit.structure(new StructureEdit(sheet, sheet.delete(rowAxis, at, count)));
+        syncSize();
+    }
+
+    private void syncSize() {
+        rows = sheet.rowCount();
+        cols = sheet.colCount();
     }
 
     private void undo() {
         if (!undoStack.isEmpty()) {
-            suppressStateChanges = true;
-            // push current to redo
-            redoStack.push(new State(sheet, rows, cols));
-            State prev;
-            prev = undoStack.pop();
-            sheet = prev.sheet;
-            rows = prev.rows;
-            cols = prev.cols;
-            refreshTable();
-            suppressStateChanges = false;
+            Edit edit = undoStack.pop();
+            edit.undo();
+            redoStack.push(edit);
+            tableEvents.publish();
         } else {
             Toolkit.getDefaultToolkit().beep();
         }
@@ -353,46 +728,32 @@ public class MiniExcel extends JFrame {
 
     private void redo() {
         if (!redoStack.isEmpty()) {
-            suppressStateChanges = true;
-            undoStack.push(new State(sheet, rows, cols));
-            State next = redoStack.pop();
-            sheet = next.sheet;
-            rows = next.rows;
-            cols = next.cols;
-            refreshTable();
-            suppressStateChanges = false;
+            Edit edit = redoStack.pop();
+            edit.redo();
+            undoStack.push(edit);
+            tableEvents.publish();
         } else {
             Toolkit.getDefaultToolkit().beep();
         }
     }
 
+    // Rebuild the table for another sheet; changes within the sheet go through tableEvents
     private void refreshTable() {
         int selRow = table.getSelectedRow();
         int selCol = table.getSelectedColumn();
 
-        model.setRowCount(rows);
-        model.setColumnCount(cols);
-
-        // Update column headers
-        String[] headers = new String[cols];
-        for (int i = 0; i < cols; i++) {
-            headers[i] = getExcelColumnName(i);
-        }
-        model.setColumnIdentifiers(headers);
-
-        // ❌ DO NOT destroy structure
-        model.fireTableDataChanged();
+        model.fireTableStructureChanged();
         updateColumnWidths();
         table.doLayout();
         // Re-sync row header
         rowHeaderTable.revalidate();
         rowHeaderTable.repaint();
 
-        // Restore selection safely
-        if (rows > 0 && cols > 0) {
+        // Restore selection safely (view rows: the filter may hide some)
+        if (table.getRowCount() > 0 && cols > 0) {
             if (selRow < 0) selRow = 0;
             if (selCol < 0) selCol = 0;
-            selRow = Math.min(selRow, rows - 1);
+            selRow = Math.min(selRow, table.getRowCount() - 1);
             selCol = Math.min(selCol, cols - 1);
 
             table.setRowSelectionInterval(selRow, selRow);
@@ -402,93 +763,351 @@ public class MiniExcel extends JFrame {
         updateFormulaBar();
     }
 
+    // Inserts as many rows as are selected, above the selection (appends when nothing is selected)
     private void insertRow() {
-        saveState();
-        rows++;
-        List<String> newRow = new ArrayList<>();
-        for (int j = 0; j < cols; j++) {
-            newRow.add("");
-        }
-        sheet.add(newRow);
-        refreshTable();
+        int[] range = getSelectedRange();
+        beginEdit();
+        if (range == null) insertLines(true, rows, 1);
+        else insertLines(true, range[0], range[2] - range[0] + 1);
+        endEdit();
+        tableEvents.publish();
     }
 
+    // Deletes the selected rows (the last row when nothing is selected), always keeping one
     private void deleteRow() {
-        if (rows > 1) {
-            saveState();
-            rows--;
-            sheet.remove(sheet.size() - 1);
-            refreshTable();
+        int[] range = getSelectedRange();
+        int at = range == null ? rows - 1 : range[0];
+        int count = range == null ? 1 : range[2] - range[0] + 1;
+        if (rows - count >= 1) {
+            beginEdit();
+            deleteLines(true, at, count);
+            endEdit();
+            tableEvents.publish();
+        } else {
+            Toolkit.getDefaultToolkit().beep();
         }
     }
 
     private void insertColumn() {
-        saveState();
-        cols++;
-        for (List<String> row : sheet) {
-            row.add("");
-        }
-        refreshTable();
+        int[] range = getSelectedRange();
+        beginEdit();
+        if (range == null) insertLines(false, cols, 1);
+        else insertLines(false, range[1], range[3] - range[1] + 1);
+        endEdit();
+        tableEvents.publish();
     }
 
     private void deleteColumn() {
-        if (cols > 1) {
-            saveState();
-            cols--;
-            for (List<String> row : sheet) {
-                row.remove(row.size() - 1);
+        int[] range = getSelectedRange();
+        int at = range == null ? cols - 1 : range[1];
+        int count = range == null ? 1 : range[3] - range[1] + 1;
+        if (cols - count >= 1) {
+            beginEdit();
+            deleteLines(false, at, count);
+            endEdit();
+            tableEvents.publish();
+        } else {
+            Toolkit.getDefaultToolkit().beep();
+        }
+    }
+
+    // Saves every sheet (sheet.csv, sheet2.csv, ...) and the workbook.txt that lists them
+    private void saveWorkbook() {
+        if (stillWriting()) return;
+        try {
+            // the checkpoint may still point at the CSV files about to be overwritten
+            if (journal != null) journal.checkpoint(true);
+            Workbook.SaveJob job = workbook.save(new File("."));
+            writeInBackground(() -> {
+                job.write();
+                return null;
+            }, () -> {
+                job.finish();
+                JOptionPane.showMessageDialog(this, job.size() == 1 ? "Saved to sheet.csv" : "Saved " + job.size() + " sheets");
+            });
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this, "Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Run a save or export off the EDT; it reads sheet snapshots, so editing goes on meanwhile.
+     * done runs on the EDT once the files are written.
+     */
+    private void writeInBackground(Callable<Void> write, Runnable done) {
+        writing = new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                return write.call();
             }
-            refreshTable();
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                    done.run();
+                } catch (ExecutionException e) {
+                    JOptionPane.showMessageDialog(MiniExcel.this, "Error: " + e.getCause().getMessage());
+                } catch (InterruptedException ignored) {}
+            }
+        };
+        writing.execute();
+    }
+
+    // One background write at a time: two saves would write the same files
+    private boolean stillWriting() {
+        if (writing == null || writing.isDone()) return false;
+        JOptionPane.showMessageDialog(this, "The previous save or export is still being written.");
+        return true;
+    }
+
+    // Let a save or export in progress finish before the process exits
+    private void awaitWriting() {
+        if (writing == null) return;
+        try {
+            writing.get();
+        } catch (InterruptedException | ExecutionException ignored) {} // nothing left to report it to
+    }
+
+    // Shows a CSV file read-only in its own window, without loading it into a sheet
+    private void openView() {
+        JFileChooser chooser = new JFileChooser(new File("."));
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        try {
+            new ViewFrame(new CsvView(chooser.getSelectedFile()));
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Error: " + e.getMessage());
         }
     }
 
-    private void saveCSV() {
-        try (PrintWriter pw = new PrintWriter(new File("sheet.csv"))) {
-            for (List<String> row : sheet) {
-                StringBuilder sb = new StringBuilder();
-                for (int j = 0; j < row.size(); j++) {
-                    String cell = row.get(j) == null ? "" : row.get(j);
-                    // escape any commas by wrapping in quotes if necessary
-                    if (cell.contains(",") || cell.contains("\"") || cell.contains("\n")) {
-                        cell = "\"" + cell.replace("\"", "\"\"") + "\"";
-                    }
-                    sb.append(cell);
-                    if (j < row.size() - 1) sb.append(",");
-                }
-                pw.println(sb.toString());
+    // Opens workbook.txt (or a lone sheet.csv); sheets other than the first are read when first shown
+    private void loadWorkbook() {
+        try {
+            workbook.open(new File("."));
+            showOpenedWorkbook();
+        } catch (FileNotFoundException fnf) {
+            JOptionPane.showMessageDialog(this, fnf.getMessage());
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this, "Error: " + e.getMessage());
+        }
+    }
+
+    private void importXlsx() {
+        JFileChooser chooser = new JFileChooser(new File("."));
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        try {
+            Xlsx.read(chooser.getSelectedFile(), workbook);
+            showOpenedWorkbook();
+            pageOutSheets();
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this, "Error: " + e.getMessage());
+        }
+    }
+
+    private void exportXlsx() {
+        JFileChooser chooser = new JFileChooser(new File("."));
+        chooser.setSelectedFile(new File("workbook.xlsx"));
+        if (stillWriting() || chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        try {
+            int count = workbook.size();
+            String[] names = new String[count];
+            Sheet.Snapshot[] views = new Sheet.Snapshot[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = workbook.name(i);
+                views[i] = workbook.sheet(i).snapshot();
             }
-            JOptionPane.showMessageDialog(this, "Saved to sheet.csv");
+            File file = chooser.getSelectedFile();
+            writeInBackground(() -> {
+                try {
+                    Xlsx.write(names, views, file);
+                } finally {
+                    for (Sheet.Snapshot view : views) view.close();
+                }
+                return null;
+            }, () -> JOptionPane.showMessageDialog(this, "Exported " + count + (count == 1 ? " sheet" : " sheets")));
         } catch (Exception e) {
             JOptionPane.showMessageDialog(this, "Error: " + e.getMessage());
         }
     }
 
-    private void loadCSV() {
-        try(BufferedReader br = new BufferedReader(new FileReader("sheet.csv"))) {
-            List<List<String>> loaded = new ArrayList<>();
-            String line;
-            while((line=br.readLine())!=null) {
-                List<String> parsed = parseCSVLine(line);
-                loaded.add(parsed);
+    // After the workbook's sheets were replaced (Load, Import): show the first one with no history
+    private void showOpenedWorkbook() throws IOException {
+        if (journal != null) journal.reset();
+        Sheet first = workbook.sheet(0);
+        for (Pivot pivot : pivots) pivot.detach();
+        pivots.clear();
+        // edits recorded against the previous sheets cannot be replayed on these
+        undoStacks.clear();
+        redoStacks.clear();
+        undoStack.clear();
+        redoStack.clear();
+        activate(first);
+        rebuildTabs();
+    }
+
+    // Text shown for a raw value of the active sheet: formulas are evaluated and formatted
+    private String displayText(String raw) {
+        return workbook.displayText(sheet, raw);
+    }
+
+    private Object evaluateValue(String raw) {
+        return workbook.evaluateValue(sheet, raw);
+    }
+
+    private double evaluateFormula(String raw) {
+        return workbook.evaluateFormula(sheet, raw);
+    }
+
+    private JTabbedPane createSheetTabs() {
+        JTabbedPane tabs = new JTabbedPane(JTabbedPane.BOTTOM, JTabbedPane.SCROLL_TAB_LAYOUT);
+        tabs.addChangeListener(e -> {
+            if (!updatingTabs) switchSheet(tabs.getSelectedIndex());
+        });
+        tabs.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2 && tabs.indexAtLocation(e.getX(), e.getY()) >= 0) renameSheet();
+            }
+        });
+        return tabs;
+    }
+
+    // One tab per sheet; the tabs only select, the grid above shows the active sheet
+    private void rebuildTabs() {
+        updatingTabs = true;
+        sheetTabs.removeAll();
+        for (int i = 0; i < workbook.size(); i++) {
+            JPanel strip = new JPanel();
+            strip.setPreferredSize(new Dimension(0, 0));
+            sheetTabs.addTab(workbook.name(i), strip);
+        }
+        sheetTabs.setSelectedIndex(workbook.indexOf(sheet));
+        updatingTabs = false;
+    }
+
+    private void switchSheet(int index) {
+        if (index < 0 || (workbook.isLoaded(index) && workbook.sheet(index) == sheet)) return;
+        if (table.isEditing()) table.getCellEditor().stopCellEditing();
+        Sheet next;
+        try {
+            next = workbook.sheet(index);
+        } catch (UncheckedIOException ex) {
+            JOptionPane.showMessageDialog(this, "Error: " + ex.getCause().getMessage());
+            rebuildTabs();
+            return;
+        }
+        undoStacks.put(sheet, undoStack);
+        redoStacks.put(sheet, redoStack);
+        takeHistory(next);
+        activate(next);
+        pageOutSheets();
+    }
+
+    // Undo and redo act on the active sheet, so each sheet keeps its own stacks
+    private void takeHistory(Sheet next) {
+        Stack<Edit> undo = undoStacks.remove(next), redo = redoStacks.remove(next);
+        undoStack = undo != null ? undo : new Stack<>();
+        redoStack = redo != null ? redo : new Stack<>();
+    }
+
+    // Show another sheet; AutoFilter and the find index belong to the sheet that was shown
+    private void activate(Sheet next) {
+        if (autoFilter != null) sheet.removeListener(autoFilter);
+        autoFilter = null;
+        filterMenuItem.setSelected(false);
+        filterSorter.setViewToModel(null);
+        if (textIndex != null) textIndex.target.removeListener(textIndex);
+        textIndex = null;
+        sheet = next;
+        renderCache.attach(next);
+        tableEvents.attach(next);
+        if (journal != null) journal.attach(next);
+        syncSize();
+        refreshTable();
+    }
+
+    // Over the heap budget, inactive sheets go to the page file; sheets with undo history stay, as its edits refer to them
+    private void pageOutSheets() {
+        Set<Sheet> pinned = new HashSet<>();
+        pinned.add(sheet);
+        for (Pivot pivot : pivots) pinned.add(pivot.target);
+        if (journal != null) pinned.addAll(journal.dirtySheets());
+        for (Map<Sheet, Stack<Edit>> stacks : List.of(undoStacks, redoStacks)) {
+            for (Map.Entry<Sheet, Stack<Edit>> e : stacks.entrySet()) {
+                if (!e.getValue().isEmpty()) pinned.add(e.getKey());
+            }
+        }
+        for (Sheet evicted : workbook.evict(pinned)) {
+            undoStacks.remove(evicted);
+            redoStacks.remove(evicted);
+            if (journal != null) journal.detach(evicted);
+        }
+    }
+
+    private String askSheetName(String title, String initial) {
+        while (true) {
+            String name = (String) JOptionPane.showInputDialog(this, "Sheet name:", title, JOptionPane.PLAIN_MESSAGE, null, null, initial);
+            if (name == null) return null;
+            name = name.trim();
+            int existing = workbook.indexOf(name);
+            if (!Workbook.validName(name)) {
+                JOptionPane.showMessageDialog(this, "A sheet name cannot be blank or contain ' ! \" , : ( ) [ ] * ? / \\");
+            } else if (existing >= 0 && !workbook.name(existing).equals(initial)) {
+                JOptionPane.showMessageDialog(this, "There is already a sheet named " + name + ".");
+            } else {
+                return name;
             }
-            if(!loaded.isEmpty()) {
-                sheet = loaded;
-                rows = sheet.size();
-                cols = sheet.get(0).size();
-                // pad missing cells
-                for(List<String> row:sheet) while(row.size()<cols) row.add("");
-            } else initializeSheet();
-            saveState();
-            refreshTable();
-        } catch(FileNotFoundException fnf) {
-            JOptionPane.showMessageDialog(this, "sheet.csv not found.");
-        } catch(Exception e) {
-            JOptionPane.showMessageDialog(this, "Error: "+e.getMessage());
+            initial = name;
+        }
+    }
+
+    private void addSheet() {
+        int n = workbook.size() + 1;
+        while (workbook.indexOf("Sheet" + n) >= 0) n++;
+        String name = askSheetName("Insert Sheet", "Sheet" + n);
+        if (name == null) return;
+        workbook.add(name, new Sheet(45, 13));
+        if (journal != null) journal.sheetAdded();
+        rebuildTabs();
+        sheetTabs.setSelectedIndex(workbook.size() - 1);
+    }
+
+    // Formulas that name the sheet keep the old name and show errors until they are edited
+    private void renameSheet() {
+        int index = workbook.indexOf(sheet);
+        String name = askSheetName("Rename Sheet", workbook.name(index));
+        if (name == null) return;
+        workbook.rename(index, name);
+        if (journal != null) journal.sheetRenamed(index);
+        rebuildTabs();
+        model.fireTableDataChanged();
+    }
+
+    // Not undoable, like in Excel, so it asks first
+    private void deleteSheet() {
+        if (workbook.size() == 1) {
+            Toolkit.getDefaultToolkit().beep();
+            return;
         }
+        int index = workbook.indexOf(sheet);
+        int answer = JOptionPane.showConfirmDialog(this, "Delete sheet " + workbook.name(index) + "? This cannot be undone.",
+                "Delete Sheet", JOptionPane.OK_CANCEL_OPTION);
+        if (answer != JOptionPane.OK_OPTION) return;
+        pivots.removeIf(pivot -> {
+            if (pivot.target != sheet) return false;
+            pivot.detach();
+            return true;
+        });
+        workbook.remove(index);
+        if (journal != null) journal.sheetRemoved(index);
+        Sheet next = workbook.sheet(Math.max(0, index - 1));
+        takeHistory(next);
+        activate(next);
+        rebuildTabs();
     }
 
     // Simple CSV parser for quotes
-    private List<String> parseCSVLine(String line) {
+    private static List<String> parseCSVLine(String line) {
         List<String> result = new ArrayList<>();
         if (line == null || line.isEmpty()) return result;
         StringBuilder cur = new StringBuilder();
@@ -522,17 +1141,17 @@ public class MiniExcel extends JFrame {
     }
 
     private void updateFormulaBar() {
-        int row = table.getSelectedRow();
+        int row = modelRow(table.getSelectedRow());
         int col = table.getSelectedColumn();
-        if (row >= 0 && col >= 0 && row < sheet.size() && col < sheet.get(row).size()) {
-            formulaBar.setText(sheet.get(row).get(col));
+        if (row >= 0 && col >= 0 && row < rows && col < cols) {
+            formulaBar.setText(sheet.get(row, col));
         } else {
             formulaBar.setText("");
         }
     }
 
     private void insertFunction(String func) {
-        int row = table.getSelectedRow();
+        int row = modelRow(table.getSelectedRow());
         int col = table.getSelectedColumn();
         if (row >= 0 && col >= 0) {
             String range = JOptionPane.showInputDialog("Enter args (e.g., A1:B2 or A1,10,B1:C2):");
@@ -544,621 +1163,7911 @@ public class MiniExcel extends JFrame {
         }
     }
 
-    private void copyCell() {
-        int row = table.getSelectedRow();
-        int col = table.getSelectedColumn();
-        if (row >= 0 && col >= 0) {
-            clipboard = sheet.get(row).get(col);
-        }
+    // Model row shown at a view row (they differ while AutoFilter hides rows)
+    private int modelRow(int viewRow) {
+        return viewRow < 0 || viewRow >= table.getRowCount() ? viewRow : table.convertRowIndexToModel(viewRow);
     }
 
-    private void pasteCell() {
-        int row = table.getSelectedRow();
-        int col = table.getSelectedColumn();
-        if (row >= 0 && col >= 0) {
-            model.setRawValueAt(clipboard, row, col);
-        }
+    // Select model rows [r0, r1] x columns [c0, c1], as far as they are visible
+    private void selectModelRange(int r0, int c0, int r1, int c1) {
+        int v0 = -1, v1 = -1;
+        for (int r = r0; r <= r1 && v0 < 0; r++) v0 = table.convertRowIndexToView(r);
+        for (int r = r1; r >= r0 && v1 < 0; r--) v1 = table.convertRowIndexToView(r);
+        if (v0 < 0) return;
+        table.setRowSelectionInterval(v0, v1);
+        table.setColumnSelectionInterval(c0, c1);
     }
 
-    private void cutCell() {
-        int row = table.getSelectedRow();
-        int col = table.getSelectedColumn();
-        if (row >= 0 && col >= 0) {
-            clipboard = sheet.get(row).get(col);
-            model.setRawValueAt("", row, col);
-        }
+    // Selected rectangle in model rows as {firstRow, firstCol, lastRow, lastCol}, or null when nothing is selected
+    private int[] getSelectedRange() {
+        ListSelectionModel rowSel = table.getSelectionModel();
+        ListSelectionModel colSel = table.getColumnModel().getSelectionModel();
+        int r0 = modelRow(rowSel.getMinSelectionIndex()), r1 = modelRow(rowSel.getMaxSelectionIndex());
+        int c0 = colSel.getMinSelectionIndex(), c1 = colSel.getMaxSelectionIndex();
+        if (r0 < 0 || c0 < 0 || r0 >= rows || c0 >= cols) return null;
+        return new int[]{r0, c0, Math.min(r1, rows - 1), Math.min(c1, cols - 1)};
     }
 
-    // Row Header Model
-    private class RowHeaderModel extends AbstractTableModel {
-        @Override
-        public int getRowCount() {
-            return rows;
-        }
-
-        @Override
-        public int getColumnCount() {
-            return 1;
-        }
-
-        @Override
-        public Object getValueAt(int rowIndex, int columnIndex) {
-            return rowIndex + 1;
+    private Clipboard systemClipboard() {
+        try {
+            return Toolkit.getDefaultToolkit().getSystemClipboard();
+        } catch (HeadlessException | SecurityException ex) {
+            return null;
         }
+    }
 
-        @Override
-        public boolean isCellEditable(int rowIndex, int columnIndex) {
-            return false;
-        }
+    private void copySelection() {
+        copyToClipboard(false);
     }
 
-    // Corner for row header
-    private class Corner extends JComponent {
-        @Override
-        protected void paintComponent(Graphics g) {
-            super.paintComponent(g);
-            g.setColor(Color.LIGHT_GRAY);
-            g.fillRect(0, 0, getWidth(), getHeight());
-            g.setColor(Color.BLACK);
-            g.drawString("Row", 5, 15);
+    private void cutSelection() {
+        int[] range = getSelectedRange();
+        if (range == null) return;
+        copyToClipboard(true);
+        // clearing the source is a single undoable write
+        beginEdit();
+        for (int r = range[0]; r <= range[2]; r++) {
+            for (int c = range[1]; c <= range[3]; c++) {
+                writeCell(r, c, "");
+            }
         }
+        endEdit();
+        updateFormulaBar();
     }
 
-    // Custom Table Model
-    private class CustomTableModel extends DefaultTableModel {
-        @Override
-        public Object getValueAt(int row, int column) {
-            if (row < sheet.size() && column < sheet.get(row).size()) {
-                String raw = sheet.get(row).get(column);
-                if (showFormulas) {
-                    // return raw content directly for Show Formulas mode
-                    return raw == null ? "" : raw;
-                }
+    private void copyToClipboard(boolean cut) {
+        int[] range = getSelectedRange();
+        if (range == null) return;
+        List<String[]> cells = new ArrayList<>(range[2] - range[0] + 1);
+        List<String[]> shown = new ArrayList<>(range[2] - range[0] + 1);
+        for (int r = range[0]; r <= range[2]; r++) {
+            String[] row = new String[range[3] - range[1] + 1];
+            String[] results = null; // formula results as of now, against this sheet; null for a row of constants
+            for (int c = range[1]; c <= range[3]; c++) {
+                String raw = sheet.get(r, c);
+                row[c - range[1]] = raw;
                 if (raw != null && raw.startsWith("=")) {
-                    double result = evaluateFormula(raw);
-                    if (Double.isNaN(result)) {
-                        return "ERROR";
-                    }
-                    if (result == (long) result) {
-                        return String.valueOf((long) result);
-                    } else {
-                        return String.format("%.2f", result);
-                    }
+                    if (results == null) results = new String[row.length];
+                    results[c - range[1]] = displayText(raw);
                 }
-                return raw == null ? "" : raw;
-            }
-            return "";
-        }
-
-        @Override
-        public void setValueAt(Object aValue, int row, int column) {
-            if (row < sheet.size() && column < sheet.get(row).size()) {
-                // Save state before modifying so user can undo this change
-                saveState();
-                sheet.get(row).set(column, aValue == null ? "" : aValue.toString());
-                fireTableCellUpdated(row, column);
             }
+            cells.add(row);
+            shown.add(results);
         }
-
-        public void setRawValueAt(String value, int row, int column) {
-            if (row < sheet.size() && column < sheet.get(row).size()) {
-                saveState();
-                sheet.get(row).set(column, value == null ? "" : value);
-                fireTableCellUpdated(row, column);
+        clipboard = new ClipboardBlock(cells, shown, range[0], range[1], cut);
+        Clipboard system = systemClipboard();
+        if (system != null) {
+            try {
+                system.setContents(clipboard.transferable, null);
+            } catch (IllegalStateException ignored) {
+                // clipboard busy: the internal copy still works
             }
         }
     }
 
-    /**
-     * Evaluate formula string (starting with '=')
-     * Supports functions and nested references and arithmetic expressions
+    private void pasteSelection() {
+        int[] range = getSelectedRange();
+        if (range == null) return;
+        Clipboard system = systemClipboard();
+        Transferable contents = null;
+        if (system != null) {
+            try {
+                contents = system.getContents(null);
+            } catch (IllegalStateException ignored) {}
+        }
+        // our own block is still on the clipboard (or there is no system clipboard): paste raw cells/formulas
+        if (clipboard != null && (system == null || contents == clipboard.transferable)) {
+            pasteBlock(clipboard, range);
+            return;
+        }
+        DataFlavor flavor = contents == null ? null : DataFlavor.selectBestTextFlavor(contents.getTransferDataFlavors());
+        if (flavor == null) {
+            Toolkit.getDefaultToolkit().beep();
+            return;
+        }
+        try (Reader reader = flavor.getReaderForText(contents)) {
+            pasteTSV(reader, range[0], range[1]);
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this, "Error: " + e.getMessage());
+        }
+    }
+
+    // Paste an internal block; tiles it when the selection is an exact multiple of the block size
+    private void pasteBlock(ClipboardBlock block, int[] range) {
+        int blockRows = block.cells.size();
+        int blockCols = block.cells.get(0).length;
+        int selRows = range[2] - range[0] + 1, selCols = range[3] - range[1] + 1;
+        int tilesDown = selRows % blockRows == 0 ? selRows / blockRows : 1;
+        int tilesAcross = selCols % blockCols == 0 ? selCols / blockCols : 1;
+
+        beginEdit();
+        ensureSize(range[0] + tilesDown * blockRows, range[1] + tilesAcross * blockCols);
+        for (int ty = 0; ty < tilesDown; ty++) {
+            for (int tx = 0; tx < tilesAcross; tx++) {
+                int top = range[0] + ty * blockRows, left = range[1] + tx * blockCols;
+                // moved (cut) formulas keep their references, copied ones are adjusted relatively
+                int dRow = block.cut ? 0 : top - block.row;
+                int dCol = block.cut ? 0 : left - block.col;
+                for (int r = 0; r < blockRows; r++) {
+                    String[] src = block.cells.get(r);
+                    for (int c = 0; c < blockCols; c++) {
+                        writeCell(top + r, left + c, shiftReferences(src[c], dRow, dCol));
+                    }
+                }
+            }
+        }
+        endEdit();
+        tableEvents.publish();
+        selectModelRange(range[0], range[1], range[0] + tilesDown * blockRows - 1, range[1] + tilesAcross * blockCols - 1);
+    }
+
+    /**
+     * Paste tab-separated text (Excel/LibreOffice clipboard format) straight from the reader,
+     * one cell at a time, so large pastes never build an intermediate String.
+     * Quoted fields may contain tabs, newlines and doubled quotes. The whole paste is one undo step.
+     */
+    private void pasteTSV(Reader in, int startRow, int startCol) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        beginEdit();
+        StringBuilder cur = new StringBuilder();
+        int r = startRow, c = startCol;
+        int lastRow = startRow, lastCol = startCol;
+        boolean inQuotes = false;
+        int ch;
+        while ((ch = reader.read()) != -1) {
+            if (inQuotes) {
+                if (ch == '"') {
+                    reader.mark(1);
+                    int next = reader.read();
+                    if (next == '"') {
+                        cur.append('"');
+                    } else {
+                        inQuotes = false;
+                        if (next != -1) reader.reset();
+                    }
+                } else {
+                    cur.append((char) ch);
+                }
+            } else if (ch == '"' && cur.length() == 0) {
+                inQuotes = true;
+            } else if (ch == '\t') {
+                putPastedCell(r, c, cur);
+                lastCol = Math.max(lastCol, c++);
+            } else if (ch == '\n' || ch == '\r') {
+                if (ch == '\r') {
+                    reader.mark(1);
+                    if (reader.read() != '\n') reader.reset();
+                }
+                putPastedCell(r, c, cur);
+                lastCol = Math.max(lastCol, c);
+                lastRow = r++;
+                c = startCol;
+            } else {
+                cur.append((char) ch);
+            }
+        }
+        // last line without a trailing newline
+        if (cur.length() > 0 || c > startCol) {
+            putPastedCell(r, c, cur);
+            lastCol = Math.max(lastCol, c);
+            lastRow = r;
+        }
+        endEdit();
+        tableEvents.publish();
+        selectModelRange(startRow, startCol, lastRow, lastCol);
+    }
+
+    private void putPastedCell(int r, int c, StringBuilder value) {
+        ensureSize(r + 1, c + 1);
+        writeCell(r, c, value.toString());
+        value.setLength(0);
+    }
+
+    // Grow the sheet, as part of the current action, so that it has at least the given size
+    private void ensureSize(int minRows, int minCols) {
+        if (cols < minCols) insertLines(false, cols, minCols - cols);
+        if (rows < minRows) insertLines(true, rows, minRows - rows);
+    }
+
+    // Matches A1, $A1, A$1, $A$1 that are not part of a longer name or a function call
+    private static final Pattern CELL_REF = Pattern.compile("(?<![A-Za-z0-9_$])(\\$?)([A-Z]+)(\\$?)([0-9]+)(?![A-Za-z0-9_(!])");
+
+    // Whether c opens a string literal or quoted sheet name (quote == 0), or closes the open one
+    private static boolean isQuote(char c, char quote) {
+        return quote == 0 ? c == '"' || c == '\'' : c == quote;
+    }
+
+    /**
+     * Shift the relative references of a formula by (dRow, dCol); parts anchored with $ stay fixed.
+     * References pushed off the sheet become #REF!. Text inside quotes is left untouched.
+     */
+    private static String shiftReferences(String raw, int dRow, int dCol) {
+        if (raw == null || !raw.startsWith("=") || (dRow == 0 && dCol == 0)) return raw;
+        StringBuilder out = new StringBuilder(raw.length() + 8);
+        char quote = 0;
+        int segStart = 0;
+        for (int i = 0; i <= raw.length(); i++) {
+            if (i == raw.length() || isQuote(raw.charAt(i), quote)) {
+                String segment = raw.substring(segStart, i);
+                if (quote != 0) {
+                    out.append(segment);
+                } else {
+                    Matcher m = CELL_REF.matcher(segment);
+                    StringBuffer sb = new StringBuffer();
+                    while (m.find()) {
+                        int[] cell = parseCell(m.group(2) + m.group(4));
+                        String replacement = m.group();
+                        if (cell != null) {
+                            int r = m.group(3).isEmpty() ? cell[0] + dRow : cell[0];
+                            int c = m.group(1).isEmpty() ? cell[1] + dCol : cell[1];
+                            replacement = (r < 0 || c < 0) ? "#REF!"
+                                    : m.group(1) + getExcelColumnName(c) + m.group(3) + (r + 1);
+                        }
+                        m.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+                    }
+                    m.appendTail(sb);
+                    out.append(sb);
+                }
+                if (i < raw.length()) {
+                    out.append(raw.charAt(i));
+                    quote = quote == 0 ? raw.charAt(i) : 0;
+                }
+                segStart = i + 1;
+            }
+        }
+        return out.toString();
+    }
+
+    // A copied rectangle of raw cell contents plus where it was copied from
+    private class ClipboardBlock {
+        final List<String[]> cells;
+        final List<String[]> shown; // displayed formula results at copy time, per row (null: no formulas)
+        final int row, col;
+        final boolean cut;
+        final Transferable transferable;
+
+        ClipboardBlock(List<String[]> cells, List<String[]> shown, int row, int col, boolean cut) {
+            this.cells = cells;
+            this.shown = shown;
+            this.row = row;
+            this.col = col;
+            this.cut = cut;
+            this.transferable = new RangeTransferable(this);
+        }
+    }
+
+    // Offers a copied block to other applications as TSV of the displayed values
+    private class RangeTransferable implements Transferable {
+        private final DataFlavor readerFlavor = new DataFlavor("text/plain;class=java.io.Reader", "Plain Text");
+        private final ClipboardBlock block;
+
+        RangeTransferable(ClipboardBlock block) {
+            this.block = block;
+        }
+
+        @Override
+        public DataFlavor[] getTransferDataFlavors() {
+            return new DataFlavor[]{readerFlavor, DataFlavor.stringFlavor};
+        }
+
+        @Override
+        public boolean isDataFlavorSupported(DataFlavor flavor) {
+            return readerFlavor.equals(flavor) || DataFlavor.stringFlavor.equals(flavor);
+        }
+
+        @Override
+        public Object getTransferData(DataFlavor flavor) throws UnsupportedFlavorException, IOException {
+            if (readerFlavor.equals(flavor)) return new TsvReader(block);
+            if (DataFlavor.stringFlavor.equals(flavor)) {
+                // only built when a receiver insists on a String
+                StringWriter out = new StringWriter();
+                char[] buf = new char[8192];
+                try (Reader reader = new TsvReader(block)) {
+                    int n;
+                    while ((n = reader.read(buf)) != -1) out.write(buf, 0, n);
+                }
+                return out.toString();
+            }
+            throw new UnsupportedFlavorException(flavor);
+        }
+    }
+
+    // Produces the TSV text of a block lazily, one row at a time
+    private class TsvReader extends Reader {
+        private final ClipboardBlock block;
+        private final StringBuilder line = new StringBuilder();
+        private int nextRow = 0, pos = 0;
+
+        TsvReader(ClipboardBlock block) {
+            this.block = block;
+        }
+
+        @Override
+        public int read(char[] buf, int off, int len) {
+            int copied = 0;
+            while (copied < len) {
+                if (pos == line.length()) {
+                    if (nextRow == block.cells.size()) break;
+                    fillLine(block.cells.get(nextRow), block.shown.get(nextRow));
+                    nextRow++;
+                }
+                int n = Math.min(len - copied, line.length() - pos);
+                line.getChars(pos, pos + n, buf, off + copied);
+                pos += n;
+                copied += n;
+            }
+            return copied == 0 && len > 0 ? -1 : copied;
+        }
+
+        // Only reads what the copy captured: the transfer may happen later, on another sheet or thread
+        private void fillLine(String[] cells, String[] shown) {
+            line.setLength(0);
+            pos = 0;
+            for (int c = 0; c < cells.length; c++) {
+                if (c > 0) line.append('\t');
+                String text = shown != null && shown[c] != null ? shown[c] : cells[c] == null ? "" : cells[c];
+                if (text.indexOf('\t') >= 0 || text.indexOf('\n') >= 0 || text.indexOf('"') >= 0) {
+                    text = "\"" + text.replace("\"", "\"\"") + "\"";
+                }
+                line.append(text);
+            }
+            line.append('\n');
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    // Sorts the selected rows (the whole sheet when a single row is selected) by up to three columns
+    private void showSortDialog() {
+        int[] range = getSelectedRange();
+        int from = range == null || range[0] == range[2] ? 0 : range[0];
+        int to = range == null || range[0] == range[2] ? rows : range[2] + 1;
+
+        String[] columns = new String[cols + 1];
+        columns[0] = "(none)";
+        for (int i = 0; i < cols; i++) columns[i + 1] = getExcelColumnName(i);
+        JPanel panel = new JPanel(new GridLayout(0, 2, 6, 6));
+        List<JComboBox<String>> keyBoxes = new ArrayList<>();
+        List<JComboBox<String>> orderBoxes = new ArrayList<>();
+        for (int k = 0; k < 3; k++) {
+            keyBoxes.add(new JComboBox<>(columns));
+            orderBoxes.add(new JComboBox<>(new String[]{"Ascending", "Descending"}));
+            panel.add(new JLabel(k == 0 ? "Sort by" : "Then by"));
+            panel.add(new JLabel(""));
+            panel.add(keyBoxes.get(k));
+            panel.add(orderBoxes.get(k));
+        }
+        if (range != null) keyBoxes.get(0).setSelectedIndex(range[1] + 1);
+        JCheckBox header = new JCheckBox("First row is a header");
+        panel.add(header);
+        if (JOptionPane.showConfirmDialog(this, panel, "Sort rows " + (from + 1) + "-" + to,
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) return;
+
+        List<Integer> keyCols = new ArrayList<>();
+        List<Boolean> descending = new ArrayList<>();
+        for (int k = 0; k < 3; k++) {
+            if (keyBoxes.get(k).getSelectedIndex() > 0) {
+                keyCols.add(keyBoxes.get(k).getSelectedIndex() - 1);
+                descending.add(orderBoxes.get(k).getSelectedIndex() == 1);
+            }
+        }
+        if (header.isSelected()) from++;
+        if (keyCols.isEmpty() || to - from < 2) return;
+        int[] keys = new int[keyCols.size()];
+        boolean[] desc = new boolean[keys.length];
+        for (int k = 0; k < keys.length; k++) {
+            keys[k] = keyCols.get(k);
+            desc[k] = descending.get(k);
+        }
+        sortRows(from, to, keys, desc);
+    }
+
+    /**
+     * Multi-key sort of rows [from, to). Each key column is reduced to primitive ranks once, the
+     * permutation comes from parallel sorts of packed longs, and it is applied as a remap of the
+     * row index, so no cell data is copied. Undo stores only the permutation.
+     */
+    private void sortRows(int from, int to, int[] keyCols, boolean[] descending) {
+        int n = to - from;
+        int[] rowIds = sheet.rowIds(from, to);
+        int[][] ranks = new int[keyCols.length][];
+        for (int k = 0; k < keyCols.length; k++) {
+            ranks[k] = sortRanks(rowIds, sheet.colIds(keyCols[k], keyCols[k] + 1)[0], descending[k]);
+        }
+        int[] order = sortPermutation(ranks, n);
+        boolean identity = true;
+        for (int i = 0; i < n && identity; i++) identity = order[i] == i;
+        if (identity) return;
+        beginEdit();
+        pendingEdit.add(new SortEdit(sheet, sheet.reorderRows(from, order)));
+        endEdit();
+        tableEvents.publish();
+    }
+
+    /**
+     * Dense rank of every row's key in one column, ordered like Excel: numbers, then text
+     * (case-insensitive), then errors, with blanks always last. Descending reverses all but blanks.
+     */
+    private int[] sortRanks(int[] rowIds, int colId, boolean descending) {
+        int n = rowIds.length;
+        byte[] kind = new byte[n]; // 0 number, 1 text, 2 error, 3 blank
+        long[] numbers = new long[n];
+        String[] texts = new String[n];
+        int numCount = 0;
+        for (int i = 0; i < n; i++) {
+            String raw = sheet.getPhysical(rowIds[i], colId);
+            double v = Double.NaN;
+            if (raw.isEmpty()) {
+                kind[i] = 3;
+                continue;
+            } else if (raw.startsWith("=")) {
+                v = evaluateFormula(raw);
+                if (Double.isNaN(v)) {
+                    kind[i] = 2;
+                    continue;
+                }
+            } else {
+                try {
+                    v = Double.parseDouble(raw);
+                } catch (NumberFormatException ex) {
+                    kind[i] = 1;
+                    texts[i] = raw.toLowerCase();
+                    continue;
+                }
+            }
+            numbers[i] = sortableBits(v);
+            numCount++;
+        }
+
+        long[] distinctNumbers = new long[numCount];
+        Map<String, Integer> textRank = new HashMap<>();
+        for (int i = 0, j = 0; i < n; i++) {
+            if (kind[i] == 0) distinctNumbers[j++] = numbers[i];
+            else if (kind[i] == 1) textRank.putIfAbsent(texts[i], 0);
+        }
+        Arrays.parallelSort(distinctNumbers);
+        int distinct = 0;
+        for (int i = 0; i < distinctNumbers.length; i++) {
+            if (i == 0 || distinctNumbers[i] != distinctNumbers[i - 1]) distinctNumbers[distinct++] = distinctNumbers[i];
+        }
+        String[] distinctTexts = textRank.keySet().toArray(new String[0]);
+        Arrays.parallelSort(distinctTexts);
+        for (int i = 0; i < distinctTexts.length; i++) textRank.put(distinctTexts[i], distinct + i);
+        int errorRank = distinct + distinctTexts.length;
+
+        int[] ranks = new int[n];
+        for (int i = 0; i < n; i++) {
+            int rank;
+            switch (kind[i]) {
+                case 0: rank = Arrays.binarySearch(distinctNumbers, 0, distinct, numbers[i]); break;
+                case 1: rank = textRank.get(texts[i]); break;
+                case 2: rank = errorRank; break;
+                default: ranks[i] = Integer.MAX_VALUE; continue;
+            }
+            ranks[i] = descending ? errorRank - rank : rank;
+        }
+        return ranks;
+    }
+
+    // Long whose signed order matches the numeric order of the double
+    private static long sortableBits(double v) {
+        long bits = Double.doubleToLongBits(v == 0.0 ? 0.0 : v);
+        return bits < 0 ? bits ^ Long.MAX_VALUE : bits;
+    }
+
+    /**
+     * Stable permutation for several rank columns (most significant first): one parallel sort of
+     * (rank << 32 | previous position) per key, least significant key first.
+     */
+    private static int[] sortPermutation(int[][] ranks, int n) {
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        long[] packed = new long[n];
+        for (int k = ranks.length - 1; k >= 0; k--) {
+            int[] rank = ranks[k];
+            for (int i = 0; i < n; i++) packed[i] = ((long) rank[order[i]] << 32) | i;
+            Arrays.parallelSort(packed);
+            int[] next = new int[n];
+            for (int i = 0; i < n; i++) next[i] = order[(int) packed[i]];
+            order = next;
+        }
+        return order;
+    }
+
+    private void toggleAutoFilter(boolean enabled) {
+        if (enabled) {
+            int[] range = getSelectedRange();
+            autoFilter = new AutoFilter(sheet, range == null ? 0 : range[0]);
+        } else if (autoFilter != null) {
+            sheet.removeListener(autoFilter);
+            autoFilter = null;
+        }
+        applyFilter();
+    }
+
+    private void applyFilter() {
+        filterSorter.setViewToModel(autoFilter == null ? null : autoFilter.viewToModel());
+        for (int i = 0; i < table.getColumnModel().getColumnCount(); i++) {
+            table.getColumnModel().getColumn(i).setHeaderValue(columnHeader(i));
+        }
+        table.getTableHeader().repaint();
+        rowHeaderTable.revalidate();
+        rowHeaderTable.repaint();
+        if (table.getRowCount() > 0 && cols > 0) {
+            table.setRowSelectionInterval(0, 0);
+            table.setColumnSelectionInterval(0, 0);
+        }
+    }
+
+    // Column title; with AutoFilter on, a marker shows the dropdown (filled when the column is filtered)
+    private String columnHeader(int col) {
+        String name = getExcelColumnName(col);
+        if (autoFilter == null || col >= sheet.colCount()) return name;
+        return name + (autoFilter.filters.containsKey(sheet.colIds(col, col + 1)[0]) ? " ▼" : " ▾");
+    }
+
+    private void showFilterDialog(int col) {
+        int pc = sheet.colIds(col, col + 1)[0];
+        ColumnIndex index = autoFilter.index(pc);
+        ColumnFilter current = autoFilter.filters.get(pc);
+
+        // distinct values, numbers in numeric order first
+        TreeSet<String> distinct = new TreeSet<>((a, b) -> {
+            Double x = ColumnIndex.numberOrNull(a), y = ColumnIndex.numberOrNull(b);
+            if (x != null && y != null) return x.equals(y) ? a.compareTo(b) : Double.compare(x, y);
+            if (x != null || y != null) return x != null ? -1 : 1;
+            return a.compareTo(b);
+        });
+        distinct.addAll(index.byText.keySet());
+        for (int pr : index.formulas.toArray()) {
+            if (sheet.rowIndexOf(pr) >= 0) distinct.add(displayText(sheet.getPhysical(pr, pc)));
+        }
+        final String blanks = "(Blanks)";
+        DefaultListModel<String> listModel = new DefaultListModel<>();
+        for (String v : distinct) {
+            if (listModel.size() == 10000) break;
+            listModel.addElement(v);
+        }
+        listModel.addElement(blanks);
+        JList<String> valueList = new JList<>(listModel);
+        if (current == null || current.mode != ColumnFilter.VALUES) {
+            valueList.setSelectionInterval(0, listModel.size() - 1);
+        } else {
+            for (int i = 0; i < listModel.size(); i++) {
+                String v = listModel.get(i);
+                if (v.equals(blanks) ? current.blanks : current.values.contains(v)) valueList.addSelectionInterval(i, i);
+            }
+        }
+        JTextField minField = new JTextField(current != null && current.mode == ColumnFilter.RANGE ? String.valueOf(current.min) : "");
+        JTextField maxField = new JTextField(current != null && current.mode == ColumnFilter.RANGE ? String.valueOf(current.max) : "");
+        JTextField containsField = new JTextField(current != null && current.mode == ColumnFilter.CONTAINS ? current.text : "");
+        JCheckBox matchCase = new JCheckBox("Match case", current != null && current.matchCase);
+
+        JTabbedPane tabs = new JTabbedPane();
+        JScrollPane listScroll = new JScrollPane(valueList);
+        listScroll.setPreferredSize(new Dimension(260, 240));
+        tabs.addTab("Values", listScroll);
+        JPanel rangePanel = new JPanel(new GridLayout(0, 2, 6, 6));
+        rangePanel.add(new JLabel("At least:"));
+        rangePanel.add(minField);
+        rangePanel.add(new JLabel("At most:"));
+        rangePanel.add(maxField);
+        JPanel rangeWrap = new JPanel(new BorderLayout());
+        rangeWrap.add(rangePanel, BorderLayout.NORTH);
+        tabs.addTab("Number range", rangeWrap);
+        JPanel containsPanel = new JPanel(new GridLayout(0, 1, 6, 6));
+        containsPanel.add(containsField);
+        containsPanel.add(matchCase);
+        JPanel containsWrap = new JPanel(new BorderLayout());
+        containsWrap.add(containsPanel, BorderLayout.NORTH);
+        tabs.addTab("Text contains", containsWrap);
+        if (current != null) tabs.setSelectedIndex(current.mode);
+
+        Object[] options = {"OK", "Clear Filter", "Cancel"};
+        int choice = JOptionPane.showOptionDialog(this, tabs, "Filter column " + getExcelColumnName(col),
+                JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[0]);
+        if (choice == 1) {
+            autoFilter.filters.remove(pc);
+        } else if (choice == 0) {
+            try {
+                switch (tabs.getSelectedIndex()) {
+                    case ColumnFilter.VALUES:
+                        if (valueList.getSelectedIndices().length == listModel.size()) {
+                            autoFilter.filters.remove(pc);
+                        } else {
+                            Set<String> chosen = new HashSet<>(valueList.getSelectedValuesList());
+                            autoFilter.filters.put(pc, ColumnFilter.values(chosen, chosen.remove(blanks)));
+                        }
+                        break;
+                    case ColumnFilter.RANGE:
+                        double min = minField.getText().trim().isEmpty() ? Double.NEGATIVE_INFINITY : Double.parseDouble(minField.getText().trim());
+                        double max = maxField.getText().trim().isEmpty() ? Double.POSITIVE_INFINITY : Double.parseDouble(maxField.getText().trim());
+                        autoFilter.filters.put(pc, ColumnFilter.range(min, max));
+                        break;
+                    default:
+                        autoFilter.filters.put(pc, ColumnFilter.contains(containsField.getText(), matchCase.isSelected()));
+                }
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this, "Error: " + ex.getMessage());
+                return;
+            }
+        } else {
+            return;
+        }
+        applyFilter();
+    }
+
+    private TextIndex textIndex() {
+        if (textIndex == null || textIndex.target != sheet) textIndex = new TextIndex(sheet);
+        return textIndex;
+    }
+
+    /**
+     * Matching cells as {row, col}, in row-major order starting after (row, col) and wrapping
+     * around; rows hidden by the AutoFilter are skipped. Stops after limit matches. Candidates
+     * are taken nearest first from a heap, so a search for the next match does not sort them all.
+     */
+    private List<int[]> findCells(FindQuery query, int row, int col, int limit) {
+        long[] keys = textIndex().candidates(query.literal);
+        // values are matched as shown, and the index only knows the raw text: every cell of a column with a number format is a candidate
+        int[] formatted = query.values ? sheet.formattedColumns() : new int[0];
+        long total = (long) rows * cols, start = (long) row * cols + col + 1;
+        long[] distance = new long[keys.length + formatted.length * rows]; // cells after the start; a cell may be there twice
+        int n = 0;
+        for (long key : keys) {
+            int r = sheet.rowIndexOf((int) (key >>> 32)), c = sheet.colIndexOf((int) key);
+            if (r < 0 || c < 0 || table.convertRowIndexToView(r) < 0) continue;
+            distance[n++] = Math.floorMod((long) r * cols + c - start, total);
+        }
+        for (int pc : formatted) {
+            int c = sheet.colIndexOf(pc);
+            for (int r = 0; r < rows; r++) {
+                if (table.convertRowIndexToView(r) >= 0) distance[n++] = Math.floorMod((long) r * cols + c - start, total);
+            }
+        }
+        for (int i = n / 2 - 1; i >= 0; i--) siftDown(distance, i, n);
+        List<int[]> found = new ArrayList<>();
+        long previous = -1;
+        while (n > 0 && found.size() < limit) {
+            long next = distance[0];
+            distance[0] = distance[--n];
+            siftDown(distance, 0, n);
+            if (next == previous) continue;
+            previous = next;
+            long pos = (next + start) % total;
+            int r = (int) (pos / cols), c = (int) (pos % cols);
+            String raw = sheet.get(r, c);
+            if (query.matches(query.values ? renderCache.text(r, c, raw) : raw)) found.add(new int[]{r, c});
+        }
+        return found;
+    }
+
+    // Restores the min-heap order of heap[0, n) below i
+    private static void siftDown(long[] heap, int i, int n) {
+        long value = heap[i];
+        while (2 * i + 1 < n) {
+            int child = 2 * i + 1;
+            if (child + 1 < n && heap[child + 1] < heap[child]) child++;
+            if (heap[child] >= value) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = value;
+    }
+
+    private void showFindDialog(boolean replace) {
+        if (findDialog == null) findDialog = new FindDialog();
+        findDialog.open(replace);
+    }
+
+    // Non-modal Find and Replace; selects the next match while the search text is typed
+    private class FindDialog extends JDialog {
+        private static final long serialVersionUID = 1L;
+
+        final JTextField findField = new JTextField(24);
+        final JTextField replaceField = new JTextField(24);
+        final JComboBox<String> lookIn = new JComboBox<>(new String[]{"Values", "Formulas"});
+        final JCheckBox matchCase = new JCheckBox("Match case");
+        final JCheckBox wholeCell = new JCheckBox("Match entire cell");
+        final JCheckBox regex = new JCheckBox("Regular expression");
+        final JLabel status = new JLabel(" ");
+        int anchorRow, anchorCol; // where the incremental search started
+
+        FindDialog() {
+            super(MiniExcel.this, "Find and Replace", false);
+            JPanel fields = new JPanel(new GridLayout(0, 2, 6, 6));
+            fields.add(new JLabel("Find what:"));
+            fields.add(findField);
+            fields.add(new JLabel("Replace with:"));
+            fields.add(replaceField);
+            fields.add(new JLabel("Look in:"));
+            fields.add(lookIn);
+            fields.add(matchCase);
+            fields.add(wholeCell);
+            fields.add(regex);
+            fields.add(status);
+
+            JButton findNext = new JButton("Find Next");
+            findNext.addActionListener(e -> findNext());
+            JButton replaceOne = new JButton("Replace");
+            replaceOne.addActionListener(e -> replaceOne());
+            JButton replaceAll = new JButton("Replace All");
+            replaceAll.addActionListener(e -> replaceAll());
+            JButton close = new JButton("Close");
+            close.addActionListener(e -> setVisible(false));
+            JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+            buttons.add(findNext);
+            buttons.add(replaceOne);
+            buttons.add(replaceAll);
+            buttons.add(close);
+
+            findField.addActionListener(e -> findNext());
+            findField.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+                public void insertUpdate(javax.swing.event.DocumentEvent e) { searchFromAnchor(); }
+                public void removeUpdate(javax.swing.event.DocumentEvent e) { searchFromAnchor(); }
+                public void changedUpdate(javax.swing.event.DocumentEvent e) { searchFromAnchor(); }
+            });
+
+            JPanel content = new JPanel(new BorderLayout(6, 6));
+            content.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+            content.add(fields, BorderLayout.CENTER);
+            content.add(buttons, BorderLayout.SOUTH);
+            setContentPane(content);
+            pack();
+            setLocationRelativeTo(MiniExcel.this);
+        }
+
+        void open(boolean replace) {
+            setAnchor();
+            // Replace works on what is stored in the cells, like Excel
+            if (replace) lookIn.setSelectedIndex(1);
+            setVisible(true);
+            (replace ? replaceField : findField).requestFocusInWindow();
+        }
+
+        private void setAnchor() {
+            int[] range = getSelectedRange();
+            anchorRow = range == null ? 0 : range[0];
+            anchorCol = range == null ? 0 : range[1];
+        }
+
+        // null (after reporting why) when there is nothing valid to search for
+        private FindQuery query() {
+            String text = findField.getText();
+            if (text.isEmpty()) {
+                status.setText(" ");
+                return null;
+            }
+            try {
+                return new FindQuery(text, matchCase.isSelected(), wholeCell.isSelected(), regex.isSelected(),
+                        lookIn.getSelectedIndex() == 0);
+            } catch (PatternSyntaxException ex) {
+                status.setText("Invalid expression");
+                return null;
+            }
+        }
+
+        // Select the first match at or after the anchor cell
+        private void searchFromAnchor() {
+            FindQuery query = query();
+            if (query == null) return;
+            int before = anchorRow * cols + anchorCol - 1;
+            show(findCells(query, Math.floorDiv(before, cols), Math.floorMod(before, cols), 1));
+        }
+
+        private void findNext() {
+            FindQuery query = query();
+            if (query == null) return;
+            int[] range = getSelectedRange();
+            show(findCells(query, range == null ? -1 : range[0], range == null ? cols - 1 : range[1], 1));
+            setAnchor();
+        }
+
+        private void show(List<int[]> found) {
+            if (found.isEmpty()) {
+                status.setText("Not found");
+                Toolkit.getDefaultToolkit().beep();
+                return;
+            }
+            int[] cell = found.get(0);
+            status.setText(getExcelColumnName(cell[1]) + (cell[0] + 1));
+            selectModelRange(cell[0], cell[1], cell[0], cell[1]);
+            table.scrollRectToVisible(table.getCellRect(table.getSelectedRow(), cell[1], true));
+        }
+
+        private void replaceOne() {
+            FindQuery query = replaceQuery();
+            if (query == null) return;
+            int[] range = getSelectedRange();
+            if (range != null && query.matches(sheet.get(range[0], range[1]))) {
+                model.setRawValueAt(query.replace(sheet.get(range[0], range[1]), replaceField.getText()), range[0], range[1]);
+            }
+            findNext();
+        }
+
+        private void replaceAll() {
+            FindQuery query = replaceQuery();
+            if (query == null) return;
+            List<int[]> found = findCells(query, rows - 1, cols - 1, Integer.MAX_VALUE);
+            beginEdit();
+            for (int[] cell : found) writeCell(cell[0], cell[1], query.replace(sheet.get(cell[0], cell[1]), replaceField.getText()));
+            endEdit();
+            tableEvents.publish();
+            status.setText(found.size() + " replaced");
+        }
+
+        // Replacing always matches the stored text; computed values cannot be rewritten
+        private FindQuery replaceQuery() {
+            lookIn.setSelectedIndex(1);
+            return query();
+        }
+    }
+
+    private static final String[] PIVOT_FUNCTIONS = {"SUM", "AVG", "MIN", "MAX", "COUNT", "MEDIAN", "STDEV"};
+
+    // Group-by / pivot over the selected range, whose first row holds the column headers
+    private void showPivotDialog() {
+        int[] range = getSelectedRange();
+        if (range == null || range[2] == range[0]) {
+            JOptionPane.showMessageDialog(this, "Select the source range, including its header row.");
+            return;
+        }
+        String[] names = new String[range[3] - range[1] + 1];
+        for (int c = range[1]; c <= range[3]; c++) {
+            String header = displayText(sheet.get(range[0], c));
+            names[c - range[1]] = getExcelColumnName(c) + (header.isEmpty() ? "" : ": " + header);
+        }
+        JList<String> rowKeyList = new JList<>(names);
+        rowKeyList.setSelectedIndex(0);
+        rowKeyList.setVisibleRowCount(Math.min(8, names.length));
+        String[] columnChoices = new String[names.length + 1];
+        columnChoices[0] = "(none)";
+        System.arraycopy(names, 0, columnChoices, 1, names.length);
+        JComboBox<String> columnKeyBox = new JComboBox<>(columnChoices);
+        JComboBox<String> valueBox = new JComboBox<>(names);
+        valueBox.setSelectedIndex(names.length - 1);
+        JComboBox<String> functionBox = new JComboBox<>(PIVOT_FUNCTIONS);
+        JTextField destination = new JTextField(getExcelColumnName(range[3] + 2) + (range[0] + 1));
+
+        JPanel panel = new JPanel(new GridLayout(0, 2, 6, 6));
+        panel.add(new JLabel("Rows (group by):"));
+        panel.add(new JScrollPane(rowKeyList));
+        panel.add(new JLabel("Columns:"));
+        panel.add(columnKeyBox);
+        panel.add(new JLabel("Values:"));
+        panel.add(valueBox);
+        panel.add(new JLabel("Summarize by:"));
+        panel.add(functionBox);
+        panel.add(new JLabel("Output at:"));
+        panel.add(destination);
+        if (JOptionPane.showConfirmDialog(this, panel, "PivotTable", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) return;
+
+        int[] rowKeys = rowKeyList.getSelectedIndices();
+        int[] out = parseCell(destination.getText());
+        if (rowKeys.length == 0 || out == null || out[0] < 0 || out[1] < 0) {
+            JOptionPane.showMessageDialog(this, "Error: choose at least one row column and a valid output cell.");
+            return;
+        }
+        if (out[0] >= range[0] && out[0] <= range[2] && out[1] >= range[1] && out[1] <= range[3]) {
+            JOptionPane.showMessageDialog(this, "Error: the output would overwrite the source range.");
+            return;
+        }
+        beginEdit();
+        ensureSize(out[0] + 1, out[1] + 1);
+        Pivot pivot = new Pivot(sheet, range, rowKeys, columnKeyBox.getSelectedIndex() - 1, valueBox.getSelectedIndex(),
+                (String) functionBox.getSelectedItem(), out[0], out[1]);
+        pendingEdit.add(new PivotEdit(pivot));
+        pivot.attach();
+        pivot.refresh(true);
+        endEdit();
+        tableEvents.publish();
+    }
+
+    private void setCalcMode(int mode) {
+        if (mode == calcMode) return;
+        if (calcMode == CALC_MANUAL) {
+            recalc = null;
+            workbook.dropResults();
+        }
+        calcMode = mode;
+        renderCache.clear();
+        if (mode == CALC_AUTOMATIC) {
+            for (Pivot pivot : new ArrayList<>(pivots)) pivot.refreshDeferred();
+        }
+        table.repaint();
+        updateStatus();
+    }
+
+    // F9: refresh waiting PivotTables, then (manual calculation) recalculate every formula in steps
+    private void calculateNow() {
+        for (Pivot pivot : new ArrayList<>(pivots)) pivot.refreshDeferred();
+        if (calcMode != CALC_MANUAL) {
+            table.repaint();
+            updateStatus();
+            return;
+        }
+        if (recalc != null) return; // already running; edits meanwhile leave the workbook to calculate again
+        recalc = workbook.recalculation((done, total) ->
+                statusLabel.setText("Calculating: " + (total == 0 ? 100 : done * 100L / total) + "%"));
+        SwingUtilities.invokeLater(this::continueRecalc);
+    }
+
+    // One slice of the recalculation per event, so typing and scrolling go on meanwhile
+    private void continueRecalc() {
+        if (recalc == null) return;
+        if (!recalc.step(50_000_000L)) {
+            SwingUtilities.invokeLater(this::continueRecalc);
+            return;
+        }
+        recalc = null;
+        renderCache.clear(); // new results at the same version
+        table.repaint();
+        updateStatus();
+    }
+
+    private void updateStatus() {
+        if (statusLabel == null || recalc != null) return;
+        boolean waiting = calcMode == CALC_MANUAL && workbook.needsCalculation();
+        for (Pivot pivot : pivots) waiting |= pivot.deferred;
+        statusLabel.setText(waiting ? "Calculate" : "Ready");
+    }
+
+    // Number format of the selected columns; it changes how results and numbers show, never the values
+    private void showNumberFormatDialog() {
+        int[] range = getSelectedRange();
+        if (range == null) {
+            JOptionPane.showMessageDialog(this, "Select the columns to format.");
+            return;
+        }
+        CellFormat current = sheet.numberFormat(range[1]);
+        String[] choices = new String[CellFormat.MAX_DECIMALS + 2];
+        choices[0] = "General";
+        for (int d = 0; d <= CellFormat.MAX_DECIMALS; d++) choices[d + 1] = String.valueOf(d);
+        JComboBox<String> decimals = new JComboBox<>(choices);
+        decimals.setSelectedIndex(current == null ? 0 : current.decimals + 1);
+        JCheckBox grouping = new JCheckBox("Use 1000 separator (,)", current != null && current.grouping);
+        JCheckBox percent = new JCheckBox("Percentage", current != null && current.percent);
+        JPanel panel = new JPanel(new GridLayout(0, 2, 6, 6));
+        panel.add(new JLabel("Decimal places:"));
+        panel.add(decimals);
+        panel.add(grouping);
+        panel.add(percent);
+        if (JOptionPane.showConfirmDialog(this, panel, "Number Format", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) return;
+
+        CellFormat format = new CellFormat(decimals.getSelectedIndex() - 1, grouping.isSelected(), percent.isSelected());
+        for (int c = range[1]; c <= range[3]; c++) sheet.setNumberFormat(c, format.isGeneral() ? null : format);
+        renderCache.clear();
+        table.repaint();
+    }
+
+    // What-if data table over the selected range: input values along its first row and/or column
+    private void showDataTableDialog() {
+        int[] range = getSelectedRange();
+        if (range == null || range[2] == range[0] || range[3] == range[1]) {
+            JOptionPane.showMessageDialog(this, "Select the table: input values down its first column and/or along its first row, formulas on the other edge.");
+            return;
+        }
+        JTextField rowField = new JTextField(), colField = new JTextField();
+        JPanel panel = new JPanel(new GridLayout(0, 2, 6, 6));
+        panel.add(new JLabel("Row input cell:"));
+        panel.add(rowField);
+        panel.add(new JLabel("Column input cell:"));
+        panel.add(colField);
+        if (JOptionPane.showConfirmDialog(this, panel, "Data Table", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) return;
+
+        String rowText = rowField.getText().trim(), colText = colField.getText().trim();
+        int[] rowInput = rowText.isEmpty() ? null : parseCell(rowText);
+        int[] colInput = colText.isEmpty() ? null : parseCell(colText);
+        boolean valid = (rowInput != null || colInput != null) && !Arrays.equals(rowInput, colInput)
+                && (rowText.isEmpty() || onSheet(rowInput)) && (colText.isEmpty() || onSheet(colInput));
+        if (!valid) {
+            JOptionPane.showMessageDialog(this, "Error: enter a row input cell, a column input cell or both, on this sheet.");
+            return;
+        }
+        if (table.isEditing()) table.getCellEditor().stopCellEditing();
+        runDataTable(new DataTable(workbook, sheet, range, rowInput, colInput), range);
+    }
+
+    private boolean onSheet(int[] cell) {
+        return cell != null && cell[0] >= 0 && cell[0] < rows && cell[1] >= 0 && cell[1] < cols;
+    }
+
+    // The sweep runs on worker threads behind a modal progress dialog, which also keeps the sheets unchanged meanwhile
+    private void runDataTable(DataTable dataTable, int[] range) {
+        JDialog progress = new JDialog(this, "Data Table", true);
+        JProgressBar bar = new JProgressBar(0, dataTable.points());
+        bar.setStringPainted(true);
+        JButton cancel = new JButton("Cancel");
+        cancel.addActionListener(e -> dataTable.cancelled = true);
+        JPanel panel = new JPanel(new BorderLayout(6, 6));
+        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        panel.add(new JLabel("Evaluating " + dataTable.points() + " input values..."), BorderLayout.NORTH);
+        panel.add(bar, BorderLayout.CENTER);
+        panel.add(cancel, BorderLayout.SOUTH);
+        progress.add(panel);
+        progress.pack();
+        progress.setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
+        progress.setLocationRelativeTo(this);
+        javax.swing.Timer poll = new javax.swing.Timer(100, e -> bar.setValue(dataTable.done.get()));
+        String title = "Data Table " + workbook.name(workbook.indexOf(sheet)) + "!" + getExcelColumnName(range[1]) + (range[0] + 1)
+                + ":" + getExcelColumnName(range[3]) + (range[2] + 1);
+        new SwingWorker<Object[][], Void>() {
+            @Override
+            protected Object[][] doInBackground() {
+                return dataTable.run();
+            }
+
+            @Override
+            protected void done() {
+                poll.stop();
+                progress.dispose();
+                try {
+                    Object[][] results = get();
+                    if (!dataTable.cancelled) showDataTableResults(title, dataTable, results);
+                } catch (ExecutionException e) {
+                    JOptionPane.showMessageDialog(MiniExcel.this, "Error: " + e.getCause().getMessage());
+                } catch (InterruptedException ignored) {}
+            }
+        }.execute();
+        poll.start();
+        progress.setVisible(true);
+    }
+
+    // Results in a window of their own, labelled with the input values (or formulas) they belong to; the sheet is not touched
+    private void showDataTableResults(String title, DataTable dataTable, Object[][] results) {
+        int height = results.length, width = results[0].length;
+        boolean rowsVary = dataTable.colValues.length > 0, colsVary = dataTable.rowValues.length > 0;
+        String[] headers = new String[width + 1];
+        headers[0] = rowsVary && colsVary ? dataTable.formulas[0] : "";
+        for (int j = 0; j < width; j++) headers[j + 1] = colsVary ? dataTable.rowValues[j] : dataTable.formulas[j];
+        Object[][] cells = new Object[height][width + 1];
+        for (int i = 0; i < height; i++) {
+            cells[i][0] = rowsVary ? dataTable.colValues[i] : dataTable.formulas[i];
+            for (int j = 0; j < width; j++) cells[i][j + 1] = Workbook.formatValue(results[i][j]);
+        }
+        JTable grid = new JTable(new DefaultTableModel(cells, headers) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        });
+        grid.setCellSelectionEnabled(true); // Ctrl+C copies the selection as tab-separated text
+        grid.setGridColor(Color.GRAY);
+        grid.setRowHeight(24);
+        grid.getTableHeader().setReorderingAllowed(false);
+        JFrame frame = new JFrame(title);
+        frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        frame.add(new JScrollPane(grid));
+        frame.setSize(800, 500);
+        frame.setLocationRelativeTo(this);
+        frame.setVisible(true);
+    }
+
+    // Group key of a source cell: numbers numerically, text case-insensitively, blanks as null
+    private Object pivotKey(Sheet target, String raw) {
+        return Workbook.lookupKey(raw.startsWith("=") ? workbook.evaluateValue(target, raw) : raw);
+    }
+
+    // Value of a source cell the way applyFunction reads ranges: text and blanks count as 0
+    private double pivotValue(Sheet target, String raw) {
+        if (raw.startsWith("=")) {
+            double v = workbook.evaluateFormula(target, raw);
+            return Double.isNaN(v) ? 0.0 : v;
+        }
+        return Workbook.parseDoubleOrZero(raw);
+    }
+
+    // A number as stored in pivot output: integers without a fraction, others to 12 significant digits
+    private static String number(double v) {
+        if (Double.isNaN(v) || Double.isInfinite(v)) return "ERROR";
+        if (v == (long) v) return String.valueOf((long) v);
+        return new java.math.BigDecimal(v).round(new java.math.MathContext(12)).stripTrailingZeros().toPlainString();
+    }
+
+    private static long mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    /**
+     * Window over a CsvView. It shows rows as the index pass finds them; a JTable cannot be
+     * taller than Integer.MAX_VALUE pixels, so longer files are shown a window of rows at a time,
+     * moved with Go to row.
+     */
+    private class ViewFrame extends JFrame {
+        private static final long serialVersionUID = 1L;
+
+        private final CsvView view;
+        private final int window; // most rows the table can hold
+        private int offset = 0, shownRows = 0, shownCols = 0;
+        private final AbstractTableModel rowsModel = new AbstractTableModel() {
+            @Override
+            public int getRowCount() {
+                return shownRows;
+            }
+
+            @Override
+            public int getColumnCount() {
+                return shownCols;
+            }
+
+            @Override
+            public String getColumnName(int column) {
+                return getExcelColumnName(column);
+            }
+
+            @Override
+            public Object getValueAt(int rowIndex, int columnIndex) {
+                String[] fields = view.row(offset + rowIndex);
+                return columnIndex < fields.length ? fields[columnIndex] : "";
+            }
+        };
+        private final AbstractTableModel numbersModel = new AbstractTableModel() {
+            @Override
+            public int getRowCount() {
+                return shownRows;
+            }
+
+            @Override
+            public int getColumnCount() {
+                return 1;
+            }
+
+            @Override
+            public Object getValueAt(int rowIndex, int columnIndex) {
+                return offset + rowIndex + 1;
+            }
+        };
+        private final JTable grid = new JTable(rowsModel);
+        private final javax.swing.Timer poll;
+
+        ViewFrame(CsvView view) {
+            super(view.file().getName() + " (read-only)");
+            this.view = view;
+            grid.setAutoResizeMode(JTable.AUTO_RESIZE_OFF);
+            grid.setCellSelectionEnabled(true);
+            grid.setGridColor(Color.GRAY);
+            grid.setRowHeight(24);
+            grid.getTableHeader().setReorderingAllowed(false);
+            window = Integer.MAX_VALUE / grid.getRowHeight() - 1;
+
+            JTable numbers = new JTable(numbersModel);
+            numbers.setRowHeight(grid.getRowHeight());
+            numbers.setPreferredScrollableViewportSize(new Dimension(80, 0));
+            numbers.setSelectionModel(grid.getSelectionModel());
+            numbers.setBackground(new Color(230,230,230));
+            numbers.setFont(new Font("Arial", Font.BOLD, 12));
+            JScrollPane scrollPane = new JScrollPane(grid);
+            scrollPane.setRowHeaderView(numbers);
+
+            JTextField goTo = new JTextField(10);
+            goTo.addActionListener(e -> {
+                try {
+                    goToRow(Integer.parseInt(goTo.getText().trim()) - 1);
+                } catch (NumberFormatException ex) {
+                    Toolkit.getDefaultToolkit().beep();
+                }
+            });
+            JToolBar bar = new JToolBar();
+            bar.setFloatable(false);
+            bar.add(new JLabel("Go to row: "));
+            bar.add(goTo);
+            add(bar, BorderLayout.NORTH);
+            add(scrollPane, BorderLayout.CENTER);
+
+            poll = new javax.swing.Timer(200, e -> update());
+            poll.setInitialDelay(0);
+            poll.start();
+            setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+            addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowClosed(WindowEvent e) {
+                    poll.stop();
+                    try {
+                        view.close();
+                    } catch (IOException ignored) {}
+                }
+            });
+            setSize(1000, 700);
+            setLocationRelativeTo(MiniExcel.this);
+            setVisible(true);
+        }
+
+        // Take in the rows and columns the index pass has found since the last call
+        private void update() {
+            if (view.colCount() > shownCols) {
+                shownCols = view.colCount();
+                rowsModel.fireTableStructureChanged();
+                for (int i = 0; i < shownCols; i++) grid.getColumnModel().getColumn(i).setPreferredWidth(120);
+            }
+            int rowsNow = Math.min(window, view.rowCount() - offset);
+            if (rowsNow > shownRows) {
+                int first = shownRows;
+                shownRows = rowsNow;
+                rowsModel.fireTableRowsInserted(first, rowsNow - 1);
+                numbersModel.fireTableRowsInserted(first, rowsNow - 1);
+            }
+            String name = view.file().getName();
+            if (view.isIndexed()) {
+                setTitle(name + " (read-only, " + view.rowCount() + " rows)");
+                poll.stop();
+            } else {
+                setTitle(name + " (read-only, indexing " + (int) (view.progress() * 100) + "%, " + view.rowCount() + " rows so far)");
+            }
+        }
+
+        private void goToRow(int row) {
+            if (row < 0 || row >= view.rowCount()) {
+                Toolkit.getDefaultToolkit().beep();
+                return;
+            }
+            if (row < offset || row >= offset + window) {
+                offset = Math.max(0, row - window / 2);
+                shownRows = Math.min(window, view.rowCount() - offset);
+                rowsModel.fireTableDataChanged();
+                numbersModel.fireTableDataChanged();
+            }
+            int r = row - offset;
+            grid.changeSelection(r, 0, false, false);
+            grid.scrollRectToVisible(grid.getCellRect(r, 0, true));
+        }
+    }
+
+    // Row Header Model
+    private class RowHeaderModel extends AbstractTableModel {
+        // only the rows the table shows, through its view-to-model index
+        @Override
+        public int getRowCount() {
+            return table.getRowCount();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return 1;
+        }
+
+        @Override
+        public Object getValueAt(int rowIndex, int columnIndex) {
+            return table.convertRowIndexToModel(rowIndex) + 1;
+        }
+
+        @Override
+        public boolean isCellEditable(int rowIndex, int columnIndex) {
+            return false;
+        }
+    }
+
+    // Corner for row header
+    private class Corner extends JComponent {
+        @Override
+        protected void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            g.setColor(Color.LIGHT_GRAY);
+            g.fillRect(0, 0, getWidth(), getHeight());
+            g.setColor(Color.BLACK);
+            g.drawString("Row", 5, 15);
+        }
+    }
+
+    // Custom Table Model: a view of the active sheet; its events come from TableEvents
+    private class CustomTableModel extends AbstractTableModel {
+        @Override
+        public int getRowCount() {
+            return rows;
+        }
+
+        @Override
+        public int getColumnCount() {
+            return cols;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return columnHeader(column);
+        }
+
+        @Override
+        public boolean isCellEditable(int row, int column) {
+            return true;
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            if (row < rows && column < cols) {
+                String raw = sheet.get(row, column);
+                if (showFormulas) {
+                    // return raw content directly for Show Formulas mode
+                    return raw;
+                }
+                return renderCache.text(row, column, raw);
+            }
+            return "";
+        }
+
+        @Override
+        public void setValueAt(Object aValue, int row, int column) {
+            if (row < rows && column < cols) {
+                writeCell(row, column, aValue == null ? "" : aValue.toString());
+            }
+        }
+
+        public void setRawValueAt(String value, int row, int column) {
+            if (row < rows && column < cols) {
+                writeCell(row, column, value);
+            }
+        }
+    }
+
+    /**
+     * Number format of a column: a fixed number of decimals (or General: whole numbers as they
+     * are, others with 2 decimals), optional thousands separators and percent. Numbers are
+     * written digit by digit into a caller's char[], without Formatter or locale lookups; the
+     * few values the fast path cannot round exactly (huge, or within a rounding error of a
+     * tie) go through String.format, which the fast path matches everywhere else.
+     */
+    private static final class CellFormat {
+        static final CellFormat GENERAL = new CellFormat(-1, false, false);
+        static final int MAX_DECIMALS = 10;
+        static final int BUFFER = 40; // below 1e15 with 10 decimals, separators, sign and percent
+        private static final double[] POWERS = {1, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10};
+
+        final int decimals; // -1: General
+        final boolean grouping, percent;
+
+        CellFormat(int decimals, boolean grouping, boolean percent) {
+            this.decimals = Math.max(-1, Math.min(MAX_DECIMALS, decimals));
+            this.grouping = grouping;
+            this.percent = percent;
+        }
+
+        boolean isGeneral() {
+            return decimals < 0 && !grouping && !percent;
+        }
+
+        String format(double v) {
+            return format(v, new char[BUFFER]);
+        }
+
+        // buffer: at least BUFFER chars, reused by the caller from one number to the next
+        String format(double v, char[] buffer) {
+            if (Double.isNaN(v)) return "ERROR";
+            if (percent) v *= 100;
+            int digits = decimals >= 0 ? decimals : v == (long) v ? 0 : 2;
+            double scaled = Math.abs(v) * POWERS[digits];
+            if (!(scaled < 1e15) || Math.abs(scaled - Math.floor(scaled) - 0.5) <= 4 * Math.ulp(scaled)) {
+                String text = decimals < 0 && v == (long) v ? String.format(Locale.ROOT, grouping ? "%,d" : "%d", (long) v)
+                        : String.format(Locale.ROOT, (grouping ? "%,." : "%.") + digits + "f", v);
+                return percent ? text + "%" : text;
+            }
+            long units = Math.round(scaled);
+            int pos = buffer.length;
+            if (percent) buffer[--pos] = '%';
+            for (int i = 0; i < digits; i++, units /= 10) buffer[--pos] = (char) ('0' + units % 10);
+            if (digits > 0) buffer[--pos] = '.';
+            int n = 0;
+            do {
+                if (grouping && n > 0 && n % 3 == 0) buffer[--pos] = ',';
+                buffer[--pos] = (char) ('0' + units % 10);
+                units /= 10;
+                n++;
+            } while (units > 0);
+            if (v < 0) buffer[--pos] = '-';
+            return new String(buffer, pos, buffer.length - pos);
+        }
+    }
+
+    /**
+     * Display text of the active sheet's cells as last painted, so repaints and scrolling reuse
+     * it instead of evaluating and formatting every visible cell again. Direct-mapped by
+     * position with room for a few screens of cells; an entry holds while its cell has the same
+     * raw text and, for a formula, while the workbook version is the one it was computed at.
+     * Structural changes move cells under their positions, so they clear it.
+     */
+    private class RenderCache implements SheetListener {
+        private static final int SIZE = 1 << 13;
+
+        private final long[] keys = new long[SIZE];
+        private final String[] raws = new String[SIZE], texts = new String[SIZE];
+        private final long[] versions = new long[SIZE];
+        private final boolean[] stale = new boolean[SIZE];
+        private final char[] buffer = new char[CellFormat.BUFFER];
+        private Sheet target;
+
+        void attach(Sheet next) {
+            if (target != null) target.removeListener(this);
+            target = next;
+            next.addListener(this);
+            clear();
+        }
+
+        void clear() {
+            Arrays.fill(texts, null);
+            Arrays.fill(raws, null);
+        }
+
+        // Text shown for the cell at (r, c) of the active sheet, whose raw value is raw
+        String text(int r, int c, String raw) {
+            CellFormat format = sheet.numberFormat(c);
+            boolean formula = raw.startsWith("=");
+            if (!formula && format == null) return raw;
+            int i = slot(r, c);
+            long key = Sheet.key(r, c);
+            long version = formula ? workbook.version() : -1;
+            // equals, not ==: off-heap sheets build a new String for every read of a number
+            if (texts[i] != null && keys[i] == key && versions[i] == version && raw.equals(raws[i])) return texts[i];
+
+            String text;
+            if (formula) {
+                Object value = calcMode == CALC_MANUAL ? workbook.calculatedValue(sheet, r, c, raw) : evaluateValue(raw);
+                text = value instanceof String ? (String) value : (format != null ? format : CellFormat.GENERAL).format((Double) value, buffer);
+            } else {
+                text = workbook.isNumber(raw) ? format.format(Double.parseDouble(raw), buffer) : raw;
+            }
+            keys[i] = key;
+            raws[i] = raw;
+            versions[i] = version;
+            texts[i] = text;
+            stale[i] = formula && calcMode == CALC_MANUAL && workbook.isStale(sheet, r, c);
+            return text;
+        }
+
+        // Manual calculation: the cell shows a result that predates the latest edit (as of its last text())
+        boolean isStale(int r, int c) {
+            int i = slot(r, c);
+            return texts[i] != null && keys[i] == Sheet.key(r, c) && stale[i];
+        }
+
+        private int slot(int r, int c) {
+            return (r * 31 + c) & (SIZE - 1);
+        }
+
+        @Override
+        public void cellChanged(int pr, int pc, String oldRaw, String newRaw) {
+            // entries check the raw text and the version, so edits need no work here
+        }
+
+        @Override
+        public void linesInserted(boolean rowAxis, int at, int count) {
+            clear();
+        }
+
+        @Override
+        public void linesDeleted(boolean rowAxis, int at, int count) {
+            clear();
+        }
+
+        @Override
+        public void rowsReordered(int from, int[] order) {
+            clear();
+        }
+    }
+
+    // Paints the cached text; in manual calculation, results that predate the latest edit are gray until the next Calculate Now
+    private class CellRenderer extends DefaultTableCellRenderer {
+        private static final long serialVersionUID = 1L;
+
+        private Font plain, italic;
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row, int column) {
+            super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
+            int r = modelRow(row);
+            if (calcMode == CALC_MANUAL && !showFormulas && r >= 0 && r < rows && column < cols && renderCache.isStale(r, column)) {
+                if (getFont() != plain) {
+                    plain = getFont();
+                    italic = plain.deriveFont(Font.ITALIC);
+                }
+                setForeground(Color.GRAY);
+                setFont(italic);
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Turns changes of the active sheet into precise table model events, whatever made them: an
+     * edit, undo, a sort or a live PivotTable. Inserted and deleted rows become row events, and
+     * inserted and deleted columns change the column model in place, so the other columns keep
+     * their widths; these go out when the operation calls publish(), or with the next frame.
+     * Cell writes only grow a dirty rectangle that is sent at most once per frame, so a paste or
+     * a refresh of thousands of cells costs one update event and one repaint of that region.
+     */
+    private class TableEvents implements SheetListener {
+        private static final int ROWS_INSERTED = 0, ROWS_DELETED = 1, COLUMNS_INSERTED = 2, COLUMNS_DELETED = 3, ROWS_REORDERED = 4;
+
+        private final javax.swing.Timer frame = new javax.swing.Timer(16, e -> flush());
+        private final List<int[]> structure = new ArrayList<>(); // {kind, at, count} in the order they happened
+        private int top, left, bottom, right; // dirty cells, empty when top > bottom
+        private Sheet target;
+
+        TableEvents() {
+            frame.setRepeats(false);
+            clean();
+        }
+
+        void attach(Sheet next) {
+            if (target != null) target.removeListener(this);
+            target = next;
+            next.addListener(this);
+            structure.clear();
+            clean();
+        }
+
+        @Override
+        public void cellChanged(int pr, int pc, String oldRaw, String newRaw) {
+            int r = target.rowIndexOf(pr), c = target.colIndexOf(pc);
+            if (r < 0 || c < 0) return;
+            top = Math.min(top, r);
+            bottom = Math.max(bottom, r);
+            left = Math.min(left, c);
+            right = Math.max(right, c);
+            frame.start();
+        }
+
+        @Override
+        public void linesInserted(boolean rowAxis, int at, int count) {
+            changed(rowAxis ? ROWS_INSERTED : COLUMNS_INSERTED, at, count);
+        }
+
+        @Override
+        public void linesDeleted(boolean rowAxis, int at, int count) {
+            changed(rowAxis ? ROWS_DELETED : COLUMNS_DELETED, at, count);
+        }
+
+        @Override
+        public void rowsReordered(int from, int[] order) {
+            changed(ROWS_REORDERED, from, order.length);
+        }
+
+        private void changed(int kind, int at, int count) {
+            structure.add(new int[]{kind, at, count});
+            if (top <= bottom) {
+                // collected cells have moved; the structural event repaints them anyway
+                top = left = 0;
+                bottom = right = Integer.MAX_VALUE;
+            }
+            frame.start();
+        }
+
+        // Send the structural changes so far, so that the table and its selection follow them right away
+        void publish() {
+            syncSize();
+            if (structure.isEmpty()) return;
+            int selRow = table.getSelectedRow(), selCol = table.getSelectedColumn();
+            for (int[] change : structure) {
+                int at = change[1], last = change[1] + change[2] - 1;
+                switch (change[0]) {
+                    case ROWS_INSERTED: model.fireTableRowsInserted(at, last); break;
+                    case ROWS_DELETED: model.fireTableRowsDeleted(at, last); break;
+                    case COLUMNS_INSERTED: columnsInserted(at, change[2]); break;
+                    case COLUMNS_DELETED: columnsDeleted(at, change[2]); break;
+                    default:
+                        filterSorter.refilter(); // the filtered rows are now elsewhere
+                        model.fireTableRowsUpdated(at, Math.min(last, rows - 1));
+                }
+            }
+            structure.clear();
+            rowHeaderTable.revalidate();
+            rowHeaderTable.repaint();
+            // deleting the selected lines leaves nothing selected: select near where it was
+            if ((table.getSelectedRow() < 0 || table.getSelectedColumn() < 0) && table.getRowCount() > 0 && cols > 0) {
+                selRow = Math.max(0, Math.min(selRow, table.getRowCount() - 1));
+                selCol = Math.max(0, Math.min(selCol, cols - 1));
+                table.setRowSelectionInterval(selRow, selRow);
+                table.setColumnSelectionInterval(selCol, selCol);
+            }
+            updateFormulaBar();
+        }
+
+        // Once per frame: the structural changes, then one update for the cells written meanwhile
+        private void flush() {
+            publish();
+            bottom = Math.min(bottom, rows - 1);
+            right = Math.min(right, cols - 1);
+            if (top > bottom || left > right) {
+                clean();
+                return;
+            }
+            model.fireTableChanged(new TableModelEvent(model, top, bottom, left == right ? left : TableModelEvent.ALL_COLUMNS));
+            int row = modelRow(table.getSelectedRow()), col = table.getSelectedColumn();
+            if (row >= top && row <= bottom && col >= left && col <= right) updateFormulaBar();
+            clean();
+            // results that read the written cells may show anywhere: repaint the visible rows holding formulas
+            Rectangle visible = table.getVisibleRect();
+            int first = table.rowAtPoint(new Point(0, visible.y));
+            int last = table.rowAtPoint(new Point(0, visible.y + visible.height - 1));
+            if (first < 0) return;
+            if (last < 0) last = table.getRowCount() - 1;
+            int lo = -1, hi = -1;
+            for (int v = first; v <= last; v++) {
+                if (!target.hasFormulas(modelRow(v))) continue;
+                if (lo < 0) lo = v;
+                hi = v;
+            }
+            if (lo >= 0) table.repaint(table.getCellRect(lo, 0, true).union(table.getCellRect(hi, table.getColumnCount() - 1, true)));
+        }
+
+        private void clean() {
+            top = left = Integer.MAX_VALUE;
+            bottom = right = -1;
+        }
+
+        // New columns get fresh TableColumns; the ones after them keep their widths and move along
+        private void columnsInserted(int at, int count) {
+            TableColumnModel cm = table.getColumnModel();
+            for (int i = 0; i < cm.getColumnCount(); i++) {
+                TableColumn column = cm.getColumn(i);
+                if (column.getModelIndex() >= at) column.setModelIndex(column.getModelIndex() + count);
+            }
+            for (int c = at; c < at + count; c++) {
+                TableColumn column = new TableColumn(c);
+                sizeColumn(column);
+                cm.addColumn(column);
+                cm.moveColumn(cm.getColumnCount() - 1, c);
+            }
+            relabel(at);
+        }
+
+        private void columnsDeleted(int at, int count) {
+            TableColumnModel cm = table.getColumnModel();
+            for (int i = cm.getColumnCount() - 1; i >= 0; i--) {
+                TableColumn column = cm.getColumn(i);
+                int index = column.getModelIndex();
+                if (index >= at + count) column.setModelIndex(index - count);
+                else if (index >= at) cm.removeColumn(column);
+            }
+            relabel(at);
+        }
+
+        // Column letters from position at on changed with the shift
+        private void relabel(int at) {
+            TableColumnModel cm = table.getColumnModel();
+            for (int i = at; i < cm.getColumnCount(); i++) cm.getColumn(i).setHeaderValue(columnHeader(i));
+            table.getTableHeader().repaint();
+        }
+    }
+
+    /**
+     * Order-statistic tree (implicit treap) that maps logical row/column positions to stable
+     * physical ids. Node i of the treap is physical id i, so position -> id and id -> position
+     * are both O(log n), and inserting or removing at any position never moves cell data.
+     */
+    private static class IndexMap {
+        private static final int DETACHED = -2;
+        private int[] left = new int[16], right = new int[16], parent = new int[16];
+        private int[] size = new int[16], prio = new int[16];
+        private int root = -1, nextId = 0;
+        private int seed = 0x2545F491;
+        private int splitLeft, splitRight;
+
+        IndexMap(int count) {
+            root = build(allocate(count));
+        }
+
+        int size() {
+            return root == -1 ? 0 : size[root];
+        }
+
+        // Upper bound (exclusive) of the physical ids handed out so far
+        int capacity() {
+            return nextId;
+        }
+
+        // Fresh physical ids that are not yet part of the order
+        int[] allocate(int count) {
+            ensureCapacity(nextId + count);
+            int[] ids = new int[count];
+            for (int i = 0; i < count; i++) {
+                int id = nextId++;
+                ids[i] = id;
+                parent[id] = DETACHED;
+                seed ^= seed << 13;
+                seed ^= seed >>> 17;
+                seed ^= seed << 5;
+                prio[id] = seed;
+            }
+            return ids;
+        }
+
+        int get(int index) {
+            int t = root;
+            while (t != -1) {
+                int ls = sizeOf(left[t]);
+                if (index < ls) {
+                    t = left[t];
+                } else if (index == ls) {
+                    return t;
+                } else {
+                    index -= ls + 1;
+                    t = right[t];
+                }
+            }
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+
+        // Current position of a physical id, or -1 if it has been removed
+        int indexOf(int id) {
+            if (id < 0 || id >= nextId || parent[id] == DETACHED) return -1;
+            int index = sizeOf(left[id]);
+            for (int t = id; parent[t] != -1; t = parent[t]) {
+                int p = parent[t];
+                if (right[p] == t) index += sizeOf(left[p]) + 1;
+            }
+            return index;
+        }
+
+        // Insert (allocated or previously removed) ids so that the first one ends up at index
+        void insert(int index, int[] ids) {
+            if (ids.length == 0) return;
+            split(root, index);
+            int l = splitLeft, r = splitRight;
+            root = merge(merge(l, build(ids)), r);
+            parent[root] = -1;
+        }
+
+        // Remove count positions starting at index; returns their ids in order
+        int[] remove(int index, int count) {
+            split(root, index);
+            int l = splitLeft;
+            split(splitRight, count);
+            int mid = splitLeft, r = splitRight;
+            int[] ids = new int[sizeOf(mid)];
+            fill(mid, 0, 0, ids.length, ids);
+            for (int id : ids) parent[id] = DETACHED;
+            root = merge(l, r);
+            if (root != -1) parent[root] = -1;
+            return ids;
+        }
+
+        // Physical ids of positions [from, to), in order
+        int[] toArray(int from, int to) {
+            int[] out = new int[Math.max(0, to - from)];
+            if (out.length > 0) fill(root, 0, from, to, out);
+            return out;
+        }
+
+        private void fill(int t, int offset, int from, int to, int[] out) {
+            if (t == -1) return;
+            int pos = offset + sizeOf(left[t]);
+            if (from < pos) fill(left[t], offset, from, to, out);
+            if (pos >= from && pos < to) out[pos - from] = t;
+            if (pos + 1 < to) fill(right[t], pos + 1, from, to, out);
+        }
+
+        // Cartesian-tree construction in O(n) from ids already in the wanted order
+        private int build(int[] ids) {
+            int[] stack = new int[ids.length];
+            int top = -1;
+            for (int id : ids) {
+                left[id] = right[id] = -1;
+                size[id] = 1;
+                int last = -1;
+                while (top >= 0 && prio[stack[top]] < prio[id]) {
+                    last = stack[top--];
+                    pull(last);
+                }
+                setLeft(id, last);
+                if (top >= 0) setRight(stack[top], id);
+                else parent[id] = -1;
+                stack[++top] = id;
+            }
+            while (top >= 0) pull(stack[top--]);
+            return ids.length == 0 ? -1 : stack[0];
+        }
+
+        private void split(int t, int k) {
+            if (t == -1) {
+                splitLeft = splitRight = -1;
+                return;
+            }
+            if (sizeOf(left[t]) >= k) {
+                split(left[t], k);
+                setLeft(t, splitRight);
+                splitRight = t;
+            } else {
+                split(right[t], k - sizeOf(left[t]) - 1);
+                setRight(t, splitLeft);
+                splitLeft = t;
+            }
+            pull(t);
+        }
+
+        private int merge(int a, int b) {
+            if (a == -1) return b;
+            if (b == -1) return a;
+            if (prio[a] > prio[b]) {
+                setRight(a, merge(right[a], b));
+                pull(a);
+                return a;
+            }
+            setLeft(b, merge(a, left[b]));
+            pull(b);
+            return b;
+        }
+
+        private void setLeft(int t, int child) {
+            left[t] = child;
+            if (child != -1) parent[child] = t;
+        }
+
+        private void setRight(int t, int child) {
+            right[t] = child;
+            if (child != -1) parent[child] = t;
+        }
+
+        private void pull(int t) {
+            size[t] = 1 + sizeOf(left[t]) + sizeOf(right[t]);
+        }
+
+        private int sizeOf(int t) {
+            return t == -1 ? 0 : size[t];
+        }
+
+        private void ensureCapacity(int needed) {
+            if (needed <= left.length) return;
+            int cap = Math.max(needed, left.length * 2);
+            left = Arrays.copyOf(left, cap);
+            right = Arrays.copyOf(right, cap);
+            parent = Arrays.copyOf(parent, cap);
+            size = Arrays.copyOf(size, cap);
+            prio = Arrays.copyOf(prio, cap);
+        }
+    }
+
+    /**
+     * Cell storage addressed by logical (row, column). Rows and columns live in stable physical
+     * slots and two IndexMaps translate positions, so structural edits are O(log n) and never copy
+     * cell data. Formulas anchor their references to physical slots, so they follow inserted and
+     * deleted rows/columns without being rewritten; the reverse index below (physical row/column ->
+     * formula cells referencing it) is the dependency graph used to repair ranges on deletion.
+     */
+    private static class Sheet {
+        private static final boolean OFF_HEAP = Boolean.getBoolean("miniexcel.offHeap");
+        private final IndexMap rowMap, colMap;
+        private final CellStore cells; // [physical row][physical column] -> String or Formula
+        private int structureVersion = 0;
+        private long modCount = 0; // bumped by every cell or structural change
+        private int[] formulaCount = new int[16]; // formulas stored in each physical row
+        private final Map<Integer, Set<Long>> rowDependents = new HashMap<>();
+        private final Map<Integer, Set<Long>> colDependents = new HashMap<>();
+        private final List<SheetListener> listeners = new ArrayList<>();
+        // Snapshots: writes hold the lock while a change is half done, rows remember their last change
+        private final StampedLock guard = new StampedLock();
+        private long[] rowStamp = new long[16]; // modCount right after the latest change to each physical row
+        private final List<WeakReference<Snapshot>> snapshots = new ArrayList<>();
+        private final Map<Integer, CellFormat> numberFormats = new HashMap<>(); // by physical column; display only, not saved
+
+        Sheet(int rows, int cols) {
+            this(rows, cols, OFF_HEAP);
+        }
+
+        // offHeap keeps the cell values in direct buffers (-Dminiexcel.offHeap=true makes it the default)
+        Sheet(int rows, int cols, boolean offHeap) {
+            rowMap = new IndexMap(rows);
+            colMap = new IndexMap(cols);
+            cells = offHeap ? new OffHeapCells() : new HeapCells(colMap);
+        }
+
+        int rowCount() {
+            return rowMap.size();
+        }
+
+        int colCount() {
+            return colMap.size();
+        }
+
+        String get(int r, int c) {
+            return getPhysical(rowMap.get(r), colMap.get(c));
+        }
+
+        // Current position of a physical row/column, or -1 once it has been deleted
+        int rowIndexOf(int pr) {
+            return rowMap.indexOf(pr);
+        }
+
+        int colIndexOf(int pc) {
+            return colMap.indexOf(pc);
+        }
+
+        // Number format of column c, null for General; it follows the column when columns move
+        CellFormat numberFormat(int c) {
+            return numberFormats.isEmpty() ? null : numberFormats.get(colMap.get(c));
+        }
+
+        // Physical ids of the live columns that have a number format
+        int[] formattedColumns() {
+            int[] ids = new int[numberFormats.size()];
+            int n = 0;
+            for (int pc : numberFormats.keySet()) {
+                if (colMap.indexOf(pc) >= 0) ids[n++] = pc;
+            }
+            return Arrays.copyOf(ids, n);
+        }
+
+        void setNumberFormat(int c, CellFormat format) {
+            if (format == null) numberFormats.remove(colMap.get(c));
+            else numberFormats.put(colMap.get(c), format);
+        }
+
+        // Whether row r holds any formula
+        boolean hasFormulas(int r) {
+            int pr = rowMap.get(r);
+            return pr < formulaCount.length && formulaCount[pr] > 0;
+        }
+
+        void addListener(SheetListener listener) {
+            listeners.add(listener);
+        }
+
+        void removeListener(SheetListener listener) {
+            listeners.remove(listener);
+        }
+
+        // Physical ids of rows/columns [from, to), for iterating ranges without per-cell lookups
+        int[] rowIds(int from, int to) {
+            return rowMap.toArray(from, to);
+        }
+
+        int[] colIds(int from, int to) {
+            return colMap.toArray(from, to);
+        }
+
+        // A consistent view of the current values for readers on other threads; take it on the thread that edits
+        Snapshot snapshot() {
+            Snapshot view = new Snapshot(this);
+            snapshots.add(new WeakReference<>(view));
+            return view;
+        }
+
+        String getPhysical(int pr, int pc) {
+            Object v = cell(pr, pc);
+            if (v == null) return "";
+            if (v instanceof Formula) return ((Formula) v).text(this);
+            return (String) v;
+        }
+
+        // Store a raw value and return the previous one
+        String set(int r, int c, String value) {
+            int pr = rowMap.get(r), pc = colMap.get(c);
+            String old = getPhysical(pr, pc);
+            long key = key(pr, pc);
+            preserveRow(pr);
+            long stamp = beginChange();
+            try {
+                Object prev = cell(pr, pc);
+                if (prev instanceof Formula) {
+                    unregister(key, (Formula) prev);
+                    formulaCount[pr]--;
+                }
+                Object next = value == null || value.isEmpty() ? null : value;
+                if (value != null && value.startsWith("=")) {
+                    Formula f = Formula.parse(value, this);
+                    register(key, f);
+                    next = f;
+                    if (pr >= formulaCount.length) formulaCount = Arrays.copyOf(formulaCount, Math.max(pr + 1, formulaCount.length * 2));
+                    formulaCount[pr]++;
+                }
+                store(pr, pc, next);
+                modCount++;
+            } finally {
+                endChange(stamp);
+            }
+            for (SheetListener listener : listeners) listener.cellChanged(pr, pc, old, value == null ? "" : value);
+            return old;
+        }
+
+        // Physical keys (see key()) of the formula cells at live positions
+        long[] formulaCells() {
+            long[] keys = new long[16];
+            int n = 0;
+            for (int pr = 0; pr < Math.min(formulaCount.length, cells.rowLimit()); pr++) {
+                if (formulaCount[pr] == 0 || rowMap.indexOf(pr) < 0) continue;
+                for (int pc = 0; pc < cells.colLimit(pr); pc++) {
+                    if (!(cell(pr, pc) instanceof Formula) || colMap.indexOf(pc) < 0) continue;
+                    if (n == keys.length) keys = Arrays.copyOf(keys, n * 2);
+                    keys[n++] = key(pr, pc);
+                }
+            }
+            return Arrays.copyOf(keys, n);
+        }
+
+        // Report every stored cell (of one physical column, or all when pc < 0) as a change from
+        // blank, including cells of deleted rows/columns that undo can bring back
+        void replay(int pc, SheetListener listener) {
+            for (int pr = 0; pr < cells.rowLimit(); pr++) {
+                int limit = cells.colLimit(pr);
+                int from = pc < 0 ? 0 : pc, to = pc < 0 ? limit : Math.min(pc + 1, limit);
+                for (int c = from; c < to; c++) {
+                    if (cells.get(pr, c) != null) listener.cellChanged(pr, c, "", getPhysical(pr, c));
+                }
+            }
+        }
+
+        int[] insertRows(int at, int count) {
+            int[] ids = rowMap.allocate(count);
+            insert(true, at, ids);
+            return ids;
+        }
+
+        int[] insertColumns(int at, int count) {
+            int[] ids = colMap.allocate(count);
+            insert(false, at, ids);
+            return ids;
+        }
+
+        // Put back previously removed (or freshly allocated) rows/columns at a position
+        void insert(boolean rowAxis, int at, int[] ids) {
+            preserveFormulaRows();
+            long stamp = beginChange();
+            try {
+                (rowAxis ? rowMap : colMap).insert(at, ids);
+                structureVersion++;
+                modCount++;
+            } finally {
+                endChange(stamp);
+            }
+            for (SheetListener listener : listeners) listener.linesInserted(rowAxis, at, ids.length);
+        }
+
+        /**
+         * Remove rows/columns [at, at + count). Ranges with exactly one corner in the removed
+         * block shrink to the surviving part, like Excel; the changes are kept in the returned
+         * Removal so that restore() can undo them.
+         */
+        Removal delete(boolean rowAxis, int at, int count) {
+            preserveFormulaRows();
+            Removal removal;
+            long stamp = beginChange();
+            try {
+                removal = remove(rowAxis, at, count);
+            } finally {
+                endChange(stamp);
+            }
+            for (SheetListener listener : listeners) listener.linesDeleted(rowAxis, at, count);
+            return removal;
+        }
+
+        private Removal remove(boolean rowAxis, int at, int count) {
+            IndexMap map = rowAxis ? rowMap : colMap;
+            int[] ids = map.remove(at, count);
+            structureVersion++;
+            modCount++;
+            BitSet removed = new BitSet();
+            Set<Long> affected = new HashSet<>();
+            Map<Integer, Set<Long>> dependents = rowAxis ? rowDependents : colDependents;
+            for (int id : ids) {
+                removed.set(id);
+                Set<Long> refs = dependents.get(id);
+                if (refs != null) affected.addAll(refs);
+            }
+            List<Object[]> changes = new ArrayList<>();
+            for (long key : affected) {
+                Formula f = (Formula) cell((int) (key >>> 32), (int) key);
+                int[] anchors = rowAxis ? f.rowAnchor : f.colAnchor;
+                boolean touched = false;
+                for (int i = 0; i + 1 < anchors.length; i++) {
+                    if (!f.rangeStart[i]) continue;
+                    boolean startGone = anchors[i] >= 0 && removed.get(anchors[i]);
+                    boolean endGone = anchors[i + 1] >= 0 && removed.get(anchors[i + 1]);
+                    int corner = -1, target = -1;
+                    if (startGone && !endGone && at < map.size()) {
+                        corner = i;
+                        target = map.get(at);
+                    } else if (endGone && !startGone && at > 0) {
+                        corner = i + 1;
+                        target = map.get(at - 1);
+                    }
+                    if (corner < 0) continue;
+                    if (!touched) unregister(key, f);
+                    touched = true;
+                    changes.add(new Object[]{f, key, corner, anchors[corner]});
+                    anchors[corner] = target;
+                }
+                if (touched) {
+                    register(key, f);
+                    f.textVersion = -1;
+                }
+            }
+            return new Removal(rowAxis, at, ids, changes);
+        }
+
+        void restore(Removal removal) {
+            preserveFormulaRows();
+            long stamp = beginChange();
+            try {
+                (removal.rowAxis ? rowMap : colMap).insert(removal.at, removal.ids);
+                structureVersion++;
+                modCount++;
+                revertAnchors(removal.rowAxis, removal.changes);
+            } finally {
+                endChange(stamp);
+            }
+            for (SheetListener listener : listeners) listener.linesInserted(removal.rowAxis, removal.at, removal.ids.length);
+        }
+
+        /**
+         * Reorder rows [from, from + order.length) so that new position i holds the row that was at
+         * from + order[i]. Only the row index is remapped. References keep Excel's sort semantics:
+         * from outside the block (and $-rows inside it) they keep pointing at the same positions,
+         * relative row references of moved formulas shift with their cell. Those are found through
+         * the dependency index and the per-row formula counts instead of scanning the sheet.
+         */
+        Reorder reorderRows(int from, int[] order) {
+            preserveFormulaRows();
+            Reorder reorder;
+            long stamp = beginChange();
+            try {
+                reorder = permute(from, order);
+            } finally {
+                endChange(stamp);
+            }
+            for (SheetListener listener : listeners) listener.rowsReordered(from, order);
+            return reorder;
+        }
+
+        private Reorder permute(int from, int[] order) {
+            int n = order.length;
+            int[] oldIds = rowMap.remove(from, n);
+            int[] newIds = new int[n];
+            for (int i = 0; i < n; i++) newIds[i] = oldIds[order[i]];
+            rowMap.insert(from, newIds);
+            structureVersion++;
+            modCount++;
+
+            Set<Long> affected = new HashSet<>();
+            for (int i = 0; i < n; i++) {
+                if (order[i] == i) continue;
+                int id = newIds[i];
+                Set<Long> refs = rowDependents.get(id);
+                if (refs != null) affected.addAll(refs);
+                if (id < formulaCount.length && formulaCount[id] > 0) {
+                    for (int pc = 0; pc < cells.colLimit(id); pc++) {
+                        if (cells.get(id, pc) instanceof Formula) affected.add(key(id, pc));
+                    }
+                }
+            }
+            List<Object[]> changes = new ArrayList<>();
+            for (long key : affected) {
+                int pr = (int) (key >>> 32);
+                Formula f = (Formula) cell(pr, (int) key);
+                int newPos = rowMap.indexOf(pr);
+                int delta = newPos >= from && newPos < from + n ? newPos - (from + order[newPos - from]) : 0;
+                boolean touched = false;
+                for (int i = 0; i < f.rowAnchor.length; i++) {
+                    int anchor = f.rowAnchor[i];
+                    if (anchor < 0) continue;
+                    int pos = rowMap.indexOf(anchor);
+                    if (pos < 0) continue;
+                    int oldPos = pos >= from && pos < from + n ? from + order[pos - from] : pos;
+                    int wanted = f.absRow[i] ? oldPos : oldPos + delta;
+                    int target = wanted < 0 ? Formula.REF_ERROR
+                            : wanted < rowMap.size() ? rowMap.get(wanted) : -(wanted + 1);
+                    if (target == anchor) continue;
+                    if (!touched) unregister(key, f);
+                    touched = true;
+                    changes.add(new Object[]{f, key, i, anchor});
+                    f.rowAnchor[i] = target;
+                }
+                if (touched) {
+                    register(key, f);
+                    f.textVersion = -1;
+                }
+            }
+            return new Reorder(from, order, changes);
+        }
+
+        void undoReorder(Reorder reorder) {
+            int n = reorder.order.length;
+            preserveFormulaRows();
+            long stamp = beginChange();
+            try {
+                int[] ids = rowMap.remove(reorder.from, n);
+                int[] oldIds = new int[n];
+                for (int i = 0; i < n; i++) oldIds[reorder.order[i]] = ids[i];
+                rowMap.insert(reorder.from, oldIds);
+                structureVersion++;
+                modCount++;
+                revertAnchors(true, reorder.changes);
+            } finally {
+                endChange(stamp);
+            }
+            if (listeners.isEmpty()) return;
+            int[] inverse = new int[n];
+            for (int i = 0; i < n; i++) inverse[reorder.order[i]] = i;
+            for (SheetListener listener : listeners) listener.rowsReordered(reorder.from, inverse);
+        }
+
+        private void revertAnchors(boolean rowAxis, List<Object[]> changes) {
+            for (int i = changes.size() - 1; i >= 0; i--) {
+                Object[] change = changes.get(i);
+                Formula f = (Formula) change[0];
+                long key = (Long) change[1];
+                unregister(key, f);
+                (rowAxis ? f.rowAnchor : f.colAnchor)[(Integer) change[2]] = (Integer) change[3];
+                register(key, f);
+                f.textVersion = -1;
+            }
+        }
+
+        private Object cell(int pr, int pc) {
+            return cells.get(pr, pc);
+        }
+
+        // Lock out snapshot readers while a change is half done; with none open there is nobody to lock out
+        private long beginChange() {
+            return snapshots.isEmpty() ? 0 : guard.writeLock();
+        }
+
+        private void endChange(long stamp) {
+            if (stamp != 0) guard.unlockWrite(stamp);
+        }
+
+        // Before row pr changes: hand its current values to every open snapshot that still shares it
+        private void preserveRow(int pr) {
+            if (snapshots.isEmpty()) return;
+            long changed = pr < rowStamp.length ? rowStamp[pr] : 0;
+            String[] copy = null;
+            for (Iterator<WeakReference<Snapshot>> it = snapshots.iterator(); it.hasNext(); ) {
+                Snapshot view = it.next().get();
+                if (view == null || view.closed) {
+                    it.remove();
+                } else if (changed <= view.version) { // else it got its copy at an earlier change
+                    if (copy == null) copy = rowTexts(pr);
+                    view.rows.putIfAbsent(pr, copy);
+                }
+            }
+            if (pr >= rowStamp.length) rowStamp = Arrays.copyOf(rowStamp, Math.max(pr + 1, rowStamp.length * 2));
+            rowStamp[pr] = modCount + 1;
+        }
+
+        // Before a structural edit: it changes the text of formulas, so their rows are copied first
+        private void preserveFormulaRows() {
+            if (snapshots.isEmpty()) return;
+            for (int pr = 0; pr < formulaCount.length; pr++) {
+                if (formulaCount[pr] > 0) preserveRow(pr);
+            }
+        }
+
+        private String[] rowTexts(int pr) {
+            String[] texts = new String[pr < cells.rowLimit() ? cells.colLimit(pr) : 0];
+            for (int pc = 0; pc < texts.length; pc++) {
+                if (cell(pr, pc) != null) texts[pc] = getPhysical(pr, pc);
+            }
+            return texts;
+        }
+
+        private void store(int pr, int pc, Object value) {
+            cells.put(pr, pc, value);
+        }
+
+        // Rough heap footprint, what the workbook's budget is measured in
+        long estimatedBytes() {
+            return cells.heapBytes();
+        }
+
+        private void register(long key, Formula f) {
+            for (int a : f.rowAnchor) if (a >= 0) rowDependents.computeIfAbsent(a, k -> new HashSet<>()).add(key);
+            for (int a : f.colAnchor) if (a >= 0) colDependents.computeIfAbsent(a, k -> new HashSet<>()).add(key);
+        }
+
+        private void unregister(long key, Formula f) {
+            for (int a : f.rowAnchor) removeDependent(rowDependents, a, key);
+            for (int a : f.colAnchor) removeDependent(colDependents, a, key);
+        }
+
+        private static void removeDependent(Map<Integer, Set<Long>> dependents, int anchor, long key) {
+            Set<Long> refs = dependents.get(anchor);
+            if (refs != null && refs.remove(key) && refs.isEmpty()) dependents.remove(anchor);
+        }
+
+        static long key(int pr, int pc) {
+            return ((long) pr << 32) | (pc & 0xffffffffL);
+        }
+
+        // A row permutation applied by reorderRows(), with the references it re-anchored
+        static class Reorder {
+            final int from;
+            final int[] order;
+            final List<Object[]> changes; // {formula, cell key, reference index, previous anchor}
+
+            Reorder(int from, int[] order, List<Object[]> changes) {
+                this.from = from;
+                this.order = order;
+                this.changes = changes;
+            }
+        }
+
+        /**
+         * The sheet's raw values as of one version, readable from any thread while the sheet keeps
+         * changing. Taking one copies only the row and column order. Cell rows are shared with the
+         * live sheet until the writer is about to change one (a row's stamp is older than the
+         * snapshot): then the row's values are copied into every snapshot still sharing it, so the
+         * cost is one row per changed row, paid only while snapshots are open. Shared rows are read
+         * under an optimistic stamp that is validated afterwards, so a reader never holds up the
+         * writer; it just reads again in the rare case a change overlapped. Copies go away with
+         * close(), or with the snapshot itself once nothing refers to it.
+         */
+        static class Snapshot implements AutoCloseable {
+            final long version;
+            private final Sheet sheet;
+            private final int[] rowIds, colIds;
+            private final Map<Integer, String[]> rows = new ConcurrentHashMap<>(); // physical row -> values at version
+            private int[] rowPos, colPos; // physical id -> position at version, for formula text
+            private volatile boolean closed;
+
+            private Snapshot(Sheet sheet) {
+                this.sheet = sheet;
+                version = sheet.modCount;
+                rowIds = sheet.rowIds(0, sheet.rowCount());
+                colIds = sheet.colIds(0, sheet.colCount());
+            }
+
+            int rowCount() {
+                return rowIds.length;
+            }
+
+            int colCount() {
+                return colIds.length;
+            }
+
+            String get(int r, int c) {
+                int pr = rowIds[r], pc = colIds[c];
+                while (true) {
+                    String[] copy = rows.get(pr);
+                    if (copy != null) return pc < copy.length && copy[pc] != null ? copy[pc] : "";
+                    long stamp = sheet.guard.tryOptimisticRead();
+                    if (stamp == 0) {
+                        Thread.onSpinWait(); // a change is being applied
+                        continue;
+                    }
+                    String value;
+                    try {
+                        value = shared(pr, pc);
+                    } catch (RuntimeException overlapped) {
+                        value = null; // read half-changed storage; validate() fails below
+                    }
+                    // a change finished since the first lookup would have left its copy behind
+                    if (value != null && sheet.guard.validate(stamp) && !rows.containsKey(pr)) return value;
+                }
+            }
+
+            // A cell of a row nobody has changed since this version, read from the live storage
+            private String shared(int pr, int pc) {
+                Object v = sheet.cells.get(pr, pc);
+                if (v == null) return "";
+                if (!(v instanceof Formula)) return (String) v;
+                if (rowPos == null) {
+                    rowPos = positions(rowIds);
+                    colPos = positions(colIds);
+                }
+                return ((Formula) v).render(id -> id < rowPos.length ? rowPos[id] : -1, id -> id < colPos.length ? colPos[id] : -1);
+            }
+
+            private static int[] positions(int[] ids) {
+                int size = 0;
+                for (int id : ids) size = Math.max(size, id + 1);
+                int[] pos = new int[size];
+                Arrays.fill(pos, -1);
+                for (int i = 0; i < ids.length; i++) pos[ids[i]] = i;
+                return pos;
+            }
+
+            @Override
+            public void close() {
+                closed = true;
+                rows.clear();
+            }
+        }
+
+        // Rows/columns taken out by delete(), with the range corners that were moved
+        static class Removal {
+            final boolean rowAxis;
+            final int at;
+            final int[] ids;
+            final List<Object[]> changes; // {formula, cell key, reference index, previous anchor}
+
+            Removal(boolean rowAxis, int at, int[] ids, List<Object[]> changes) {
+                this.rowAxis = rowAxis;
+                this.at = at;
+                this.ids = ids;
+                this.changes = changes;
+            }
+        }
+    }
+
+    // Physical cells of a Sheet: a String or a Formula per (row, column) slot, null when blank
+    private interface CellStore {
+        Object get(int pr, int pc);
+
+        void put(int pr, int pc, Object value);
+
+        // Rows [0, rowLimit()) and, in row pr, columns [0, colLimit(pr)) hold every stored cell
+        int rowLimit();
+
+        int colLimit(int pr);
+
+        // Rough heap footprint, what the workbook's budget is measured in
+        long heapBytes();
+    }
+
+    // Cells as Java objects in row arrays, allocated on first write to a row
+    private static class HeapCells implements CellStore {
+        private final IndexMap colMap; // rows are sized for all of its columns
+        private Object[][] data = new Object[16][]; // [physical row][physical column] -> String or Formula
+        private long cellBytes = 0; // rough heap footprint of the stored cells
+
+        HeapCells(IndexMap colMap) {
+            this.colMap = colMap;
+        }
+
+        @Override
+        public Object get(int pr, int pc) {
+            if (pr >= data.length) return null;
+            Object[] row = data[pr];
+            return row == null || pc >= row.length ? null : row[pc];
+        }
+
+        @Override
+        public void put(int pr, int pc, Object value) {
+            if (pr >= data.length) {
+                if (value == null) return;
+                data = Arrays.copyOf(data, Math.max(pr + 1, data.length * 2));
+            }
+            Object[] row = data[pr];
+            if (row == null || pc >= row.length) {
+                if (value == null) return;
+                int length = row == null ? 0 : row.length;
+                row = row == null ? new Object[Math.max(pc + 1, colMap.capacity())]
+                        : Arrays.copyOf(row, Math.max(pc + 1, colMap.capacity()));
+                cellBytes += (row.length - length) * 8L + (length == 0 ? 16 : 0);
+                data[pr] = row;
+            }
+            cellBytes += bytesOf(value) - bytesOf(row[pc]);
+            row[pc] = value;
+        }
+
+        @Override
+        public int rowLimit() {
+            return data.length;
+        }
+
+        @Override
+        public int colLimit(int pr) {
+            Object[] row = data[pr];
+            return row == null ? 0 : row.length;
+        }
+
+        // A String is a header plus two bytes a char; a parsed formula costs a few hundred bytes
+        private static long bytesOf(Object value) {
+            if (value == null) return 0;
+            return value instanceof Formula ? 256 : 48 + 2L * ((String) value).length();
+        }
+
+        @Override
+        public long heapBytes() {
+            return cellBytes + data.length * 8L;
+        }
+    }
+
+    /**
+     * Cells outside the Java heap, in direct buffers: each physical column is a list of chunks of
+     * CHUNK rows holding a tag byte and an 8-byte payload per cell. Numbers are stored as doubles,
+     * but only when they print back to the same text, so every raw value round-trips unchanged;
+     * other text is UTF-8 in an append-only arena that is compacted once it is mostly garbage.
+     * Only formulas stay on the heap, parsed, so a sheet of constants costs the GC almost nothing.
+     */
+    private static class OffHeapCells implements CellStore {
+        private static final int CHUNK_BITS = 12, CHUNK = 1 << CHUNK_BITS, SLOT = 9;
+        private static final int PAGE = 1 << 20;
+        private static final byte BLANK = 0, NUMBER = 1, TEXT = 2, FORMULA = 3;
+        private ByteBuffer[][] columns = new ByteBuffer[0][]; // [pc][pr >> CHUNK_BITS]
+        private final Map<Long, Formula> formulas = new HashMap<>();
+        private List<ByteBuffer> arena = new ArrayList<>();
+        private long arenaUsed = 0, arenaLive = 0; // bytes appended, bytes still referenced
+        private int rowLimit = 0;
+
+        @Override
+        public Object get(int pr, int pc) {
+            ByteBuffer chunk = chunk(pr, pc, false);
+            if (chunk == null) return null;
+            int at = (pr & (CHUNK - 1)) * SLOT;
+            switch (chunk.get(at)) {
+                case NUMBER: return format(chunk.getDouble(at + 1));
+                case TEXT: return text(chunk.getLong(at + 1));
+                case FORMULA: return formulas.get(Sheet.key(pr, pc));
+                default: return null;
+            }
+        }
+
+        @Override
+        public void put(int pr, int pc, Object value) {
+            ByteBuffer chunk = chunk(pr, pc, value != null);
+            if (chunk == null) return;
+            int at = (pr & (CHUNK - 1)) * SLOT;
+            byte tag = chunk.get(at);
+            if (tag == TEXT) arenaLive -= 4 + arenaPage(chunk.getLong(at + 1)).getInt(arenaOffset(chunk.getLong(at + 1)));
+            else if (tag == FORMULA) formulas.remove(Sheet.key(pr, pc));
+            if (value == null) {
+                chunk.put(at, BLANK);
+            } else if (value instanceof Formula) {
+                chunk.put(at, FORMULA);
+                formulas.put(Sheet.key(pr, pc), (Formula) value);
+            } else {
+                String text = (String) value;
+                double number = number(text);
+                if (!Double.isNaN(number)) {
+                    chunk.put(at, NUMBER);
+                    chunk.putDouble(at + 1, number);
+                } else {
+                    chunk.put(at, TEXT);
+                    chunk.putLong(at + 1, append(text.getBytes(StandardCharsets.UTF_8)));
+                }
+            }
+            rowLimit = Math.max(rowLimit, pr + 1);
+            if (arenaUsed > PAGE && arenaUsed > 2 * arenaLive) compact();
+        }
+
+        @Override
+        public int rowLimit() {
+            return rowLimit;
+        }
+
+        @Override
+        public int colLimit(int pr) {
+            return columns.length;
+        }
+
+        @Override
+        public long heapBytes() {
+            // the formulas, plus the small arrays that point at the buffers
+            return formulas.size() * 320L + columns.length * (16L + 8L * (rowLimit >> CHUNK_BITS)) + arena.size() * 64L;
+        }
+
+        private ByteBuffer chunk(int pr, int pc, boolean create) {
+            int n = pr >> CHUNK_BITS;
+            if (pc >= columns.length) {
+                if (!create) return null;
+                columns = Arrays.copyOf(columns, Math.max(pc + 1, columns.length * 2));
+            }
+            ByteBuffer[] column = columns[pc];
+            if (column == null || n >= column.length) {
+                if (!create) return null;
+                column = column == null ? new ByteBuffer[n + 1] : Arrays.copyOf(column, Math.max(n + 1, column.length * 2));
+                columns[pc] = column;
+            }
+            if (column[n] == null && create) column[n] = ByteBuffer.allocateDirect(CHUNK * SLOT); // zeroed: all BLANK
+            return column[n];
+        }
+
+        // Arena address: page index in the high half, offset of the length-prefixed bytes in the low
+        private long append(byte[] bytes) {
+            ByteBuffer page = arena.isEmpty() ? null : arena.get(arena.size() - 1);
+            if (page == null || page.remaining() < 4 + bytes.length) {
+                page = ByteBuffer.allocateDirect(Math.max(PAGE, 4 + bytes.length));
+                arena.add(page);
+            }
+            long address = ((long) (arena.size() - 1) << 32) | page.position();
+            page.putInt(bytes.length);
+            page.put(bytes);
+            arenaUsed += 4 + bytes.length;
+            arenaLive += 4 + bytes.length;
+            return address;
+        }
+
+        private ByteBuffer arenaPage(long address) {
+            return arena.get((int) (address >>> 32));
+        }
+
+        private static int arenaOffset(long address) {
+            return (int) address;
+        }
+
+        private String text(long address) {
+            ByteBuffer page = arenaPage(address).duplicate();
+            int at = arenaOffset(address);
+            int length = page.getInt(at);
+            // a snapshot reader may catch a compaction half way; the stamp check makes it retry
+            if (length < 0 || length > page.capacity() - at - 4) throw new IllegalStateException("stale text address");
+            byte[] bytes = new byte[length];
+            page.position(at + 4);
+            page.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // Copy the live text into a fresh arena; overwritten values leave garbage behind
+        private void compact() {
+            List<ByteBuffer> old = arena;
+            arena = new ArrayList<>();
+            arenaUsed = 0;
+            arenaLive = 0;
+            for (ByteBuffer[] column : columns) {
+                if (column == null) continue;
+                for (ByteBuffer chunk : column) {
+                    if (chunk == null) continue;
+                    for (int at = 0; at < CHUNK * SLOT; at += SLOT) {
+                        if (chunk.get(at) != TEXT) continue;
+                        long address = chunk.getLong(at + 1);
+                        ByteBuffer page = old.get((int) (address >>> 32)).duplicate();
+                        byte[] bytes = new byte[page.getInt(arenaOffset(address))];
+                        page.position(arenaOffset(address) + 4);
+                        page.get(bytes);
+                        chunk.putLong(at + 1, append(bytes));
+                    }
+                }
+            }
+        }
+
+        // The double a raw value stands for, if it prints back as exactly that text; else NaN
+        private static double number(String text) {
+            char first = text.charAt(0);
+            if (!Character.isDigit(first) && first != '-') return Double.NaN;
+            try {
+                double d = Double.parseDouble(text);
+                return format(d).equals(text) ? d : Double.NaN;
+            } catch (NumberFormatException ex) {
+                return Double.NaN;
+            }
+        }
+
+        private static String format(double d) {
+            boolean integral = d == Math.rint(d) && Math.abs(d) < 1e15 && !(d == 0 && 1 / d < 0);
+            return integral ? String.valueOf((long) d) : Double.toString(d);
+        }
+    }
+
+    // A formula whose cell references are anchored to physical rows/columns of its sheet
+    private static class Formula {
+        static final int REF_ERROR = Integer.MIN_VALUE; // anchor of a reference that was pushed off the sheet
+        private final String[] segments;         // literal text around the references
+        private final int[] rowAnchor, colAnchor; // physical id, or -(index + 1) for references outside the sheet
+        private final boolean[] absRow, absCol, rangeStart;
+        private String text;
+        private volatile int textVersion = -1; // written after text, for what-if workers reading in parallel
+
+        private Formula(List<String> segments, List<int[]> refs) {
+            int n = refs.size();
+            this.segments = segments.toArray(new String[0]);
+            rowAnchor = new int[n];
+            colAnchor = new int[n];
+            absRow = new boolean[n];
+            absCol = new boolean[n];
+            rangeStart = new boolean[n];
+            for (int i = 0; i < n; i++) {
+                int[] ref = refs.get(i);
+                rowAnchor[i] = ref[0];
+                colAnchor[i] = ref[1];
+                absRow[i] = ref[2] != 0;
+                absCol[i] = ref[3] != 0;
+                rangeStart[i] = i + 1 < n && ":".equals(this.segments[i + 1]);
+            }
+        }
+
+        static Formula parse(String raw, Sheet sheet) {
+            List<String> segments = new ArrayList<>();
+            List<int[]> refs = new ArrayList<>();
+            StringBuilder literal = new StringBuilder();
+            char quote = 0; // '"' inside a string literal, '\'' inside a quoted sheet name
+            int segStart = 0;
+            for (int i = 0; i <= raw.length(); i++) {
+                if (i < raw.length() && !isQuote(raw.charAt(i), quote)) continue;
+                String segment = raw.substring(segStart, i);
+                if (quote != 0) {
+                    literal.append(segment);
+                } else {
+                    Matcher m = CELL_REF.matcher(segment);
+                    int last = 0, otherEnd = -2;
+                    while (m.find()) {
+                        int[] cell = parseCell(m.group(2) + m.group(4));
+                        literal.append(segment, last, m.start());
+                        last = m.end();
+                        // references into other sheets (Sheet2!A1 and the end of Sheet2!A1:B5) stay text
+                        boolean otherSheet = m.start() > 0 && (segment.charAt(m.start() - 1) == '!'
+                                || (m.start() == otherEnd + 1 && segment.charAt(otherEnd) == ':'));
+                        if (otherSheet) otherEnd = m.end();
+                        if (cell == null || cell[0] < 0 || cell[1] < 0 || otherSheet) {
+                            literal.append(m.group());
+                            continue;
+                        }
+                        segments.add(literal.toString());
+                        literal.setLength(0);
+                        int rowAnchor = cell[0] < sheet.rowCount() ? sheet.rowMap.get(cell[0]) : -(cell[0] + 1);
+                        int colAnchor = cell[1] < sheet.colCount() ? sheet.colMap.get(cell[1]) : -(cell[1] + 1);
+                        refs.add(new int[]{rowAnchor, colAnchor, m.group(3).isEmpty() ? 0 : 1, m.group(1).isEmpty() ? 0 : 1});
+                    }
+                    literal.append(segment, last, segment.length());
+                }
+                if (i < raw.length()) {
+                    literal.append(raw.charAt(i));
+                    quote = quote == 0 ? raw.charAt(i) : 0;
+                }
+                segStart = i + 1;
+            }
+            segments.add(literal.toString());
+            return new Formula(segments, refs);
+        }
+
+        // Formula text with references at their current positions, re-rendered after structural edits
+        String text(Sheet sheet) {
+            if (textVersion == sheet.structureVersion) return text;
+            text = render(sheet.rowMap::indexOf, sheet.colMap::indexOf);
+            textVersion = sheet.structureVersion;
+            return text;
+        }
+
+        // The text with anchored references at the positions the lookups give (-1: deleted)
+        String render(IntUnaryOperator rowIndex, IntUnaryOperator colIndex) {
+            StringBuilder sb = new StringBuilder(segments[0]);
+            for (int i = 0; i < rowAnchor.length; i++) {
+                int r = rowAnchor[i] >= 0 ? rowIndex.applyAsInt(rowAnchor[i])
+                        : rowAnchor[i] == REF_ERROR ? -1 : -rowAnchor[i] - 1;
+                int c = colAnchor[i] >= 0 ? colIndex.applyAsInt(colAnchor[i])
+                        : colAnchor[i] == REF_ERROR ? -1 : -colAnchor[i] - 1;
+                if (r < 0 || c < 0) {
+                    sb.append("#REF!");
+                } else {
+                    if (absCol[i]) sb.append('$');
+                    sb.append(getExcelColumnName(c));
+                    if (absRow[i]) sb.append('$');
+                    sb.append(r + 1);
+                }
+                sb.append(segments[i + 1]);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Compressed bitset in the style of Roaring bitmaps: ints are grouped by their high 16 bits and
+     * each group is a sorted char[] while sparse (up to 4096 values) or a 65536-bit long[] once
+     * dense. AND/OR/AND-NOT work group by group.
+     */
+    private static class Bitmap {
+        private static final int ARRAY_MAX = 4096;
+        private char[] keys = new char[4];
+        private Object[] containers = new Object[4]; // char[] (first cards[i] used) or long[1024]
+        private int[] cards = new int[4];
+        private int count = 0;
+
+        static Bitmap of(int[] values) {
+            Bitmap b = new Bitmap();
+            for (int v : values) b.add(v);
+            return b;
+        }
+
+        boolean add(int x) {
+            char hi = (char) (x >>> 16), lo = (char) x;
+            int i = findKey(hi);
+            if (i < 0) {
+                i = -i - 1;
+                insertContainer(i, hi, new char[4], 0);
+            }
+            Object c = containers[i];
+            if (c instanceof long[]) {
+                long[] bits = (long[]) c;
+                if ((bits[lo >>> 6] & (1L << lo)) != 0) return false;
+                bits[lo >>> 6] |= 1L << lo;
+                cards[i]++;
+                return true;
+            }
+            char[] arr = (char[]) c;
+            int card = cards[i];
+            int pos = Arrays.binarySearch(arr, 0, card, lo);
+            if (pos >= 0) return false;
+            pos = -pos - 1;
+            if (card == ARRAY_MAX) {
+                long[] bits = toBits(arr, card);
+                bits[lo >>> 6] |= 1L << lo;
+                containers[i] = bits;
+            } else {
+                if (card == arr.length) containers[i] = arr = Arrays.copyOf(arr, Math.min(ARRAY_MAX, card * 2));
+                System.arraycopy(arr, pos, arr, pos + 1, card - pos);
+                arr[pos] = lo;
+            }
+            cards[i]++;
+            return true;
+        }
+
+        boolean remove(int x) {
+            char hi = (char) (x >>> 16), lo = (char) x;
+            int i = findKey(hi);
+            if (i < 0) return false;
+            Object c = containers[i];
+            if (c instanceof long[]) {
+                long[] bits = (long[]) c;
+                if ((bits[lo >>> 6] & (1L << lo)) == 0) return false;
+                bits[lo >>> 6] &= ~(1L << lo);
+                if (--cards[i] <= ARRAY_MAX / 2) containers[i] = toArray(bits, cards[i]);
+            } else {
+                char[] arr = (char[]) c;
+                int pos = Arrays.binarySearch(arr, 0, cards[i], lo);
+                if (pos < 0) return false;
+                System.arraycopy(arr, pos + 1, arr, pos, cards[i] - pos - 1);
+                cards[i]--;
+            }
+            if (cards[i] == 0) removeContainer(i);
+            return true;
+        }
+
+        boolean contains(int x) {
+            int i = findKey((char) (x >>> 16));
+            return i >= 0 && containerContains(containers[i], cards[i], (char) x);
+        }
+
+        boolean isEmpty() {
+            return count == 0;
+        }
+
+        int cardinality() {
+            int n = 0;
+            for (int i = 0; i < count; i++) n += cards[i];
+            return n;
+        }
+
+        // Values in ascending order
+        int[] toArray() {
+            int[] out = new int[cardinality()];
+            int n = 0;
+            for (int i = 0; i < count; i++) {
+                int base = keys[i] << 16;
+                Object c = containers[i];
+                if (c instanceof long[]) {
+                    long[] bits = (long[]) c;
+                    for (int w = 0; w < bits.length; w++) {
+                        long word = bits[w];
+                        while (word != 0) {
+                            out[n++] = base | (w << 6) | Long.numberOfTrailingZeros(word);
+                            word &= word - 1;
+                        }
+                    }
+                } else {
+                    char[] arr = (char[]) c;
+                    for (int j = 0; j < cards[i]; j++) out[n++] = base | arr[j];
+                }
+            }
+            return out;
+        }
+
+        Bitmap and(Bitmap other) {
+            Bitmap out = new Bitmap();
+            for (int i = 0, j = 0; i < count && j < other.count; ) {
+                if (keys[i] < other.keys[j]) {
+                    i++;
+                } else if (keys[i] > other.keys[j]) {
+                    j++;
+                } else {
+                    Object a = containers[i], b = other.containers[j];
+                    if (a instanceof long[] && b instanceof long[]) {
+                        long[] bits = new long[1024];
+                        for (int w = 0; w < 1024; w++) bits[w] = ((long[]) a)[w] & ((long[]) b)[w];
+                        out.appendBits(keys[i], bits);
+                    } else {
+                        // walk the sparse side and probe the other
+                        boolean aSparse = a instanceof char[];
+                        char[] arr = (char[]) (aSparse ? a : b);
+                        int card = aSparse ? cards[i] : other.cards[j];
+                        Object probe = aSparse ? b : a;
+                        int probeCard = aSparse ? other.cards[j] : cards[i];
+                        char[] hits = new char[card];
+                        int n = 0;
+                        for (int k = 0; k < card; k++) if (containerContains(probe, probeCard, arr[k])) hits[n++] = arr[k];
+                        if (n > 0) out.appendContainer(keys[i], hits, n);
+                    }
+                    i++;
+                    j++;
+                }
+            }
+            return out;
+        }
+
+        Bitmap or(Bitmap other) {
+            Bitmap out = new Bitmap();
+            int i = 0, j = 0;
+            while (i < count || j < other.count) {
+                if (j >= other.count || (i < count && keys[i] < other.keys[j])) {
+                    out.appendContainer(keys[i], copy(containers[i], cards[i]), cards[i]);
+                    i++;
+                } else if (i >= count || keys[i] > other.keys[j]) {
+                    out.appendContainer(other.keys[j], copy(other.containers[j], other.cards[j]), other.cards[j]);
+                    j++;
+                } else {
+                    long[] bits = toBits(containers[i], cards[i]);
+                    Object b = other.containers[j];
+                    if (b instanceof long[]) {
+                        for (int w = 0; w < 1024; w++) bits[w] |= ((long[]) b)[w];
+                    } else {
+                        char[] arr = (char[]) b;
+                        for (int k = 0; k < other.cards[j]; k++) bits[arr[k] >>> 6] |= 1L << arr[k];
+                    }
+                    out.appendBits(keys[i], bits);
+                    i++;
+                    j++;
+                }
+            }
+            return out;
+        }
+
+        // Values in this bitmap that are not in other
+        Bitmap andNot(Bitmap other) {
+            Bitmap out = new Bitmap();
+            for (int i = 0; i < count; i++) {
+                int j = other.findKey(keys[i]);
+                if (j < 0) {
+                    out.appendContainer(keys[i], copy(containers[i], cards[i]), cards[i]);
+                    continue;
+                }
+                long[] bits = toBits(containers[i], cards[i]);
+                Object b = other.containers[j];
+                if (b instanceof long[]) {
+                    for (int w = 0; w < 1024; w++) bits[w] &= ~((long[]) b)[w];
+                } else {
+                    char[] arr = (char[]) b;
+                    for (int k = 0; k < other.cards[j]; k++) bits[arr[k] >>> 6] &= ~(1L << arr[k]);
+                }
+                out.appendBits(keys[i], bits);
+            }
+            return out;
+        }
+
+        private void appendBits(char key, long[] bits) {
+            int card = 0;
+            for (long w : bits) card += Long.bitCount(w);
+            if (card == 0) return;
+            appendContainer(key, card <= ARRAY_MAX ? toArray(bits, card) : bits, card);
+        }
+
+        private void appendContainer(char key, Object container, int card) {
+            insertContainer(count, key, container, card);
+        }
+
+        private int findKey(char hi) {
+            return Arrays.binarySearch(keys, 0, count, hi);
+        }
+
+        private void insertContainer(int i, char key, Object container, int card) {
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                containers = Arrays.copyOf(containers, count * 2);
+                cards = Arrays.copyOf(cards, count * 2);
+            }
+            System.arraycopy(keys, i, keys, i + 1, count - i);
+            System.arraycopy(containers, i, containers, i + 1, count - i);
+            System.arraycopy(cards, i, cards, i + 1, count - i);
+            keys[i] = key;
+            containers[i] = container;
+            cards[i] = card;
+            count++;
+        }
+
+        private void removeContainer(int i) {
+            System.arraycopy(keys, i + 1, keys, i, count - i - 1);
+            System.arraycopy(containers, i + 1, containers, i, count - i - 1);
+            System.arraycopy(cards, i + 1, cards, i, count - i - 1);
+            containers[--count] = null;
+        }
+
+        private static boolean containerContains(Object c, int card, char lo) {
+            if (c instanceof long[]) return (((long[]) c)[lo >>> 6] & (1L << lo)) != 0;
+            return Arrays.binarySearch((char[]) c, 0, card, lo) >= 0;
+        }
+
+        private static long[] toBits(Object c, int card) {
+            if (c instanceof long[]) return ((long[]) c).clone();
+            long[] bits = new long[1024];
+            char[] arr = (char[]) c;
+            for (int k = 0; k < card; k++) bits[arr[k] >>> 6] |= 1L << arr[k];
+            return bits;
+        }
+
+        private static char[] toArray(long[] bits, int card) {
+            char[] arr = new char[Math.max(4, card)];
+            int n = 0;
+            for (int w = 0; w < bits.length; w++) {
+                long word = bits[w];
+                while (word != 0) {
+                    arr[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return arr;
+        }
+
+        private static Object copy(Object c, int card) {
+            return c instanceof long[] ? ((long[]) c).clone() : Arrays.copyOf((char[]) c, Math.max(4, card));
+        }
+    }
+
+    // Notified of every stored cell change, including undo/redo
+    private interface SheetListener {
+        void cellChanged(int pr, int pc, String oldRaw, String newRaw);
+
+        // Rows/columns [at, at + count) were inserted, or put back by undo (with their old cells)
+        default void linesInserted(boolean rowAxis, int at, int count) {
+        }
+
+        // Rows/columns [at, at + count) were removed
+        default void linesDeleted(boolean rowAxis, int at, int count) {
+        }
+
+        // Rows [from, from + order.length) were permuted: position from + i now holds the row that was at from + order[i]
+        default void rowsReordered(int from, int[] order) {
+        }
+    }
+
+    // Value index of one column over physical row ids, so it survives inserts, deletes and sorts
+    private static class ColumnIndex {
+        final Map<String, Bitmap> byText = new HashMap<>();
+        final TreeMap<Double, Bitmap> byNumber = new TreeMap<>();
+        final Bitmap formulas = new Bitmap(); // results are not indexed, they change with their inputs
+        final Bitmap nonBlank = new Bitmap();
+
+        void add(int pr, String raw) {
+            if (raw.isEmpty()) return;
+            nonBlank.add(pr);
+            if (raw.startsWith("=")) {
+                formulas.add(pr);
+                return;
+            }
+            byText.computeIfAbsent(raw, k -> new Bitmap()).add(pr);
+            Double number = numberOrNull(raw);
+            if (number != null) byNumber.computeIfAbsent(number, k -> new Bitmap()).add(pr);
+        }
+
+        void remove(int pr, String raw) {
+            if (raw.isEmpty()) return;
+            nonBlank.remove(pr);
+            if (raw.startsWith("=")) {
+                formulas.remove(pr);
+                return;
+            }
+            Bitmap rows = byText.get(raw);
+            if (rows != null && rows.remove(pr) && rows.isEmpty()) byText.remove(raw);
+            Double number = numberOrNull(raw);
+            if (number != null) {
+                rows = byNumber.get(number);
+                if (rows != null && rows.remove(pr) && rows.isEmpty()) byNumber.remove(number);
+            }
+        }
+
+        private static Double numberOrNull(String raw) {
+            try {
+                return Double.parseDouble(raw);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+    }
+
+    // One column's AutoFilter condition: a set of values, a number range or a text fragment
+    private static class ColumnFilter {
+        static final int VALUES = 0, RANGE = 1, CONTAINS = 2;
+        final int mode;
+        final Set<String> values;
+        final boolean blanks;
+        final double min, max;
+        final String text;
+        final boolean matchCase;
+
+        private ColumnFilter(int mode, Set<String> values, boolean blanks, double min, double max, String text, boolean matchCase) {
+            this.mode = mode;
+            this.values = values;
+            this.blanks = blanks;
+            this.min = min;
+            this.max = max;
+            this.text = text;
+            this.matchCase = matchCase;
+        }
+
+        static ColumnFilter values(Set<String> values, boolean blanks) {
+            return new ColumnFilter(VALUES, values, blanks, 0, 0, null, false);
+        }
+
+        static ColumnFilter range(double min, double max) {
+            return new ColumnFilter(RANGE, null, false, min, max, null, false);
+        }
+
+        static ColumnFilter contains(String text, boolean matchCase) {
+            return new ColumnFilter(CONTAINS, null, false, 0, 0, matchCase ? text : text.toLowerCase(), matchCase);
+        }
+
+        boolean test(String value) {
+            switch (mode) {
+                case VALUES:
+                    return value.isEmpty() ? blanks : values.contains(value);
+                case RANGE:
+                    Double number = ColumnIndex.numberOrNull(value);
+                    return number != null && number >= min && number <= max;
+                default:
+                    return (matchCase ? value : value.toLowerCase()).contains(text);
+            }
+        }
+    }
+
+    /**
+     * AutoFilter below a header row. Every filtered column gets a lazily built ColumnIndex
+     * (a bitmap of physical rows per distinct value) that is then maintained incrementally;
+     * a condition is the OR of the matching value bitmaps and conditions are combined with AND.
+     */
+    private class AutoFilter implements SheetListener {
+        final Sheet target;
+        final int headerId; // physical id of the header row
+        final Map<Integer, ColumnIndex> indexes = new HashMap<>(); // by physical column
+        final Map<Integer, ColumnFilter> filters = new LinkedHashMap<>(); // by physical column
+
+        AutoFilter(Sheet target, int headerRow) {
+            this.target = target;
+            this.headerId = target.rowIds(headerRow, headerRow + 1)[0];
+            target.addListener(this);
+        }
+
+        @Override
+        public void cellChanged(int pr, int pc, String oldRaw, String newRaw) {
+            ColumnIndex index = indexes.get(pc);
+            if (index != null) {
+                index.remove(pr, oldRaw);
+                index.add(pr, newRaw);
+            }
+        }
+
+        ColumnIndex index(int pc) {
+            ColumnIndex index = indexes.get(pc);
+            if (index == null) {
+                ColumnIndex built = new ColumnIndex();
+                target.replay(pc, (pr, c, oldRaw, raw) -> built.add(pr, raw));
+                indexes.put(pc, index = built);
+            }
+            return index;
+        }
+
+        // Model rows to show, in order, or null when nothing is hidden
+        int[] viewToModel() {
+            if (filters.isEmpty()) return null;
+            int rowCount = target.rowCount();
+            int header = target.rowIndexOf(headerId);
+            int[] ids = target.rowIds(header + 1, rowCount);
+            Bitmap all = Bitmap.of(ids);
+            Bitmap visible = all;
+            for (Map.Entry<Integer, ColumnFilter> e : filters.entrySet()) {
+                if (target.colIndexOf(e.getKey()) < 0) continue; // column was deleted
+                visible = visible.and(matches(e.getKey(), e.getValue(), all));
+            }
+            int[] view = new int[rowCount];
+            int n = 0;
+            for (int r = 0; r <= header; r++) view[n++] = r;
+            for (int i = 0; i < ids.length; i++) {
+                if (visible.contains(ids[i])) view[n++] = header + 1 + i;
+            }
+            return Arrays.copyOf(view, n);
+        }
+
+        private Bitmap matches(int pc, ColumnFilter filter, Bitmap all) {
+            ColumnIndex index = index(pc);
+            List<Bitmap> hits = new ArrayList<>();
+            switch (filter.mode) {
+                case ColumnFilter.VALUES:
+                    for (String v : filter.values) {
+                        Bitmap rows = index.byText.get(v);
+                        if (rows != null) hits.add(rows);
+                    }
+                    if (filter.blanks) hits.add(all.andNot(index.nonBlank));
+                    break;
+                case ColumnFilter.RANGE:
+                    hits.addAll(index.byNumber.subMap(filter.min, true, filter.max, true).values());
+                    break;
+                default:
+                    for (Map.Entry<String, Bitmap> e : index.byText.entrySet()) {
+                        if (filter.test(e.getKey())) hits.add(e.getValue());
+                    }
+            }
+            Bitmap formulaHits = new Bitmap();
+            for (int pr : index.formulas.toArray()) {
+                if (target.rowIndexOf(pr) >= 0 && filter.test(workbook.displayText(target, target.getPhysical(pr, pc)))) formulaHits.add(pr);
+            }
+            hits.add(formulaHits);
+            // pairwise rounds keep the union O(total size * log k)
+            while (hits.size() > 1) {
+                List<Bitmap> next = new ArrayList<>();
+                for (int i = 0; i < hits.size(); i += 2) next.add(i + 1 < hits.size() ? hits.get(i).or(hits.get(i + 1)) : hits.get(i));
+                hits = next;
+            }
+            return hits.get(0);
+        }
+    }
+
+    // View-to-model row index for the JTable; the identity unless an AutoFilter hides rows
+    private class FilterSorter extends RowSorter<TableModel> {
+        private int[] viewToModel, modelToView;
+
+        void setViewToModel(int[] index) {
+            viewToModel = index;
+            modelToView = null;
+            if (index != null) {
+                modelToView = new int[model.getRowCount()];
+                Arrays.fill(modelToView, -1);
+                for (int v = 0; v < index.length; v++) {
+                    if (index[v] < modelToView.length) modelToView[index[v]] = v;
+                }
+            }
+            fireRowSorterChanged(null);
+        }
+
+        private void refilter() {
+            if (viewToModel != null || autoFilter != null) setViewToModel(autoFilter == null ? null : autoFilter.viewToModel());
+        }
+
+        @Override
+        public TableModel getModel() {
+            return model;
+        }
+
+        @Override
+        public void toggleSortOrder(int column) {}
+
+        @Override
+        public int convertRowIndexToModel(int index) {
+            return viewToModel == null ? index : viewToModel[index];
+        }
+
+        @Override
+        public int convertRowIndexToView(int index) {
+            if (modelToView == null) return index;
+            return index < modelToView.length ? modelToView[index] : -1;
+        }
+
+        @Override
+        public void setSortKeys(List<? extends SortKey> keys) {}
+
+        @Override
+        public List<? extends SortKey> getSortKeys() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public int getViewRowCount() {
+            return viewToModel == null ? model.getRowCount() : viewToModel.length;
+        }
+
+        @Override
+        public int getModelRowCount() {
+            return model.getRowCount();
+        }
+
+        @Override
+        public void modelStructureChanged() {
+            refilter();
+        }
+
+        @Override
+        public void allRowsChanged() {
+            refilter();
+        }
+
+        @Override
+        public void rowsInserted(int firstRow, int endRow) {
+            refilter();
+        }
+
+        @Override
+        public void rowsDeleted(int firstRow, int endRow) {
+            refilter();
+        }
+
+        @Override
+        public void rowsUpdated(int firstRow, int endRow) {}
+
+        @Override
+        public void rowsUpdated(int firstRow, int endRow, int column) {}
+    }
+
+    /**
+     * Trigram inverted index over the constant cells of a sheet, for Find/Replace. Every stored
+     * cell gets a dense id so posting lists are Bitmaps; a search intersects the postings of its
+     * trigrams (smallest first) and only the surviving candidates are matched. Formula cells are
+     * kept in a bitmap of their own and always checked, as their text and value move with other cells.
+     */
+    private static class TextIndex implements SheetListener {
+        final Sheet target;
+        private final Map<Long, Integer> ids = new HashMap<>(); // cell key -> dense id
+        private long[] cellKeys = new long[64];
+        private final Map<Long, Bitmap> postings = new HashMap<>();
+        private final Bitmap constants = new Bitmap(), formulas = new Bitmap();
+
+        TextIndex(Sheet target) {
+            this.target = target;
+            target.replay(-1, this);
+            target.addListener(this);
+        }
+
+        @Override
+        public void cellChanged(int pr, int pc, String oldRaw, String newRaw) {
+            if (oldRaw.isEmpty() && newRaw.isEmpty()) return;
+            int id = id(Sheet.key(pr, pc));
+            if (oldRaw.startsWith("=")) {
+                formulas.remove(id);
+            } else if (!oldRaw.isEmpty()) {
+                constants.remove(id);
+                for (long t : trigrams(oldRaw.toLowerCase(Locale.ROOT))) {
+                    Bitmap cells = postings.get(t);
+                    if (cells != null && cells.remove(id) && cells.isEmpty()) postings.remove(t);
+                }
+            }
+            if (newRaw.startsWith("=")) {
+                formulas.add(id);
+            } else if (!newRaw.isEmpty()) {
+                constants.add(id);
+                for (long t : trigrams(newRaw.toLowerCase(Locale.ROOT))) postings.computeIfAbsent(t, k -> new Bitmap()).add(id);
+            }
+        }
+
+        private int id(long key) {
+            Integer id = ids.get(key);
+            if (id == null) {
+                id = ids.size();
+                if (id == cellKeys.length) cellKeys = Arrays.copyOf(cellKeys, id * 2);
+                cellKeys[id] = key;
+                ids.put(key, id);
+            }
+            return id;
+        }
+
+        // Cell keys of every cell that may contain the lower-cased text (null: no literal to narrow by)
+        long[] candidates(String lowerText) {
+            Bitmap hits = constants;
+            if (lowerText != null && lowerText.length() >= 3) {
+                List<Bitmap> lists = new ArrayList<>();
+                for (long t : trigrams(lowerText)) {
+                    Bitmap cells = postings.get(t);
+                    if (cells == null) {
+                        lists.clear();
+                        hits = new Bitmap();
+                        break;
+                    }
+                    lists.add(cells);
+                }
+                lists.sort(Comparator.comparingInt(Bitmap::cardinality));
+                for (Bitmap cells : lists) {
+                    hits = hits.and(cells);
+                    if (hits.isEmpty()) break;
+                }
+            }
+            int[] found = hits.or(formulas).toArray();
+            long[] keys = new long[found.length];
+            for (int i = 0; i < found.length; i++) keys[i] = cellKeys[found[i]];
+            return keys;
+        }
+
+        // Distinct trigrams of a string, packed three chars to a long
+        private static Set<Long> trigrams(String s) {
+            Set<Long> result = new HashSet<>();
+            for (int i = 0; i + 3 <= s.length(); i++) {
+                result.add((long) s.charAt(i) << 32 | (long) s.charAt(i + 1) << 16 | s.charAt(i + 2));
+            }
+            return result;
+        }
+    }
+
+    // What Find/Replace looks for; a literal search also narrows the candidates through the TextIndex
+    private static class FindQuery {
+        final Pattern pattern;
+        final String literal; // lower-cased search text, or null for a regular expression
+        final boolean values; // match displayed values instead of formulas
+        final boolean regex;
+
+        FindQuery(String text, boolean matchCase, boolean wholeCell, boolean regex, boolean values) {
+            String body = regex ? text : Pattern.quote(text);
+            if (wholeCell) body = "\\A(?:" + body + ")\\z";
+            this.pattern = Pattern.compile(body, matchCase ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+            this.literal = regex ? null : text.toLowerCase(Locale.ROOT);
+            this.values = values;
+            this.regex = regex;
+        }
+
+        boolean matches(String text) {
+            return !text.isEmpty() && pattern.matcher(text).find();
+        }
+
+        String replace(String text, String replacement) {
+            return pattern.matcher(text).replaceAll(regex ? replacement : Matcher.quoteReplacement(replacement));
+        }
+    }
+
+    // Running aggregate of one pivot group in primitive fields; MEDIAN also keeps the values
+    private static class Stats {
+        long count;
+        double sum, mean, m2; // m2: sum of squared deviations from mean (Welford)
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        double[] values; // only kept for MEDIAN
+        int size;
+
+        Stats(boolean keepValues) {
+            if (keepValues) values = new double[4];
+        }
+
+        void add(double v) {
+            count++;
+            sum += v;
+            double delta = v - mean;
+            mean += delta / count;
+            m2 += delta * (v - mean);
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+            if (values != null) {
+                if (size == values.length) values = Arrays.copyOf(values, size * 2);
+                values[size++] = v;
+            }
+        }
+
+        // false when min, max or the kept values are no longer exact (SUM, AVG, COUNT and STDEV still are)
+        boolean remove(double v) {
+            count--;
+            sum -= v;
+            if (count == 0) {
+                mean = m2 = 0.0;
+            } else {
+                double delta = v - mean;
+                mean -= delta / count;
+                m2 = Math.max(0.0, m2 - delta * (v - mean));
+            }
+            return values == null && v > min && v < max;
+        }
+
+        void merge(Stats other) {
+            if (other.count > 0) {
+                // Chan et al. pairwise combination of the two partitions' mean and m2
+                long total = count + other.count;
+                double delta = other.mean - mean;
+                m2 += other.m2 + delta * delta * ((double) count * other.count / total);
+                mean += delta * other.count / total;
+                count = total;
+            }
+            sum += other.sum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            if (values != null) {
+                if (size + other.size > values.length) values = Arrays.copyOf(values, Math.max(values.length * 2, size + other.size));
+                System.arraycopy(other.values, 0, values, size, other.size);
+                size += other.size;
+            }
+        }
+
+        // Same results as applyFunction over the group's values
+        double result(String function) {
+            if (count == 0) return 0.0;
+            switch (function) {
+                case "SUM": return sum;
+                case "AVG": return sum / count;
+                case "MIN": return min;
+                case "MAX": return max;
+                case "COUNT": return count;
+                case "MEDIAN":
+                    double[] sorted = Arrays.copyOf(values, size);
+                    Arrays.sort(sorted);
+                    return size % 2 == 1 ? sorted[size / 2] : (sorted[size / 2 - 1] + sorted[size / 2]) / 2.0;
+                default: // STDEV
+                    if (count <= 1) return 0.0;
+                    return Math.sqrt(m2 / (count - 1));
+            }
+        }
+    }
+
+    /**
+     * A pivot table over a source range whose first row holds the headers: rows grouped by one
+     * or more key columns (and optionally spread across the values of one column key), with an
+     * aggregate of a value column per group. A full build dictionary-encodes the keys and runs a
+     * partitioned parallel hash aggregation; afterwards edits to constant source cells adjust
+     * only the affected groups and the output is rewritten once per burst of edits.
+     */
+    private class Pivot implements SheetListener {
+        final Sheet target;
+        final int top, bottom, left, right; // physical ids of the source corners, so the source follows inserts
+        final int[] rowKeys; // source column offsets
+        final int colKey, valueCol; // colKey is -1 when there is none
+        final String function;
+        final int anchorRow, anchorCol; // physical ids of the output's top-left cell
+        private Map<List<Object>, Stats> groups = new HashMap<>();
+        private List<Map<Object, String>> labels = new ArrayList<>(); // per key column: key -> first text seen
+        private boolean stale = true, volatileValues, refreshQueued, attached;
+        private boolean deferred; // a refresh waits for Calculate Now
+        private int structureVersion, renderedRows, renderedCols;
+
+        Pivot(Sheet target, int[] source, int[] rowKeys, int colKey, int valueCol, String function, int outRow, int outCol) {
+            this.target = target;
+            int[] rowIds = target.rowIds(source[0], source[2] + 1), colIds = target.colIds(source[1], source[3] + 1);
+            top = rowIds[0];
+            bottom = rowIds[rowIds.length - 1];
+            left = colIds[0];
+            right = colIds[colIds.length - 1];
+            this.rowKeys = rowKeys;
+            this.colKey = colKey;
+            this.valueCol = valueCol;
+            this.function = function;
+            anchorRow = target.rowIds(outRow, outRow + 1)[0];
+            anchorCol = target.colIds(outCol, outCol + 1)[0];
+        }
+
+        void attach() {
+            attached = true;
+            stale = true;
+            target.addListener(this);
+            pivots.add(this);
+            queueRefresh();
+        }
+
+        void detach() {
+            attached = false;
+            target.removeListener(this);
+            pivots.remove(this);
+        }
+
+        // Current source range {r0, c0, r1, c1}, or null once a corner row/column has been deleted
+        int[] source() {
+            int r0 = target.rowIndexOf(top), r1 = target.rowIndexOf(bottom);
+            int c0 = target.colIndexOf(left), c1 = target.colIndexOf(right);
+            return r0 < 0 || r1 < r0 || c0 < 0 || c1 < c0 ? null : new int[]{r0, c0, r1, c1};
+        }
+
+        // Source column offsets of the group key: the row keys, then the column key
+        private int[] keyColumns() {
+            int[] keys = Arrays.copyOf(rowKeys, rowKeys.length + (colKey >= 0 ? 1 : 0));
+            if (colKey >= 0) keys[rowKeys.length] = colKey;
+            return keys;
+        }
+
+        @Override
+        public void cellChanged(int pr, int pc, String oldRaw, String newRaw) {
+            if (volatileValues || structureVersion != target.structureVersion) {
+                // formula results may depend on any cell; positions moved
+                stale = true;
+                queueRefresh();
+                return;
+            }
+            int[] src = source();
+            int r = target.rowIndexOf(pr), c = target.colIndexOf(pc);
+            if (src == null || r <= src[0] || r > src[2] || c < src[1] || c > src[3]) return;
+            int column = c - src[1];
+            int[] keys = keyColumns();
+            boolean used = column == valueCol;
+            for (int key : keys) used |= key == column;
+            if (!used) return;
+            if (oldRaw.startsWith("=") || newRaw.startsWith("=")) stale = true;
+            if (!stale) {
+                List<Object> oldGroup = new ArrayList<>(), newGroup = new ArrayList<>();
+                for (int i = 0; i < keys.length; i++) {
+                    String raw = keys[i] == column ? null : target.get(r, src[1] + keys[i]);
+                    oldGroup.add(pivotKey(target, raw != null ? raw : oldRaw));
+                    newGroup.add(pivotKey(target, raw != null ? raw : newRaw));
+                    labels.get(i).putIfAbsent(newGroup.get(i), raw != null ? raw : newRaw);
+                }
+                String valueRaw = target.get(r, src[1] + valueCol);
+                Stats before = groups.get(oldGroup);
+                boolean exact = before != null && before.remove(pivotValue(target, column == valueCol ? oldRaw : valueRaw));
+                if (before == null || (!exact && (function.equals("MIN") || function.equals("MAX") || function.equals("MEDIAN")))) stale = true;
+                else if (before.count == 0) groups.remove(oldGroup);
+                groups.computeIfAbsent(newGroup, k -> new Stats(function.equals("MEDIAN"))).add(pivotValue(target, valueRaw));
+            }
+            queueRefresh();
+        }
+
+        // Coalesce a burst of edits (a paste, an undo) into one rewrite of the output
+        private void queueRefresh() {
+            if (calcMode != CALC_AUTOMATIC) {
+                deferred = true;
+                return;
+            }
+            if (refreshQueued) return;
+            refreshQueued = true;
+            SwingUtilities.invokeLater(() -> {
+                refreshQueued = false;
+                if (attached) refresh(false);
+            });
+        }
+
+        // Calculate Now: bring the output up to date if edits came in while it was not refreshing
+        void refreshDeferred() {
+            if (!deferred) return;
+            deferred = false;
+            if (attached) refresh(false);
+        }
+
+        // Rebuild if needed and write the output; recorded writes become part of the pending undo step
+        void refresh(boolean recorded) {
+            int[] src = source();
+            if (src == null) return;
+            if (stale || volatileValues || structureVersion != target.structureVersion) rebuild(src);
+            render(src, recorded);
+        }
+
+        private void rebuild(int[] src) {
+            structureVersion = target.structureVersion;
+            volatileValues = false;
+            int[] keys = keyColumns();
+            int k = keys.length;
+            int[] rowIds = target.rowIds(src[0] + 1, src[2] + 1);
+            int[] colIds = target.colIds(src[1], src[3] + 1);
+            int n = rowIds.length;
+
+            // dictionary-encode the keys and read the values here: the sheet is not thread-safe
+            List<Map<Object, Integer>> codesOf = new ArrayList<>();
+            List<List<Object>> keyOf = new ArrayList<>();
+            labels = new ArrayList<>();
+            int[][] codes = new int[k][n];
+            double[] values = new double[n];
+            for (int j = 0; j < k; j++) {
+                codesOf.add(new HashMap<>());
+                keyOf.add(new ArrayList<>());
+                labels.add(new HashMap<>());
+            }
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < k; j++) {
+                    String raw = cellText(rowIds[i], colIds[keys[j]]);
+                    Object key = pivotKey(target, raw);
+                    Integer code = codesOf.get(j).get(key);
+                    if (code == null) {
+                        code = keyOf.get(j).size();
+                        codesOf.get(j).put(key, code);
+                        keyOf.get(j).add(key);
+                        labels.get(j).put(key, workbook.displayText(target, raw));
+                    }
+                    codes[j][i] = code;
+                }
+                values[i] = pivotValue(target, cellText(rowIds[i], colIds[valueCol]));
+            }
+
+            // one long per row: the key codes in mixed radix
+            long[] radix = new long[k];
+            try {
+                long span = 1;
+                for (int j = 0; j < k; j++) {
+                    radix[j] = span;
+                    span = Math.multiplyExact(span, Math.max(1, keyOf.get(j).size()));
+                }
+            } catch (ArithmeticException ex) {
+                groups = aggregateSequentially(codes, values, keyOf);
+                stale = false;
+                return;
+            }
+            long[] groupKey = new long[n];
+            IntStream.range(0, n).parallel().forEach(i -> {
+                long key = 0;
+                for (int j = 0; j < k; j++) key += codes[j][i] * radix[j];
+                groupKey[i] = key;
+            });
+
+            // partition rows by key hash, then aggregate each partition into its own table: no locks, no merging
+            int partitions = n < 50_000 ? 1 : Runtime.getRuntime().availableProcessors() * 4;
+            int[] start = new int[partitions + 1];
+            int[] partitionOf = new int[n];
+            for (int i = 0; i < n; i++) {
+                partitionOf[i] = (int) Math.floorMod(mix(groupKey[i]) >>> 40, (long) partitions);
+                start[partitionOf[i] + 1]++;
+            }
+            for (int p = 0; p < partitions; p++) start[p + 1] += start[p];
+            int[] order = new int[n], fill = Arrays.copyOf(start, partitions);
+            for (int i = 0; i < n; i++) order[fill[partitionOf[i]]++] = i;
+
+            boolean median = function.equals("MEDIAN");
+            List<Map<List<Object>, Stats>> results = new ArrayList<>(Collections.nCopies(partitions, null));
+            IntStream.range(0, partitions).parallel().forEach(p -> {
+                int size = start[p + 1] - start[p];
+                int capacity = Integer.highestOneBit(Math.max(2, size) * 2 - 1) << 1;
+                long[] slotKeys = new long[capacity];
+                Stats[] slotStats = new Stats[capacity];
+                for (int i = start[p]; i < start[p + 1]; i++) {
+                    int row = order[i];
+                    long key = groupKey[row];
+                    int s = (int) mix(key) & (capacity - 1);
+                    while (slotStats[s] != null && slotKeys[s] != key) s = (s + 1) & (capacity - 1);
+                    if (slotStats[s] == null) {
+                        slotStats[s] = new Stats(median);
+                        slotKeys[s] = key;
+                    }
+                    slotStats[s].add(values[row]);
+                }
+                Map<List<Object>, Stats> partial = new HashMap<>();
+                for (int s = 0; s < capacity; s++) {
+                    if (slotStats[s] == null) continue;
+                    List<Object> group = new ArrayList<>(k);
+                    for (int j = 0; j < k; j++) group.add(keyOf.get(j).get((int) (slotKeys[s] / radix[j] % Math.max(1, keyOf.get(j).size()))));
+                    partial.put(group, slotStats[s]);
+                }
+                results.set(p, partial);
+            });
+            groups = new HashMap<>();
+            for (Map<List<Object>, Stats> partial : results) groups.putAll(partial);
+            stale = false;
+        }
+
+        // Fallback for key spaces too large to pack into a long
+        private Map<List<Object>, Stats> aggregateSequentially(int[][] codes, double[] values, List<List<Object>> keyOf) {
+            Map<List<Object>, Stats> result = new HashMap<>();
+            for (int i = 0; i < values.length; i++) {
+                List<Object> group = new ArrayList<>(codes.length);
+                for (int j = 0; j < codes.length; j++) group.add(keyOf.get(j).get(codes[j][i]));
+                result.computeIfAbsent(group, g -> new Stats(function.equals("MEDIAN"))).add(values[i]);
+            }
+            return result;
+        }
+
+        private String cellText(int pr, int pc) {
+            String raw = target.getPhysical(pr, pc);
+            if (raw.startsWith("=")) volatileValues = true;
+            return raw;
+        }
+
+        // Output: a header row, one row per row-key combination, a Grand Total row
+        private void render(int[] src, boolean recorded) {
+            Comparator<Object> byKey = (a, b) -> {
+                if (a == null || b == null) return a == null ? (b == null ? 0 : 1) : -1; // blanks last
+                if (a instanceof Double != b instanceof Double) return a instanceof Double ? -1 : 1;
+                return a instanceof Double ? Double.compare((Double) a, (Double) b) : ((String) a).compareTo((String) b);
+            };
+            Comparator<List<Object>> byKeys = (a, b) -> {
+                for (int i = 0; i < a.size(); i++) {
+                    int cmp = byKey.compare(a.get(i), b.get(i));
+                    if (cmp != 0) return cmp;
+                }
+                return 0;
+            };
+            boolean median = function.equals("MEDIAN");
+            int nk = rowKeys.length;
+            TreeMap<List<Object>, Map<Object, Stats>> byRow = new TreeMap<>(byKeys);
+            TreeMap<Object, Stats> columnTotals = new TreeMap<>(byKey);
+            Map<List<Object>, Stats> rowTotals = new HashMap<>();
+            Stats grand = new Stats(median);
+            for (Map.Entry<List<Object>, Stats> e : groups.entrySet()) {
+                List<Object> rowKey = e.getKey().subList(0, nk);
+                Object columnKey = colKey >= 0 ? e.getKey().get(nk) : "";
+                byRow.computeIfAbsent(rowKey, x -> new HashMap<>()).put(columnKey, e.getValue());
+                columnTotals.computeIfAbsent(columnKey, x -> new Stats(median)).merge(e.getValue());
+                rowTotals.computeIfAbsent(rowKey, x -> new Stats(median)).merge(e.getValue());
+                grand.merge(e.getValue());
+            }
+            List<Object> columnKeys = new ArrayList<>(columnTotals.keySet());
+            int width = nk + columnKeys.size() + (colKey >= 0 ? 1 : 0);
+            int height = byRow.size() + 2;
+
+            List<String[]> out = new ArrayList<>();
+            String[] header = new String[width];
+            for (int j = 0; j < nk; j++) header[j] = workbook.displayText(target, target.get(src[0], src[1] + rowKeys[j]));
+            String valueName = function + " of " + workbook.displayText(target, target.get(src[0], src[1] + valueCol));
+            for (int j = 0; j < columnKeys.size(); j++) header[nk + j] = colKey >= 0 ? label(nk, columnKeys.get(j)) : valueName;
+            if (colKey >= 0) header[width - 1] = "Grand Total";
+            out.add(header);
+            for (Map.Entry<List<Object>, Map<Object, Stats>> e : byRow.entrySet()) {
+                String[] line = new String[width];
+                for (int j = 0; j < nk; j++) line[j] = label(j, e.getKey().get(j));
+                for (int j = 0; j < columnKeys.size(); j++) {
+                    Stats stats = e.getValue().get(columnKeys.get(j));
+                    line[nk + j] = stats == null ? "" : number(stats.result(function));
+                }
+                if (colKey >= 0) line[width - 1] = number(rowTotals.get(e.getKey()).result(function));
+                out.add(line);
+            }
+            String[] total = new String[width];
+            Arrays.fill(total, "");
+            total[0] = "Grand Total";
+            for (int j = 0; j < columnKeys.size(); j++) total[nk + j] = number(columnTotals.get(columnKeys.get(j)).result(function));
+            if (colKey >= 0) total[width - 1] = number(grand.result(function));
+            out.add(total);
+
+            // write the new output and clear what is left of a larger previous one
+            int row0 = target.rowIndexOf(anchorRow), col0 = target.colIndexOf(anchorCol);
+            if (row0 < 0 || col0 < 0) return;
+            if (recorded) {
+                ensureSize(row0 + height, col0 + width);
+            } else if (row0 + height > target.rowCount() || col0 + width > target.colCount()) {
+                // a live refresh grows the sheet at its end, outside the undo history
+                if (row0 + height > target.rowCount()) target.insertRows(target.rowCount(), row0 + height - target.rowCount());
+                if (col0 + width > target.colCount()) target.insertColumns(target.colCount(), col0 + width - target.colCount());
+                syncSize();
+            }
+            for (int i = 0; i < Math.max(height, renderedRows); i++) {
+                for (int j = 0; j < Math.max(width, renderedCols); j++) {
+                    int r = row0 + i, c = col0 + j;
+                    if (r >= target.rowCount() || c >= target.colCount()) continue;
+                    String text = i < height && j < width ? out.get(i)[j] : "";
+                    if (target.get(r, c).equals(text)) continue;
+                    if (recorded) writeCell(r, c, text);
+                    else target.set(r, c, text);
+                }
+            }
+            renderedRows = height;
+            renderedCols = width;
+        }
+
+        private String label(int keyColumn, Object key) {
+            if (key == null) return "(blank)";
+            String text = labels.get(keyColumn).get(key);
+            return text != null ? text : key.toString();
+        }
+    }
+
+    // Undoing a pivot's creation also stops it from refreshing
+    private class PivotEdit implements Edit {
+        private final Pivot pivot;
+
+        PivotEdit(Pivot pivot) {
+            this.pivot = pivot;
+        }
+
+        @Override
+        public void undo() {
+            pivot.detach();
+        }
+
+        @Override
+        public void redo() {
+            pivot.attach();
+        }
+    }
+
+    private static final Pattern CELL_NAME = Pattern.compile("([A-Z]+)([0-9]+)");
+
+    private static int[] parseCell(String ref) {
+        try {
+            ref = ref.trim().toUpperCase();
+            Matcher m = CELL_NAME.matcher(ref);
+            if (m.matches()) {
+                String colPart = m.group(1);
+                int col = 0;
+                for (char c : colPart.toCharArray()) {
+                    col = col * 26 + (c - 'A' + 1);
+                }
+                col--; // zero-index
+                int rowIdx = Integer.parseInt(m.group(2)) - 1;
+                return new int[]{rowIdx, col};
+            }
+        } catch (Exception ignored) {}
+        return null;
+    }
+
+    /**
+     * Named sheets and the formula engine that evaluates them; no UI, so it also runs headless.
+     * A sheet is read from its CSV file on first access. When the loaded sheets outgrow the heap
+     * budget, the least recently used ones are written to a page file and dropped, and read back
+     * from there the next time a tab or a cross-sheet reference (Sheet2!A1:B10) needs them.
+     */
+    private static class Workbook {
+        static final String MANIFEST = "workbook.txt";
+        private static final Pattern SHEET_PREFIX = Pattern.compile("('[^']+'|[A-Za-z_][A-Za-z0-9_.]*)!(.+)", Pattern.DOTALL);
+        // A cell or range reference, optionally on another sheet: A1, B2:C10, Sheet2!A1:A9
+        private static final Pattern RANGE_REF = Pattern.compile("(?:('[^']+'|[A-Za-z_][A-Za-z0-9_.]*)!)?[A-Za-z]+[0-9]+(?::[A-Za-z]+[0-9]+)?");
+
+        // A sheet of the workbook; sheet is null until first access, and again while paged out
+        private static class Entry {
+            String name;
+            Sheet sheet;
+            File source; // CSV to read on first access
+            long pageOffset = -1, pageVersion; // image in the page file, valid while the sheet is unchanged
+            long lastUse;
+
+            Entry(String name, Sheet sheet, File source) {
+                this.name = name;
+                this.sheet = sheet;
+                this.source = source;
+            }
+        }
+
+        private final List<Entry> entries = new ArrayList<>();
+        private long budget = defaultBudget();
+        private File pageFile;
+        private long clock;
+
+        // evaluation context: the sheet of the formula being evaluated
+        private Sheet sheet;
+        private int rows, cols;
+        private final Map<Sheet, LookupCache> caches = new HashMap<>(); // lookup indexes of each sheet
+        // formulas being evaluated, outermost first, for finding circular references
+        private Sheet[] evaluatingSheets = new Sheet[16];
+        private String[] evaluatingFormulas = new String[16];
+        private int depth;
+
+        // what-if worker state (see DataTable): cells of overlaySheet that read as inputValues instead,
+        // and the results of formulas whose evaluation did not read any of them
+        private Sheet overlaySheet;
+        private int[][] inputCells = {}; // {row, column, physical row, physical column}
+        private String[] inputValues;
+        private Map<Sheet, Map<String, Object>> memo;
+        private boolean readInput; // the evaluation in progress has read an input
+
+        // manual calculation: formula results as of the last recalculation, and the version they
+        // were complete at (a result is stale once the version moves on)
+        private final Map<Sheet, Results> results = new HashMap<>();
+        private long calculated;
+        private long retiredVersion; // changes of sheets no longer loaded, and of the list of sheets
+
+        // -Dminiexcel.sheetBudgetMB=..., else a quarter of the maximum heap
+        private static long defaultBudget() {
+            String mb = System.getProperty("miniexcel.sheetBudgetMB");
+            if (mb != null) {
+                try {
+                    return Long.parseLong(mb.trim()) << 20;
+                } catch (NumberFormatException ignored) {}
+            }
+            return Runtime.getRuntime().maxMemory() / 4;
+        }
+
+        void setBudget(long bytes) {
+            budget = bytes;
+        }
+
+        int size() {
+            return entries.size();
+        }
+
+        String name(int i) {
+            return entries.get(i).name;
+        }
+
+        int indexOf(String name) {
+            for (int i = 0; i < entries.size(); i++) {
+                if (entries.get(i).name.equalsIgnoreCase(name)) return i;
+            }
+            return -1;
+        }
+
+        int indexOf(Sheet s) {
+            for (int i = 0; i < entries.size(); i++) {
+                if (entries.get(i).sheet == s) return i;
+            }
+            return -1;
+        }
+
+        // Names appear in references, so they cannot hold the characters that delimit them
+        static boolean validName(String name) {
+            return !name.trim().isEmpty() && name.equals(name.trim()) && !name.matches(".*['!\",:()\\[\\]*?/\\\\].*");
+        }
+
+        void add(String name, Sheet s) {
+            entries.add(new Entry(name, s, null));
+            retiredVersion++; // references to the name now resolve
+        }
+
+        void add(String name, File source) {
+            entries.add(new Entry(name, null, source));
+            retiredVersion++;
+        }
+
+        void rename(int i, String name) {
+            entries.get(i).name = name;
+            retiredVersion++;
+        }
+
+        /**
+         * Grows with every change to any cell or sheet of the workbook and never goes back, so a
+         * result computed at one version holds as long as the version is the same.
+         */
+        long version() {
+            long v = retiredVersion;
+            for (Entry e : entries) if (e.sheet != null) v += e.sheet.modCount;
+            return v;
+        }
+
+        void remove(int i) {
+            Entry e = entries.remove(i);
+            if (e.sheet != null) forget(e.sheet);
+        }
+
+        void clear() {
+            for (Entry e : entries) if (e.sheet != null) forget(e.sheet);
+            entries.clear();
+        }
+
+        /**
+         * An engine for a what-if worker thread: the same sheets (all loaded here, so call it where
+         * the sheets are edited), its own evaluation context and caches, and inputs as an overlay.
+         * It never registers with the sheets, which must not change while it evaluates.
+         */
+        Workbook worker(Sheet inputSheet, int[][] inputs) {
+            Workbook w = new Workbook();
+            for (int i = 0; i < entries.size(); i++) w.add(name(i), sheet(i));
+            w.overlaySheet = inputSheet;
+            w.inputCells = new int[inputs.length][];
+            for (int i = 0; i < inputs.length; i++) {
+                int r = inputs[i][0], c = inputs[i][1];
+                w.inputCells[i] = new int[]{r, c, inputSheet.rowIds(r, r + 1)[0], inputSheet.colIds(c, c + 1)[0]};
+            }
+            w.inputValues = new String[inputs.length];
+            w.memo = new HashMap<>();
+            return w;
+        }
+
+        /**
+         * Result of a formula cell for manual calculation: the one the last recalculation (or the
+         * first display) computed, however the sheets changed since. A formula that was just
+         * entered has no result yet and is evaluated here, as Excel does in manual mode.
+         */
+        Object calculatedValue(Sheet target, int r, int c, String raw) {
+            Map<Long, Object[]> values = results(target).values;
+            long key = Sheet.key(target.rowMap.get(r), target.colMap.get(c));
+            Object[] result = values.get(key);
+            if (result == null) {
+                result = new Object[]{evaluateValue(target, raw), version()};
+                values.put(key, result);
+            }
+            return result[0];
+        }
+
+        // Whether the kept result of a cell predates the latest edit
+        boolean isStale(Sheet target, int r, int c) {
+            Results kept = results.get(target);
+            if (kept == null) return false;
+            Object[] result = kept.values.get(Sheet.key(target.rowMap.get(r), target.colMap.get(c)));
+            return result != null && (Long) result[1] != version();
+        }
+
+        // Whether any sheet changed since the last complete recalculation
+        boolean needsCalculation() {
+            return version() != calculated;
+        }
+
+        // Forget the kept results (a change of calculation mode): they are computed when shown again
+        void dropResults() {
+            for (Map.Entry<Sheet, Results> e : results.entrySet()) e.getKey().removeListener(e.getValue());
+            results.clear();
+            calculated = version();
+        }
+
+        private Results results(Sheet target) {
+            return results.computeIfAbsent(target, Results::new);
+        }
+
+        // Kept results of one sheet by physical cell, with the version they were computed at
+        private class Results implements SheetListener {
+            final Map<Long, Object[]> values = new HashMap<>();
+
+            Results(Sheet target) {
+                target.addListener(this);
+            }
+
+            @Override
+            public void cellChanged(int pr, int pc, String oldRaw, String newRaw) {
+                values.remove(Sheet.key(pr, pc)); // an edited formula shows its own new result
+            }
+        }
+
+        // Progress of a recalculation: done of total formulas evaluated
+        interface Progress {
+            void update(int done, int total);
+        }
+
+        /**
+         * One batched recalculation of every formula of the loaded sheets, for manual calculation.
+         * Formulas share results within it (the what-if memo), so a cell that a thousand formulas
+         * read is evaluated once and the whole pass is linear in the number of formulas. It runs in
+         * steps so a UI can stay responsive and show progress; an edit between steps discards the
+         * shared results and leaves the workbook needing another recalculation.
+         */
+        Recalc recalculation(Progress progress) {
+            return new Recalc(progress);
+        }
+
+        // The whole recalculation in one go
+        void recalculate(Progress progress) {
+            Recalc recalc = recalculation(progress);
+            while (!recalc.step(Long.MAX_VALUE)) {
+                // until done
+            }
+        }
+
+        class Recalc {
+            private final Progress progress;
+            private final List<Sheet> targets = new ArrayList<>();
+            private final List<long[]> cells = new ArrayList<>();
+            private final long started = version();
+            private Map<Sheet, Map<String, Object>> shared = new HashMap<>();
+            private long sharedAt = started;
+            private int sheetIndex, cellIndex, done, total;
+
+            private Recalc(Progress progress) {
+                this.progress = progress;
+                for (Entry e : entries) {
+                    if (e.sheet == null) continue; // not loaded: computed when first shown
+                    long[] keys = e.sheet.formulaCells();
+                    targets.add(e.sheet);
+                    cells.add(keys);
+                    total += keys.length;
+                    results(e.sheet); // listen for edits from now on
+                }
+            }
+
+            // Evaluate formulas for about the given time; true once all are done
+            boolean step(long nanos) {
+                long now = version();
+                if (now != sharedAt) {
+                    shared = new HashMap<>();
+                    sharedAt = now;
+                }
+                long deadline = System.nanoTime() + Math.min(nanos, Long.MAX_VALUE / 2);
+                Map<Sheet, Map<String, Object>> savedMemo = memo;
+                memo = shared;
+                try {
+                    while (sheetIndex < targets.size()) {
+                        Sheet target = targets.get(sheetIndex);
+                        long[] keys = cells.get(sheetIndex);
+                        Map<Long, Object[]> values = results(target).values;
+                        while (cellIndex < keys.length) {
+                            long key = keys[cellIndex++];
+                            int pr = (int) (key >> 32), pc = (int) key;
+                            if (target.rowIndexOf(pr) >= 0 && target.colIndexOf(pc) >= 0) {
+                                String raw = target.getPhysical(pr, pc);
+                                if (raw.startsWith("=")) values.put(key, new Object[]{evaluateValue(target, raw), now});
+                            }
+                            done++;
+                            if ((done & 255) == 0 && System.nanoTime() > deadline) {
+                                if (progress != null) progress.update(done, total);
+                                return false;
+                            }
+                        }
+                        sheetIndex++;
+                        cellIndex = 0;
+                    }
+                } finally {
+                    memo = savedMemo;
+                }
+                if (now == started) calculated = now;
+                if (progress != null) progress.update(total, total);
+                return true;
+            }
+        }
+
+        // Next what-if point: results built from the previous input values are stale
+        void setInputs(String... values) {
+            inputValues = values;
+            for (LookupCache cache : caches.values()) cache.dropInputReaders();
+        }
+
+        /**
+         * The sheet at i, read from the page file or its CSV if it is not in memory. Throws
+         * UncheckedIOException when that fails.
+         */
+        Sheet sheet(int i) {
+            Entry e = entries.get(i);
+            e.lastUse = ++clock;
+            if (e.sheet == null) {
+                try {
+                    e.sheet = read(e);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+            return e.sheet;
+        }
+
+        boolean isLoaded(int i) {
+            return entries.get(i).sheet != null;
+        }
+
+        // CSV the sheet at i is read from (or was saved to), null for a sheet created here
+        File source(int i) {
+            return entries.get(i).source;
+        }
+
+        private Sheet read(Entry e) throws IOException {
+            if (e.pageOffset >= 0) {
+                Sheet s = readPage(e.pageOffset);
+                e.pageVersion = s.modCount;
+                return s;
+            }
+            return e.source == null ? new Sheet(1, 1) : readCSV(e.source);
+        }
+
+        /**
+         * Page out the least recently used sheets, except the pinned ones, until the loaded sheets
+         * fit the budget. Returns the sheets dropped, whose history and listeners are now dead.
+         */
+        List<Sheet> evict(Collection<Sheet> pinned) {
+            List<Sheet> evicted = new ArrayList<>();
+            long used = 0;
+            for (Entry e : entries) if (e.sheet != null) used += e.sheet.estimatedBytes();
+            while (used > budget) {
+                Entry victim = null;
+                for (Entry e : entries) {
+                    if (e.sheet != null && !pinned.contains(e.sheet) && (victim == null || e.lastUse < victim.lastUse)) victim = e;
+                }
+                if (victim == null) break;
+                try {
+                    // an unchanged sheet still has its image from the last time it was paged out
+                    if (victim.pageOffset < 0 || victim.sheet.modCount != victim.pageVersion) victim.pageOffset = writePage(victim.sheet);
+                } catch (IOException ex) {
+                    break; // keep it in memory
+                }
+                used -= victim.sheet.estimatedBytes();
+                forget(victim.sheet);
+                evicted.add(victim.sheet);
+                victim.sheet = null;
+            }
+            return evicted;
+        }
+
+        private void forget(Sheet s) {
+            retiredVersion += s.modCount + 1;
+            LookupCache cache = caches.remove(s);
+            if (cache != null) s.removeListener(cache);
+            Results kept = results.remove(s);
+            if (kept != null) s.removeListener(kept);
+        }
+
+        // Cells as (row, column, UTF-8 text) records after the size; a negative row ends the sheet
+        private long writePage(Sheet s) throws IOException {
+            if (pageFile == null) {
+                pageFile = File.createTempFile("miniexcel", ".pages");
+                pageFile.deleteOnExit();
+            }
+            long offset = pageFile.length();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(pageFile, true), 1 << 16))) {
+                int rowCount = s.rowCount(), colCount = s.colCount();
+                out.writeInt(rowCount);
+                out.writeInt(colCount);
+                int[] colIds = s.colIds(0, colCount), rowIds = s.rowIds(0, rowCount);
+                for (int r = 0; r < rowCount; r++) {
+                    for (int c = 0; c < colCount; c++) {
+                        String raw = s.getPhysical(rowIds[r], colIds[c]);
+                        if (raw.isEmpty()) continue;
+                        byte[] text = raw.getBytes(StandardCharsets.UTF_8);
+                        out.writeInt(r);
+                        out.writeInt(c);
+                        out.writeInt(text.length);
+                        out.write(text);
+                    }
+                }
+                out.writeInt(-1);
+            }
+            return offset;
+        }
+
+        private Sheet readPage(long offset) throws IOException {
+            try (FileInputStream file = new FileInputStream(pageFile)) {
+                file.getChannel().position(offset);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(file, 1 << 16));
+                // size first so that formulas anchor forward references too
+                Sheet s = new Sheet(in.readInt(), in.readInt());
+                for (int r = in.readInt(); r >= 0; r = in.readInt()) {
+                    int c = in.readInt();
+                    byte[] text = new byte[in.readInt()];
+                    in.readFully(text);
+                    s.set(r, c, new String(text, StandardCharsets.UTF_8));
+                }
+                return s;
+            }
+        }
+
+        static Sheet readCSV(File file) throws IOException {
+            try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+                List<List<String>> loaded = new ArrayList<>();
+                String line;
+                while ((line = br.readLine()) != null) loaded.add(parseCSVLine(line));
+                int width = 1;
+                for (List<String> row : loaded) width = Math.max(width, row.size());
+                // size first so that formulas anchor forward references too
+                Sheet s = new Sheet(Math.max(1, loaded.size()), width);
+                for (int r = 0; r < loaded.size(); r++) {
+                    List<String> row = loaded.get(r);
+                    for (int c = 0; c < row.size(); c++) if (!row.get(c).isEmpty()) s.set(r, c, row.get(c));
+                }
+                return s;
+            }
+        }
+
+        static void writeCSV(Sheet.Snapshot s, File file) throws IOException {
+            try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+                int rowCount = s.rowCount(), colCount = s.colCount();
+                for (int r = 0; r < rowCount; r++) {
+                    StringBuilder sb = new StringBuilder();
+                    for (int c = 0; c < colCount; c++) {
+                        if (c > 0) sb.append(',');
+                        sb.append(csvField(s.get(r, c)));
+                    }
+                    pw.println(sb);
+                }
+                if (pw.checkError()) throw new IOException("could not write " + file);
+            }
+        }
+
+        // escape any commas by wrapping in quotes if necessary
+        private static String csvField(String cell) {
+            if (cell.contains(",") || cell.contains("\"") || cell.contains("\n")) return "\"" + cell.replace("\"", "\"\"") + "\"";
+            return cell;
+        }
+
+        /**
+         * Open the workbook in dir: the sheets listed in its manifest (name, CSV file), or a single
+         * sheet.csv. Only the first sheet is read here, the others on first access.
+         */
+        void open(File dir) throws IOException {
+            List<Entry> opened = new ArrayList<>();
+            File manifest = new File(dir, MANIFEST);
+            if (manifest.exists()) {
+                try (BufferedReader br = new BufferedReader(new FileReader(manifest))) {
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        List<String> fields = parseCSVLine(line);
+                        if (fields.size() >= 2) opened.add(new Entry(fields.get(0), null, new File(dir, fields.get(1))));
+                    }
+                }
+                if (opened.isEmpty()) throw new IOException(MANIFEST + " lists no sheets.");
+            } else {
+                File single = new File(dir, "sheet.csv");
+                if (!single.exists()) throw new FileNotFoundException("sheet.csv not found.");
+                opened.add(new Entry("Sheet1", null, single));
+            }
+            opened.get(0).sheet = readCSV(opened.get(0).source); // shown right away
+            clear();
+            entries.addAll(opened);
+        }
+
+        /**
+         * Save every sheet to dir as sheet.csv, sheet2.csv, ... plus the manifest. Sheets never
+         * loaded are copied from their source, or left alone when that is already their file.
+         * Only snapshots are taken here; the returned job writes the files, on any thread, while
+         * the sheets go on changing.
+         */
+        SaveJob save(File dir) throws IOException {
+            File[] targets = new File[entries.size()];
+            for (int i = 0; i < targets.length; i++) targets[i] = new File(dir, i == 0 ? "sheet.csv" : "sheet" + (i + 1) + ".csv");
+            // read sources that another sheet's file is about to overwrite
+            for (int i = 0; i < targets.length; i++) {
+                Entry e = entries.get(i);
+                if (e.sheet == null && e.pageOffset < 0 && e.source != null && !sameFile(e.source, targets[i])) sheet(i);
+            }
+            Sheet.Snapshot[] views = new Sheet.Snapshot[targets.length];
+            String[] names = new String[targets.length];
+            for (int i = 0; i < targets.length; i++) {
+                Entry e = entries.get(i);
+                names[i] = e.name;
+                if (e.sheet != null || e.pageOffset >= 0) views[i] = (e.sheet != null ? e.sheet : readPage(e.pageOffset)).snapshot();
+                else if (e.source == null) views[i] = new Sheet(1, 1).snapshot();
+            }
+            return new SaveJob(new File(dir, MANIFEST), entries.toArray(new Entry[0]), names, views, targets);
+        }
+
+        // The writing half of save(): write() may run on a background thread, finish() runs where the sheets are edited
+        static class SaveJob {
+            private final File manifest;
+            private final Entry[] saved;
+            private final String[] names;
+            private final Sheet.Snapshot[] views; // null: the target already holds the sheet
+            private final File[] targets;
+
+            private SaveJob(File manifest, Entry[] saved, String[] names, Sheet.Snapshot[] views, File[] targets) {
+                this.manifest = manifest;
+                this.saved = saved;
+                this.names = names;
+                this.views = views;
+                this.targets = targets;
+            }
+
+            int size() {
+                return saved.length;
+            }
+
+            void write() throws IOException {
+                try (PrintWriter pw = new PrintWriter(manifest)) {
+                    for (int i = 0; i < targets.length; i++) {
+                        if (views[i] != null) writeCSV(views[i], targets[i]);
+                        pw.println(csvField(names[i]) + "," + csvField(targets[i].getName()));
+                    }
+                    if (pw.checkError()) throw new IOException("could not write " + manifest);
+                } finally {
+                    for (Sheet.Snapshot view : views) if (view != null) view.close();
+                }
+            }
+
+            // The saved files are now where unloaded sheets come from
+            void finish() {
+                for (int i = 0; i < saved.length; i++) saved[i].source = targets[i];
+            }
+        }
+
+        private static boolean sameFile(File a, File b) {
+            return a.getAbsoluteFile().equals(b.getAbsoluteFile());
+        }
+
+        // Sheet named by a reference prefix (Sheet2 or 'My sheet'), loading it if needed; null if none
+        private Sheet sheetNamed(String prefix) {
+            String name = prefix.startsWith("'") ? prefix.substring(1, prefix.length() - 1) : prefix;
+            int i = indexOf(name);
+            if (i < 0) return null;
+            try {
+                return sheet(i);
+            } catch (UncheckedIOException ex) {
+                return null;
+            }
+        }
+
+        // Sheet a cell or range reference points to: the one it names, else the current one; null for an unknown sheet
+        private Sheet sheetOf(String ref) {
+            Matcher m = SHEET_PREFIX.matcher(ref.trim());
+            return m.matches() ? sheetNamed(m.group(1)) : sheet;
+        }
+
+        // A reference without its sheet prefix
+        private static String localRef(String ref) {
+            Matcher m = SHEET_PREFIX.matcher(ref.trim());
+            return m.matches() ? m.group(2) : ref;
+        }
+
+        // Run work with target as the current sheet, e.g. to read a cross-sheet reference
+        private <T> T on(Sheet target, Supplier<T> work) {
+            Sheet savedSheet = sheet;
+            int savedRows = rows, savedCols = cols;
+            sheet = target;
+            rows = target.rowCount();
+            cols = target.colCount();
+            try {
+                return work.get();
+            } finally {
+                sheet = savedSheet;
+                rows = savedRows;
+                cols = savedCols;
+            }
+        }
+
+        // Text shown for a raw value of the given sheet
+        String displayText(Sheet target, String raw) {
+            if (raw == null || !raw.startsWith("=")) return raw == null ? "" : raw;
+            return on(target, () -> displayText(raw));
+        }
+
+        Object evaluateValue(Sheet target, String raw) {
+            return on(target, () -> evaluateValue(raw));
+        }
+
+        double evaluateFormula(Sheet target, String raw) {
+            return on(target, () -> evaluateFormula(raw));
+        }
+
+        /**
+         * Lookup index over one column (or row) segment: value -> first/last offset for exact
+         * matches, and value-sorted arrays for approximate ones, each built on first use. Constant
+         * edits update the hash in place; segments holding formulas are rebuilt after any edit.
+         */
+        private class LookupIndex {
+            final boolean vertical;
+            final int line, lineId, from, to; // logical and physical column (row), logical rows (columns) [from, to]
+            private Map<Object, int[]> exact; // key -> {first offset, last offset}
+            private double[] numbers;
+            private String[] texts;
+            private int[] numberOffsets, textOffsets;
+            private boolean volatileValues; // holds formula results, which any edit may change
+            private boolean readsInput; // built from what-if input cells
+
+            LookupIndex(boolean vertical, int line, int lineId, int from, int to) {
+                this.vertical = vertical;
+                this.line = line;
+                this.lineId = lineId;
+                this.from = from;
+                this.to = to;
+            }
+
+            // Lookup keys of the segment, evaluating formulas
+            private Object[] keys() {
+                int[] ids = vertical ? sheet.rowIds(from, to + 1) : sheet.colIds(from, to + 1);
+                Object[] keys = new Object[ids.length];
+                boolean outer = readInput;
+                readInput = false;
+                for (int o = 0; o < ids.length; o++) {
+                    String raw = vertical ? physicalRaw(ids[o], lineId) : physicalRaw(lineId, ids[o]);
+                    if (raw.startsWith("=")) {
+                        volatileValues = true;
+                        keys[o] = lookupKey(evaluateValue(raw));
+                    } else {
+                        keys[o] = lookupKey(raw);
+                    }
+                }
+                readsInput |= readInput;
+                readInput |= outer;
+                return keys;
+            }
+
+            private Map<Object, int[]> exact() {
+                if (exact == null) {
+                    Map<Object, int[]> map = new HashMap<>();
+                    Object[] keys = keys();
+                    for (int o = 0; o < keys.length; o++) {
+                        if (keys[o] == null) continue;
+                        int[] span = map.get(keys[o]);
+                        if (span == null) map.put(keys[o], new int[]{o, o});
+                        else span[1] = o;
+                    }
+                    exact = map;
+                }
+                readInput |= readsInput;
+                return exact;
+            }
+
+            int first(Object key) {
+                if (key instanceof String && (((String) key).indexOf('*') >= 0 || ((String) key).indexOf('?') >= 0)) return wildcard(key, false);
+                int[] span = key == null ? null : exact().get(key);
+                return span == null ? -1 : span[0];
+            }
+
+            int last(Object key) {
+                int[] span = key == null ? null : exact().get(key);
+                return span == null ? -1 : span[1];
+            }
+
+            // Offset of the largest value <= key (below), else of the smallest value >= key; -1 when none
+            int nearest(Object key, boolean below) {
+                if (key == null) return -1;
+                if (numbers == null) sort();
+                readInput |= readsInput;
+                int lo = 0, hi;
+                if (key instanceof Double) {
+                    double k = (Double) key;
+                    hi = numbers.length;
+                    while (lo < hi) {
+                        int mid = (lo + hi) >>> 1;
+                        if (below ? numbers[mid] <= k : numbers[mid] < k) lo = mid + 1;
+                        else hi = mid;
+                    }
+                    int i = below ? lo - 1 : lo;
+                    return i >= 0 && i < numbers.length ? numberOffsets[i] : -1;
+                }
+                String k = (String) key;
+                hi = texts.length;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    int cmp = texts[mid].compareTo(k);
+                    if (below ? cmp <= 0 : cmp < 0) lo = mid + 1;
+                    else hi = mid;
+                }
+                int i = below ? lo - 1 : lo;
+                return i >= 0 && i < texts.length ? textOffsets[i] : -1;
+            }
+
+            // First (or last) offset whose text matches a pattern with * and ? wildcards (~ escapes them)
+            int wildcard(Object key, boolean lastFirst) {
+                if (!(key instanceof String)) return lastFirst ? last(key) : first(key);
+                Pattern p = wildcardPattern((String) key);
+                Object[] keys = keys();
+                for (int n = 0; n < keys.length; n++) {
+                    int o = lastFirst ? keys.length - 1 - n : n;
+                    if (keys[o] instanceof String && p.matcher((String) keys[o]).matches()) return o;
+                }
+                return -1;
+            }
+
+            // Ascending numbers and texts, equal values in offset order
+            private void sort() {
+                Object[] keys = keys();
+                List<Integer> numeric = new ArrayList<>(), text = new ArrayList<>();
+                for (int o = 0; o < keys.length; o++) {
+                    if (keys[o] instanceof Double) numeric.add(o);
+                    else if (keys[o] != null) text.add(o);
+                }
+                numeric.sort(Comparator.comparingDouble(o -> (Double) keys[o]));
+                text.sort(Comparator.comparing(o -> (String) keys[o]));
+                double[] sortedNumbers = new double[numeric.size()];
+                numberOffsets = new int[numeric.size()];
+                for (int i = 0; i < sortedNumbers.length; i++) {
+                    numberOffsets[i] = numeric.get(i);
+                    sortedNumbers[i] = (Double) keys[numberOffsets[i]];
+                }
+                texts = new String[text.size()];
+                textOffsets = new int[text.size()];
+                for (int i = 0; i < texts.length; i++) {
+                    textOffsets[i] = text.get(i);
+                    texts[i] = (String) keys[textOffsets[i]];
+                }
+                numbers = sortedNumbers;
+            }
+
+            void invalidate() {
+                exact = null;
+                numbers = null;
+                volatileValues = false;
+                readsInput = false;
+            }
+
+            // A constant in the segment changed; keep the hash unless the first/last position of a value moved
+            void update(int offset, String oldRaw, String newRaw) {
+                numbers = null;
+                if (exact == null) return;
+                if (oldRaw.startsWith("=") || newRaw.startsWith("=")) {
+                    invalidate();
+                    return;
+                }
+                Object oldKey = lookupKey(oldRaw), newKey = lookupKey(newRaw);
+                int[] span = oldKey == null ? null : exact.get(oldKey);
+                if (span != null && (span[0] == offset || span[1] == offset)) {
+                    invalidate();
+                    return;
+                }
+                if (newKey == null) return;
+                span = exact.get(newKey);
+                if (span == null) exact.put(newKey, new int[]{offset, offset});
+                else {
+                    span[0] = Math.min(span[0], offset);
+                    span[1] = Math.max(span[1], offset);
+                }
+            }
+        }
+
+        // One *IF criterion: a value to equal (wildcards allowed for text) or a comparison like ">=10" or "<>x"
+        private static class Criterion {
+            final String op;
+            final Object operand; // lookup key; null stands for a blank cell
+            final Pattern wildcard;
+
+            private Criterion(String op, Object operand) {
+                this.op = op;
+                this.operand = operand;
+                String text = operand instanceof String ? (String) operand : null;
+                boolean wild = text != null && (op.equals("=") || op.equals("<>")) && (text.indexOf('*') >= 0 || text.indexOf('?') >= 0);
+                this.wildcard = wild ? wildcardPattern(text) : null;
+            }
+
+            static Criterion parse(Object value) {
+                if (value instanceof Double) return new Criterion("=", lookupKey(value));
+                String text = (String) value;
+                for (String op : new String[]{"<=", ">=", "<>", "<", ">", "="}) {
+                    if (text.startsWith(op)) return new Criterion(op, lookupKey(text.substring(op.length())));
+                }
+                return new Criterion("=", lookupKey(text));
+            }
+
+            boolean isEquality() {
+                return op.equals("=") && wildcard == null;
+            }
+
+            boolean test(Object key) {
+                switch (op) {
+                    case "=":
+                        return wildcard != null ? key instanceof String && wildcard.matcher((String) key).matches() : Objects.equals(operand, key);
+                    case "<>":
+                        return wildcard != null ? !(key instanceof String && wildcard.matcher((String) key).matches()) : !Objects.equals(operand, key);
+                    default:
+                        int cmp;
+                        if (key instanceof Double && operand instanceof Double) cmp = Double.compare((Double) key, (Double) operand);
+                        else if (key instanceof String && operand instanceof String) cmp = ((String) key).compareTo((String) operand);
+                        else return false;
+                        switch (op) {
+                            case "<": return cmp < 0;
+                            case "<=": return cmp <= 0;
+                            case ">": return cmp > 0;
+                            default: return cmp >= 0;
+                        }
+                }
+            }
+        }
+
+        /**
+         * Totals of a value range grouped by the keys of one or more same-shaped criteria ranges,
+         * built in one pass: criteria keys -> {sum, numeric cells, matching cells}. An edit to a
+         * constant cell moves only the rows it feeds from their old group to their new one.
+         */
+        private class GroupTotals {
+            final List<int[]> ranges;
+            final int[] values; // null for COUNTIF(S)
+            private Map<List<Object>, double[]> totals;
+            private boolean volatileValues; // keyed or summed by formula results, which any edit may change
+            private boolean readsInput; // built from what-if input cells
+
+            GroupTotals(List<int[]> ranges, int[] values) {
+                this.ranges = ranges;
+                this.values = values;
+            }
+
+            Map<List<Object>, double[]> totals() {
+                if (totals == null) {
+                    totals = new HashMap<>();
+                    int[] first = ranges.get(0);
+                    boolean outer = readInput;
+                    readInput = false;
+                    for (int i = 0; i <= first[2] - first[0]; i++) {
+                        for (int j = 0; j <= first[3] - first[1]; j++) add(i, j, 1, -1, -1, null);
+                    }
+                    readsInput = readInput;
+                    readInput |= outer;
+                }
+                readInput |= readsInput;
+                return totals;
+            }
+
+            private void add(int i, int j, int sign, int editRow, int editCol, String raw) {
+                List<Object> group = new ArrayList<>(ranges.size());
+                for (int[] range : ranges) group.add(key(range[0] + i, range[1] + j, editRow, editCol, raw));
+                double[] t = totals.computeIfAbsent(group, k -> new double[3]);
+                t[2] += sign;
+                Object v = values == null ? null : key(values[0] + i, values[1] + j, editRow, editCol, raw);
+                if (v instanceof Double) {
+                    t[0] += sign * (Double) v;
+                    t[1] += sign;
+                }
+                if (t[2] == 0) totals.remove(group);
+            }
+
+            private Object key(int r, int c, int editRow, int editCol, String raw) {
+                if ((r != editRow || c != editCol) && safeCell(r, c).startsWith("=")) volatileValues = true;
+                return cellKey(r, c, editRow, editCol, raw);
+            }
+
+            void invalidate() {
+                totals = null;
+                volatileValues = false;
+                readsInput = false;
+            }
+
+            // A constant at (r, c) changed from oldRaw to newRaw
+            void update(int r, int c, String oldRaw, String newRaw) {
+                if (totals == null) return;
+                if (oldRaw.startsWith("=") || newRaw.startsWith("=")) {
+                    invalidate();
+                    return;
+                }
+                // offsets of the rows that read the cell; a cell may sit in several ranges
+                Set<List<Integer>> offsets = new HashSet<>();
+                for (int[] range : ranges) {
+                    if (r >= range[0] && r <= range[2] && c >= range[1] && c <= range[3]) offsets.add(Arrays.asList(r - range[0], c - range[1]));
+                }
+                if (values != null && r >= values[0] && r <= values[2] && c >= values[1] && c <= values[3]) {
+                    offsets.add(Arrays.asList(r - values[0], c - values[1]));
+                }
+                for (List<Integer> o : offsets) {
+                    add(o.get(0), o.get(1), -1, r, c, oldRaw);
+                    add(o.get(0), o.get(1), 1, r, c, newRaw);
+                }
+            }
+        }
+
+        // Lookup indexes and group totals of a sheet, one per range they cover; dropped on structural changes
+        private class LookupCache implements SheetListener {
+            final Sheet target;
+            private final Map<List<Integer>, LookupIndex> indexes = new HashMap<>();
+            private final Map<List<Integer>, GroupTotals> groups = new HashMap<>();
+            private final Map<Integer, List<LookupIndex>> byColumn = new HashMap<>(), byRow = new HashMap<>();
+            private int structureVersion;
+
+            LookupCache(Sheet target) {
+                this.target = target;
+                structureVersion = target.structureVersion;
+                if (overlaySheet == null) target.addListener(this); // a what-if worker sees no edits
+            }
+
+            LookupIndex column(int col, int fromRow, int toRow) {
+                return index(true, col, fromRow, toRow);
+            }
+
+            LookupIndex row(int row, int fromCol, int toCol) {
+                return index(false, row, fromCol, toCol);
+            }
+
+            private LookupIndex index(boolean vertical, int line, int from, int to) {
+                if (structureVersion != target.structureVersion) clear();
+                List<Integer> key = Arrays.asList(vertical ? 1 : 0, line, from, to);
+                LookupIndex index = indexes.get(key);
+                if (index == null) {
+                    int lineId = vertical ? target.colIds(line, line + 1)[0] : target.rowIds(line, line + 1)[0];
+                    index = new LookupIndex(vertical, line, lineId, from, to);
+                    indexes.put(key, index);
+                    (vertical ? byColumn : byRow).computeIfAbsent(lineId, k -> new ArrayList<>()).add(index);
+                }
+                return index;
+            }
+
+            GroupTotals groupTotals(List<int[]> ranges, int[] values) {
+                if (structureVersion != target.structureVersion) clear();
+                List<Integer> key = new ArrayList<>();
+                for (int[] range : ranges) for (int v : range) key.add(v);
+                if (values != null) for (int v : values) key.add(v);
+                return groups.computeIfAbsent(key, k -> new GroupTotals(ranges, values));
+            }
+
+            private void clear() {
+                // logical positions moved; rebuilding on demand is simpler than remapping
+                indexes.clear();
+                groups.clear();
+                byColumn.clear();
+                byRow.clear();
+                structureVersion = target.structureVersion;
+            }
+
+            // What-if: indexes and totals built from the input cells are stale once they change
+            void dropInputReaders() {
+                for (LookupIndex index : indexes.values()) {
+                    if (index.readsInput) index.invalidate();
+                }
+                for (GroupTotals group : groups.values()) {
+                    if (group.readsInput) group.invalidate();
+                }
+            }
+
+            // Formula results of other sheets may read any cell of this one
+            private void dropVolatile() {
+                for (LookupIndex index : indexes.values()) {
+                    if (index.volatileValues) index.invalidate();
+                }
+                for (GroupTotals group : groups.values()) {
+                    if (group.volatileValues) group.invalidate();
+                }
+            }
+
+            @Override
+            public void cellChanged(int pr, int pc, String oldRaw, String newRaw) {
+                for (LookupCache other : caches.values()) {
+                    if (other != this) other.dropVolatile();
+                }
+                if (structureVersion != target.structureVersion) return; // everything is dropped on next use
+                if (!groups.isEmpty()) {
+                    int r = target.rowIndexOf(pr), c = target.colIndexOf(pc);
+                    on(target, () -> {
+                        // regrouping reads the neighbouring criteria cells of this sheet
+                        for (GroupTotals group : groups.values()) {
+                            if (group.volatileValues) group.invalidate();
+                            else group.update(r, c, oldRaw, newRaw);
+                        }
+                        return null;
+                    });
+                }
+                for (LookupIndex index : indexes.values()) {
+                    if (index.volatileValues) index.invalidate();
+                }
+                List<LookupIndex> columns = byColumn.get(pc), rowsHit = byRow.get(pr);
+                if (columns != null) {
+                    int r = target.rowIndexOf(pr);
+                    for (LookupIndex index : columns) {
+                        if (r >= index.from && r <= index.to) index.update(r - index.from, oldRaw, newRaw);
+                    }
+                }
+                if (rowsHit != null) {
+                    int c = target.colIndexOf(pc);
+                    for (LookupIndex index : rowsHit) {
+                        if (c >= index.from && c <= index.to) index.update(c - index.from, oldRaw, newRaw);
+                    }
+                }
+            }
+        }
+
+
+        // Text shown for a raw cell value: formulas are evaluated and formatted
+        private String displayText(String raw) {
+            if (raw != null && raw.startsWith("=")) return formatValue(evaluateValue(raw));
+            return raw == null ? "" : raw;
+        }
+
+        // Text shown for a formula result
+        static String formatValue(Object value) {
+            if (value instanceof String) return (String) value;
+            return CellFormat.GENERAL.format((Double) value);
+        }
+
+        /**
+         * Evaluate formula string (starting with '=')
+         * Supports functions and nested references and arithmetic expressions
+         */
+        private double evaluateFormula(String expr) {
+            Object value = evaluateValue(expr);
+            return value instanceof Double ? (Double) value : Double.NaN;
+        }
+
+        /**
+         * Evaluate a formula to a Double, or to a String when its result is text (a lookup that
+         * returns text, a string literal, or a reference to a text cell). NOT_AVAILABLE means a
+         * lookup found nothing.
+         */
+        private Object evaluateValue(String expr) {
+            if (memo == null) return evaluate(expr);
+            // a what-if worker: keep results that no input went into, they hold for every point
+            Map<String, Object> known = memo.computeIfAbsent(sheet, k -> new HashMap<>());
+            Object value = known.get(expr);
+            if (value != null) return value;
+            boolean outer = readInput;
+            readInput = false;
+            value = evaluate(expr);
+            if (!readInput) known.put(expr, value);
+            readInput |= outer;
+            return value;
+        }
+
+        // A formula that is already being evaluated on the same sheet is a circular reference: an error
+        private Object evaluate(String expr) {
+            for (int i = 0; i < depth; i++) {
+                if (evaluatingSheets[i] == sheet && evaluatingFormulas[i].equals(expr)) return Double.NaN;
+            }
+            if (depth == evaluatingSheets.length) {
+                evaluatingSheets = Arrays.copyOf(evaluatingSheets, depth * 2);
+                evaluatingFormulas = Arrays.copyOf(evaluatingFormulas, depth * 2);
+            }
+            evaluatingSheets[depth] = sheet;
+            evaluatingFormulas[depth++] = expr;
+            try {
+                return evaluateUnchecked(expr);
+            } finally {
+                evaluatingFormulas[--depth] = null;
+            }
+        }
+
+        private Object evaluateUnchecked(String expr) {
+            try {
+                expr = expr.substring(1).trim(); // remove '=' and trim spaces
+                if (expr.contains("#REF!")) return Double.NaN;
+                expr = expr.replace("$", ""); // absolute markers only matter when copying
+
+                int[] single = parseCell(expr);
+                if (single != null) return cellValue(single[0], single[1]);
+                Matcher qualified = SHEET_PREFIX.matcher(expr);
+                if (qualified.matches() && parseCell(qualified.group(2)) != null) {
+                    Sheet target = sheetNamed(qualified.group(1));
+                    int[] cell = parseCell(qualified.group(2));
+                    return target == null ? Double.NaN : on(target, () -> cellValue(cell[0], cell[1]));
+                }
+
+                // process functions iteratively until no functions remain
+                expr = processAllFunctions(expr);
+                if (expr.contains(NOT_AVAILABLE)) return NOT_AVAILABLE;
+                if (isStringLiteral(expr)) return unquote(expr);
+                if (expr.indexOf('"') >= 0) return Double.NaN; // no arithmetic on text
+                if (isArrayExpression(expr)) {
+                    // a cell shows one number: the array must reduce to a single element
+                    Block block = evaluateArray(expr);
+                    return block != null && block.values.length == 1 ? block.values[0] : Double.NaN;
+                }
+
+                // Replace single cell references like A1, B2, AA10 etc. with their numeric values (or 0)
+                Matcher matcher = OPERAND_REF.matcher(expr);
+                StringBuffer sb = new StringBuffer();
+
+                while (matcher.find()) {
+                    int[] cell = parseCell(matcher.group(2) + matcher.group(3));
+                    Sheet target = matcher.group(1) == null ? sheet : sheetNamed(matcher.group(1));
+                    if (target == null) return Double.NaN; // no such sheet
+                    String val = target == sheet ? operand(cell) : on(target, () -> operand(cell));
+                    matcher.appendReplacement(sb, Matcher.quoteReplacement(val));
+                }
+                matcher.appendTail(sb);
+
+                String processed = sb.toString();
+
+                // Evaluate arithmetic expression using internal evaluator
+                return evaluateExpression(processed);
+            } catch (StackOverflowError | RuntimeException e) {
+                return Double.NaN; // nesting too deep or a malformed formula: an error value
+            }
+        }
+
+        // A referenced cell as a number literal for the arithmetic evaluator (blanks, text and errors are 0)
+        private String operand(int[] cell) {
+            String val = "0";
+            if (cell != null && cell[0] >= 0 && cell[0] < rows && cell[1] >= 0 && cell[1] < cols) {
+                String raw = cellRaw(cell[0], cell[1]);
+                if (raw != null && raw.startsWith("=")) {
+                    double nested = evaluateFormula(raw);
+                    if (!Double.isNaN(nested)) {
+                        val = String.valueOf(nested);
+                    } else {
+                        val = "0";
+                    }
+                } else {
+                    if (raw == null || raw.isEmpty()) {
+                        val = "0";
+                    } else {
+                        try {
+                            Double.parseDouble(raw);
+                            val = raw;
+                        } catch (NumberFormatException e) {
+                            val = "0";
+                        }
+                    }
+                }
+            }
+            return val;
+        }
+
+        // Find and replace functions (supports nested functions inside args)
+        private String processAllFunctions(String expr) {
+            // Keep applying replacements until no function patterns are left
+            // functionName(args...) where args can contain commas, nested parentheses
+            boolean changed = true;
+            String working = expr;
+            while (changed) {
+                changed = false;
+                // regex finds something like NAME(...) where NAME is letters
+                Matcher m = FUNCTION_CALL.matcher(working);
+                if (!m.find()) break;
+                // We must scan manually to capture full parentheses groups
+                StringBuilder sb = new StringBuilder();
+                int i = 0;
+                while (i < working.length()) {
+                    char c = working.charAt(i);
+                    if (c == '"') {
+                        // copy string literals untouched
+                        int end = closingQuote(working, i);
+                        sb.append(working, i, end);
+                        i = end;
+                    } else if (Character.isLetter(c)) {
+                        // possible start of function name
+                        int startName = i;
+                        while (i < working.length() && Character.isLetter(working.charAt(i))) i++;
+                        if (i < working.length() && working.charAt(i) == '(') {
+                            String fname = working.substring(startName, i).toUpperCase();
+                            int parenStart = i;
+                            int level = 0;
+                            int j = i;
+                            for (; j < working.length(); j++) {
+                                char cc = working.charAt(j);
+                                if (cc == '"') j = closingQuote(working, j) - 1;
+                                else if (cc == '(') level++;
+                                else if (cc == ')') {
+                                    level--;
+                                    if (level == 0) {
+                                        break;
+                                    }
+                                }
+                            }
+                            if (j >= working.length()) {
+                                // mismatched parentheses — just append remainder and break
+                                sb.append(working.substring(startName));
+                                i = working.length();
+                                break;
+                            } else {
+                                String inner = working.substring(parenStart + 1, j); // content inside parentheses
+                                if (LOOKUP_FUNCTIONS.contains(fname) || CONDITIONAL_FUNCTIONS.contains(fname)) {
+                                    sb.append(literal(LOOKUP_FUNCTIONS.contains(fname) ? applyLookup(fname, inner.trim())
+                                            : applyConditional(fname, inner.trim())));
+                                    i = j + 1;
+                                    changed = true;
+                                    continue;
+                                }
+                                // compute function value
+                                Double val = applyFunction(fname, inner.trim());
+                                if (val == null || Double.isNaN(val)) {
+                                    sb.append("0"); // On error, substitute 0
+                                } else {
+                                    // replace with numeric literal (unformatted)
+                                    sb.append(String.valueOf(val));
+                                }
+                                i = j + 1;
+                                changed = true;
+                                continue;
+                            }
+                        } else {
+                            // not a function, append char at startName and continue
+                            sb.append(working.charAt(startName));
+                            i = startName + 1;
+                        }
+                    } else {
+                        sb.append(c);
+                        i++;
+                    }
+                }
+                working = sb.toString();
+            }
+            return working;
+        }
+
+        // Apply a named function; returns null or NaN on error
+        private Double applyFunction(String name, String argsText) {
+            try {
+                String fname = name.toUpperCase();
+                List<String> args = splitArgs(argsText);
+                if (fname.equals("SUMPRODUCT")) return sumProduct(args);
+                Numbers numbers = new Numbers();
+
+                // Collect numeric values from all args
+                for (String a : args) {
+                    a = a.trim();
+                    if (a.isEmpty()) continue;
+
+                    if (isArrayExpression(a) && !RANGE_REF.matcher(a).matches()) {
+                        // element-wise arithmetic over ranges, e.g. SUM(A1:A100*B1:B100)
+                        Block block = evaluateArray(a);
+                        if (block == null) return Double.NaN;
+                        for (double v : block.values) numbers.add(Double.isNaN(v) ? 0.0 : v);
+                    } else if (a.contains(":") && !a.contains("(")) {
+                        getRangeValuesAll(a, numbers);
+                    } else {
+                        int[] cell = parseCell(a);
+                        if (cell != null) {
+                            String raw = safeCell(cell[0], cell[1]);
+                            if (raw != null && raw.startsWith("=")) {
+                                double v = evaluateFormula(raw);
+                                numbers.add(Double.isNaN(v) ? 0.0 : v);
+                            } else {
+                                numbers.add(parseDoubleOrZero(raw));
+                            }
+                        } else {
+                            try {
+                                numbers.add(Double.parseDouble(a));
+                            } catch (NumberFormatException ex) {
+                                // Expression argument, possibly with nested functions and cell references
+                                double eval = evaluateFormula("=" + a);
+                                numbers.add(Double.isNaN(eval) ? 0.0 : eval);
+                            }
+                        }
+                    }
+                }
+
+                // Precompute commonly used values for interrelated functions
+                double[] values = numbers.values;
+                int n = numbers.size;
+                double sum = 0.0, prod = 1.0;
+                double min = n == 0 ? 0.0 : Double.POSITIVE_INFINITY;
+                double max = n == 0 ? 0.0 : Double.NEGATIVE_INFINITY;
+                for (int i = 0; i < n; i++) {
+                    double d = values[i];
+                    sum += d;
+                    prod *= d;
+                    if (d < min) min = d;
+                    if (d > max) max = d;
+                }
+                double avg = n == 0 ? 0.0 : sum / n;
+
+                switch (fname) {
+                    case "SUM": return sum;
+                    case "AVG":
+                    case "AVERAGE": return avg;
+                    case "MIN": return min;
+                    case "MAX": return max;
+                    case "COUNT": return (double) n;
+                    case "MEDIAN":
+                        if (n == 0) return 0.0;
+                        Arrays.sort(values, 0, n);
+                        return (n % 2 == 1) ? values[n / 2] : (values[n / 2 - 1] + values[n / 2]) / 2.0;
+                    case "MODE":
+                        if (n == 0) return 0.0;
+                        Map<Double, Integer> freq = new HashMap<>();
+                        for (int i = 0; i < n; i++) freq.merge(values[i], 1, Integer::sum);
+                        double mode = values[0];
+                        int best = 0;
+                        for (Map.Entry<Double, Integer> e : freq.entrySet()) {
+                            if (e.getValue() > best || (e.getValue() == best && e.getKey() < mode)) {
+                                mode = e.getKey();
+                                best = e.getValue();
+                            }
+                        }
+                        return mode;
+                    case "STDEV":
+                        if (n <= 1) return 0.0;
+                        double sumsq = 0.0;
+                        for (int i = 0; i < n; i++) sumsq += (values[i] - avg) * (values[i] - avg);
+                        return Math.sqrt(sumsq / (n - 1));
+                    case "RANGE": return max - min;
+                    case "PRODUCT": return n == 0 ? 0.0 : prod;
+                    case "ABS": return n == 0 ? 0.0 : Math.abs(values[0]);
+                    case "SQRT": return n == 0 ? 0.0 : Math.sqrt(values[0]);
+                    case "MEAN":
+                        return n == 0 ? 0.0 : Math.pow(prod, 1.0 / n); // geometric mean uses PRODUCT
+                    default: return Double.NaN;
+                }
+
+            } catch (RuntimeException ex) {
+                return Double.NaN;
+            }
+        }
+
+        // Growable double[] the arguments of a function are collected into, without boxing each value
+        private static class Numbers {
+            double[] values = new double[16];
+            int size;
+
+            void add(double v) {
+                if (size == values.length) values = Arrays.copyOf(values, size * 2);
+                values[size++] = v;
+            }
+        }
+
+        // SUMPRODUCT(a, b, ...): multiply same-shape arrays element by element and add up the products
+        private Double sumProduct(List<String> args) {
+            Block product = null;
+            for (String a : args) {
+                if (a.trim().isEmpty()) continue;
+                Block block = evaluateArray(a);
+                if (block == null) return Double.NaN;
+                if (product != null && (block.height != product.height || block.width != product.width)) return Double.NaN;
+                product = product == null ? block : combine('*', product, block);
+            }
+            if (product == null) return Double.NaN;
+            double sum = 0.0;
+            for (double v : product.values) sum += Double.isNaN(v) ? 0.0 : v;
+            return sum;
+        }
+
+        // Helper: split args at commas not inside nested parentheses or string literals
+        private List<String> splitArgs(String s) {
+            List<String> out = new ArrayList<>();
+            if (s == null) return out;
+            int level = 0;
+            boolean inQuotes = false;
+            StringBuilder cur = new StringBuilder();
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"') inQuotes = !inQuotes; // a doubled "" toggles twice
+                if (c == ',' && level == 0 && !inQuotes) {
+                    out.add(cur.toString().trim());
+                    cur.setLength(0);
+                } else {
+                    if (c == '(' && !inQuotes) level++;
+                    else if (c == ')' && !inQuotes) if (level > 0) level--;
+                    cur.append(c);
+                }
+            }
+            if (cur.length() > 0) out.add(cur.toString().trim());
+            return out;
+        }
+
+        // Expand ranges (A1:B2) and also single cell references into numeric values (including nested formulas)
+        private void getRangeValuesAll(String range, Numbers values) {
+            if (range == null || range.isEmpty()) return;
+            Sheet target = sheetOf(range);
+            if (target == null) return;
+            if (target != sheet) {
+                on(target, () -> {
+                    getRangeValuesAll(localRef(range), values);
+                    return null;
+                });
+                return;
+            }
+            String[] parts = localRef(range).split(":");
+            if (parts.length == 1) {
+                int[] cell = parseCell(parts[0].trim());
+                if (cell != null && validCell(cell[0], cell[1])) {
+                    String raw = safeCell(cell[0], cell[1]);
+                    if (raw == null || raw.isEmpty()) {
+                        values.add(0.0);
+                    } else if (raw.startsWith("=")) {
+                        double res = evaluateFormula(raw);
+                        values.add(Double.isNaN(res) ? 0.0 : res);
+                    } else {
+                        values.add(parseDoubleOrZero(raw));
+                    }
+                }
+                return;
+            } else if (parts.length == 2) {
+                int[] start = parseCell(parts[0].trim());
+                int[] end = parseCell(parts[1].trim());
+                if (start == null || end == null) return;
+                // clamp to the sheet; cells outside it are skipped
+                int minRow = Math.max(0, Math.min(start[0], end[0]));
+                int maxRow = Math.min(rows - 1, Math.max(start[0], end[0]));
+                int minCol = Math.max(0, Math.min(start[1], end[1]));
+                int maxCol = Math.min(cols - 1, Math.max(start[1], end[1]));
+                if (minRow > maxRow || minCol > maxCol) return;
+                int[] colIds = sheet.colIds(minCol, maxCol + 1);
+                for (int pr : sheet.rowIds(minRow, maxRow + 1)) {
+                    for (int pc : colIds) {
+                        String raw = physicalRaw(pr, pc);
+                        if (raw == null || raw.isEmpty()) {
+                            values.add(0.0);
+                        } else if (raw.startsWith("=")) {
+                            double res = evaluateFormula(raw);
+                            values.add(Double.isNaN(res) ? 0.0 : res);
+                        } else {
+                            values.add(parseDoubleOrZero(raw));
+                        }
+                    }
+                }
+            }
+        }
+
+        // A cell reference in arithmetic, not the exponent of a number such as 1.5E7
+        private static final Pattern OPERAND_REF = Pattern.compile("(?<![0-9.])(?:('[^']+'|[A-Za-z_][A-Za-z0-9_.]*)!)?([A-Z]+)([0-9]+)");
+        private static final Pattern FUNCTION_CALL = Pattern.compile("([A-Z]+)\\(", Pattern.CASE_INSENSITIVE);
+        private static final String NOT_AVAILABLE = "#N/A";
+        private static final Set<String> LOOKUP_FUNCTIONS = new HashSet<>(Arrays.asList("VLOOKUP", "HLOOKUP", "MATCH", "INDEX", "XLOOKUP"));
+
+        /**
+         * Lookup functions. Exact matches come from the shared hash index of the searched column
+         * (or row), approximate ones from its sorted index, so repeated lookups into the same table
+         * cost O(1) / O(log n) each instead of a scan. Returns a Double, text or NOT_AVAILABLE.
+         */
+        private Object applyLookup(String name, String argsText) {
+            try {
+                List<String> args = splitArgs(argsText);
+                BitSet ranges = new BitSet();
+                ranges.set(name.equals("INDEX") ? 0 : 1);
+                if (name.equals("XLOOKUP")) ranges.set(2);
+                Object elsewhere = onRangeSheet(name, args, ranges);
+                if (elsewhere != null) return elsewhere;
+                switch (name) {
+                    case "VLOOKUP":
+                    case "HLOOKUP": {
+                        if (args.size() < 3) return Double.NaN;
+                        boolean vertical = name.equals("VLOOKUP");
+                        int[] table = rangeArg(args.get(1));
+                        double column = numberArg(args.get(2)), match = args.size() < 4 ? 1 : numberArg(args.get(3));
+                        int index = (int) column - 1;
+                        if (table == null || Double.isNaN(column) || Double.isNaN(match) || index < 0
+                                || index > (vertical ? table[3] - table[1] : table[2] - table[0])) return Double.NaN;
+                        boolean approximate = match != 0;
+                        LookupIndex searched = vertical ? lookupCache().column(table[1], table[0], table[2])
+                                : lookupCache().row(table[0], table[1], table[3]);
+                        Object key = lookupKey(argValue(args.get(0)));
+                        int offset = approximate ? searched.nearest(key, true) : searched.first(key);
+                        if (offset < 0) return NOT_AVAILABLE;
+                        return vertical ? cellValue(table[0] + offset, table[1] + index) : cellValue(table[0] + index, table[1] + offset);
+                    }
+                    case "MATCH": {
+                        if (args.size() < 2) return Double.NaN;
+                        int[] range = rangeArg(args.get(1));
+                        if (range == null || (range[0] != range[2] && range[1] != range[3])) return Double.NaN;
+                        double matchType = args.size() < 3 ? 1 : numberArg(args.get(2));
+                        if (Double.isNaN(matchType)) return Double.NaN;
+                        int type = (int) Math.signum(matchType);
+                        LookupIndex searched = line(range);
+                        Object key = lookupKey(argValue(args.get(0)));
+                        int offset = type == 0 ? searched.first(key) : searched.nearest(key, type > 0);
+                        return offset < 0 ? NOT_AVAILABLE : (Object) (double) (offset + 1);
+                    }
+                    case "INDEX": {
+                        if (args.size() < 2) return Double.NaN;
+                        int[] range = rangeArg(args.get(0));
+                        if (range == null) return Double.NaN;
+                        double rowArg = numberArg(args.get(1)), colArg = args.size() > 2 ? numberArg(args.get(2)) : 1;
+                        if (Double.isNaN(rowArg) || Double.isNaN(colArg)) return Double.NaN;
+                        int row = (int) rowArg, col = (int) colArg;
+                        if (args.size() == 2 && range[0] == range[2]) {
+                            // a single row is indexed by column
+                            col = row;
+                            row = 1;
+                        }
+                        if (row < 1 || col < 1 || range[0] + row - 1 > range[2] || range[1] + col - 1 > range[3]) return Double.NaN;
+                        return cellValue(range[0] + row - 1, range[1] + col - 1);
+                    }
+                    case "XLOOKUP": {
+                        if (args.size() < 3) return Double.NaN;
+                        int[] range = rangeArg(args.get(1)), result = rangeArg(args.get(2));
+                        if (range == null || result == null || (range[0] != range[2] && range[1] != range[3])) return Double.NaN;
+                        boolean vertical = range[1] == range[3];
+                        double modeArg = args.size() > 4 && !args.get(4).isEmpty() ? numberArg(args.get(4)) : 0;
+                        double orderArg = args.size() > 5 ? numberArg(args.get(5)) : 1;
+                        if (Double.isNaN(modeArg) || Double.isNaN(orderArg)) return Double.NaN;
+                        int mode = (int) modeArg;
+                        boolean lastFirst = orderArg < 0;
+                        LookupIndex searched = line(range);
+                        Object key = lookupKey(argValue(args.get(0)));
+                        int offset;
+                        if (mode == 2) offset = searched.wildcard(key, lastFirst);
+                        else {
+                            offset = lastFirst ? searched.last(key) : searched.first(key);
+                            if (offset < 0 && mode != 0) offset = searched.nearest(key, mode < 0);
+                        }
+                        if (offset < 0) return args.size() > 3 && !args.get(3).isEmpty() ? argValue(args.get(3)) : NOT_AVAILABLE;
+                        return vertical ? cellValue(result[0] + offset, result[1]) : cellValue(result[0], result[1] + offset);
+                    }
+                    default:
+                        return Double.NaN;
+                }
+            } catch (RuntimeException ex) {
+                return Double.NaN; // a malformed call is an error value, like the other error paths
+            }
+        }
+
+        private static final Set<String> CONDITIONAL_FUNCTIONS = new HashSet<>(Arrays.asList(
+                "SUMIF", "COUNTIF", "AVERAGEIF", "SUMIFS", "COUNTIFS", "AVERAGEIFS", "MAXIFS", "MINIFS"));
+
+        /**
+         * Conditional aggregates. When every criterion is a plain equality the answer is one hash
+         * probe into the group totals of (criteria ranges, value range), built in a single pass and
+         * shared by every formula over those ranges; other criteria scan the ranges.
+         */
+        private Double applyConditional(String name, String argsText) {
+            try {
+                List<String> args = splitArgs(argsText);
+                BitSet rangeArgs = new BitSet();
+                boolean ifs = name.endsWith("IFS");
+                for (int i = 0; i < args.size(); i++) {
+                    // SUMIF(range, criterion, [sum_range]), COUNTIFS(range, criterion, ...), SUMIFS(sum_range, range, criterion, ...)
+                    if (!ifs ? i != 1 : name.equals("COUNTIFS") ? i % 2 == 0 : i == 0 || i % 2 == 1) rangeArgs.set(i);
+                }
+                Object elsewhere = onRangeSheet(name, args, rangeArgs);
+                if (elsewhere != null) return (Double) elsewhere;
+                List<int[]> ranges = new ArrayList<>();
+                List<Criterion> criteria = new ArrayList<>();
+                // the value range: SUMIF(range, criterion, [sum_range]) and the first argument of the *IFS but COUNTIFS
+                int[] values = null;
+                if (name.equals("SUMIF") || name.equals("AVERAGEIF")) {
+                    if (args.size() < 2) return Double.NaN;
+                    values = rangeArg(args.size() > 2 ? args.get(2) : args.get(0));
+                    if (values == null) return Double.NaN;
+                } else if (ifs && !name.equals("COUNTIFS")) {
+                    values = args.isEmpty() ? null : rangeArg(args.get(0));
+                    if (values == null) return Double.NaN;
+                }
+                // then the (range, criterion) pairs; the *IF forms have one pair and may have a value range after it
+                int firstPair = values != null && ifs ? 1 : 0;
+                int pairArgs = ifs ? args.size() - firstPair : 2;
+                if (args.size() < firstPair + 2 || pairArgs % 2 != 0) return Double.NaN;
+                for (int i = firstPair; i < firstPair + pairArgs; i += 2) {
+                    ranges.add(rangeArg(args.get(i)));
+                    criteria.add(Criterion.parse(argValue(args.get(i + 1))));
+                }
+                if (ranges.contains(null)) return Double.NaN;
+                int height = ranges.get(0)[2] - ranges.get(0)[0] + 1, width = ranges.get(0)[3] - ranges.get(0)[1] + 1;
+                for (int[] range : ranges) {
+                    if (range[2] - range[0] + 1 != height || range[3] - range[1] + 1 != width) return Double.NaN;
+                }
+                // like Excel, the value range takes the shape of the criteria range from its top-left cell
+                if (values != null) values = new int[]{values[0], values[1], values[0] + height - 1, values[1] + width - 1};
+
+                double sum = 0, numeric = 0, matches = 0;
+                double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+                boolean grouped = !name.equals("MAXIFS") && !name.equals("MINIFS");
+                for (Criterion criterion : criteria) grouped &= criterion.isEquality();
+                if (grouped) {
+                    List<Object> group = new ArrayList<>();
+                    for (Criterion criterion : criteria) group.add(criterion.operand);
+                    double[] totals = lookupCache().groupTotals(ranges, values).totals().get(group);
+                    if (totals != null) {
+                        sum = totals[0];
+                        numeric = totals[1];
+                        matches = totals[2];
+                    }
+                } else {
+                    for (int i = 0; i < height; i++) {
+                        for (int j = 0; j < width; j++) {
+                            boolean match = true;
+                            for (int k = 0; k < criteria.size() && match; k++) {
+                                match = criteria.get(k).test(cellKey(ranges.get(k)[0] + i, ranges.get(k)[1] + j, -1, -1, null));
+                            }
+                            if (!match) continue;
+                            matches++;
+                            Double v = values == null ? null : cellNumber(values[0] + i, values[1] + j, -1, -1, null);
+                            if (v == null) continue;
+                            sum += v;
+                            numeric++;
+                            min = Math.min(min, v);
+                            max = Math.max(max, v);
+                        }
+                    }
+                }
+                switch (name) {
+                    case "COUNTIF":
+                    case "COUNTIFS": return matches;
+                    case "SUMIF":
+                    case "SUMIFS": return sum;
+                    case "MAXIFS": return numeric == 0 ? 0.0 : max;
+                    case "MINIFS": return numeric == 0 ? 0.0 : min;
+                    default: return numeric == 0 ? Double.NaN : sum / numeric; // no numbers to average is an error
+                }
+            } catch (RuntimeException ex) {
+                return Double.NaN; // a malformed call is an error value, like the other error paths
+            }
+        }
+
+        /**
+         * A lookup or conditional function whose range arguments are all on another sheet runs
+         * there; its other arguments are evaluated here first and passed on as literals. Returns
+         * null when the ranges are on the current sheet, NaN when they name different sheets.
+         */
+        private Object onRangeSheet(String name, List<String> args, BitSet ranges) {
+            Sheet target = null;
+            for (int i = ranges.nextSetBit(0); i >= 0 && i < args.size(); i = ranges.nextSetBit(i + 1)) {
+                Sheet s = sheetOf(args.get(i));
+                if (s == null || (target != null && s != target)) return Double.NaN;
+                target = s;
+            }
+            if (target == null || target == sheet) return null;
+            List<String> local = new ArrayList<>(args);
+            for (int i = 0; i < args.size(); i++) {
+                if (ranges.get(i)) local.set(i, localRef(args.get(i)));
+                else if (!args.get(i).isEmpty()) local.set(i, literal(argValue(args.get(i))));
+            }
+            String argsText = String.join(",", local);
+            return on(target, () -> LOOKUP_FUNCTIONS.contains(name) ? applyLookup(name, argsText) : applyConditional(name, argsText));
+        }
+
+        // Lookup key of a cell (null when blank), reading raw instead of the sheet at (editRow, editCol)
+        private Object cellKey(int r, int c, int editRow, int editCol, String raw) {
+            if (r != editRow || c != editCol) raw = safeCell(r, c);
+            return lookupKey(raw.startsWith("=") ? evaluateValue(raw) : raw);
+        }
+
+        // Numeric value of a cell, or null for blanks and text (which aggregates skip)
+        private Double cellNumber(int r, int c, int editRow, int editCol, String raw) {
+            Object key = cellKey(r, c, editRow, editCol, raw);
+            return key instanceof Double ? (Double) key : null;
+        }
+
+        // Index over a one-column or one-row range
+        private LookupIndex line(int[] range) {
+            return range[1] == range[3] ? lookupCache().column(range[1], range[0], range[2])
+                    : lookupCache().row(range[0], range[1], range[3]);
+        }
+
+        private LookupCache lookupCache() {
+            return caches.computeIfAbsent(sheet, LookupCache::new);
+        }
+
+        // Value of a function argument: a string literal, a cell's value, a number, a nested expression or a & b
+        private Object argValue(String arg) {
+            arg = arg.trim();
+            List<String> parts = splitConcatenation(arg);
+            if (parts.size() > 1) {
+                StringBuilder text = new StringBuilder();
+                for (String part : parts) {
+                    Object value = argValue(part);
+                    if (value instanceof Double) {
+                        double d = (Double) value;
+                        text.append(d == (long) d ? String.valueOf((long) d) : String.valueOf(d));
+                    } else {
+                        text.append(value);
+                    }
+                }
+                return text.toString();
+            }
+            if (isStringLiteral(arg)) return unquote(arg);
+            if (arg.equalsIgnoreCase("TRUE")) return 1.0;
+            if (arg.equalsIgnoreCase("FALSE")) return 0.0;
+            int[] cell = parseCell(arg);
+            if (cell != null) return cellValue(cell[0], cell[1]);
+            try {
+                return Double.parseDouble(arg);
+            } catch (NumberFormatException ex) {
+                return evaluateValue("=" + arg);
+            }
+        }
+
+        // Operands of & outside string literals and parentheses
+        private static List<String> splitConcatenation(String s) {
+            List<String> parts = new ArrayList<>();
+            int level = 0, start = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"') i = closingQuote(s, i) - 1;
+                else if (c == '(') level++;
+                else if (c == ')') level--;
+                else if (c == '&' && level == 0) {
+                    parts.add(s.substring(start, i));
+                    start = i + 1;
+                }
+            }
+            parts.add(s.substring(start));
+            return parts;
+        }
+
+        // A numeric argument; NaN for text that is not a number
+        private double numberArg(String arg) {
+            Object value = argValue(arg);
+            if (value instanceof Double) return (Double) value;
+            return isNumber((String) value) ? Double.parseDouble((String) value) : Double.NaN;
+        }
+
+        // A cell or range argument clamped to the sheet as {firstRow, firstCol, lastRow, lastCol}, or null
+        private int[] rangeArg(String arg) {
+            String[] parts = localRef(arg).trim().split(":");
+            int[] start = parseCell(parts[0]);
+            int[] end = parts.length == 2 ? parseCell(parts[1]) : parts.length == 1 ? start : null;
+            if (start == null || end == null) return null;
+            int r0 = Math.max(0, Math.min(start[0], end[0])), r1 = Math.min(rows - 1, Math.max(start[0], end[0]));
+            int c0 = Math.max(0, Math.min(start[1], end[1])), c1 = Math.min(cols - 1, Math.max(start[1], end[1]));
+            return r0 > r1 || c0 > c1 ? null : new int[]{r0, c0, r1, c1};
+        }
+
+        // Value of a cell as a formula sees it: a Double, text, or a nested formula's result; blanks are 0
+        private Object cellValue(int r, int c) {
+            String raw = safeCell(r, c);
+            if (raw.startsWith("=")) return evaluateValue(raw);
+            if (raw.isEmpty()) return 0.0;
+            try {
+                return Double.parseDouble(raw);
+            } catch (NumberFormatException ex) {
+                return raw;
+            }
+        }
+
+        // Lookups compare numbers numerically and text case-insensitively; null for blanks and errors
+        private static Object lookupKey(Object value) {
+            if (value instanceof Double) {
+                double d = (Double) value;
+                return Double.isNaN(d) ? null : d == 0 ? 0.0 : d; // -0.0 equals 0.0
+            }
+            String text = (String) value;
+            if (text.isEmpty()) return null;
+            char first = text.charAt(0);
+            // most text cannot be a number; skip the costly failed parse for it
+            if (Character.isDigit(first) || first == '-' || first == '+' || first == '.' || first == ' ') {
+                try {
+                    return lookupKey(Double.parseDouble(text));
+                } catch (NumberFormatException ex) {
+                    // text after all
+                }
+            }
+            return text.toLowerCase(Locale.ROOT);
+        }
+
+        // Excel wildcard pattern: * any text, ? one character, ~ escapes the next one
+        private static Pattern wildcardPattern(String pattern) {
+            StringBuilder regex = new StringBuilder();
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c == '~' && i + 1 < pattern.length()) regex.append(Pattern.quote(String.valueOf(pattern.charAt(++i))));
+                else if (c == '*') regex.append(".*");
+                else if (c == '?') regex.append('.');
+                else regex.append(Pattern.quote(String.valueOf(c)));
+            }
+            return Pattern.compile(regex.toString(), Pattern.DOTALL);
+        }
+
+        private static boolean isStringLiteral(String s) {
+            return s.length() >= 2 && s.charAt(0) == '"' && closingQuote(s, 0) == s.length();
+        }
+
+        private static String unquote(String literal) {
+            return literal.substring(1, literal.length() - 1).replace("\"\"", "\"");
+        }
+
+        // Index just past the string literal that starts at the quote at i ("" inside is an escaped quote)
+        private static int closingQuote(String s, int i) {
+            for (int j = i + 1; j < s.length(); j++) {
+                if (s.charAt(j) != '"') continue;
+                if (j + 1 < s.length() && s.charAt(j + 1) == '"') j++;
+                else return j + 1;
+            }
+            return s.length();
+        }
+
+        // A function result written back into the expression being evaluated
+        private static String literal(Object value) {
+            if (value instanceof String) return value == NOT_AVAILABLE ? NOT_AVAILABLE : "\"" + ((String) value).replace("\"", "\"\"") + "\"";
+            double d = (Double) value;
+            return Double.isNaN(d) ? "0" : String.valueOf(d); // errors become 0, like applyFunction's
+        }
+
+        private boolean validCell(int r, int c) {
+            return r >= 0 && r < rows && c >= 0 && c < cols;
+        }
+
+        private String safeCell(int r, int c) {
+            if (!validCell(r, c)) return "";
+            return cellRaw(r, c);
+        }
+
+        // Raw value of a cell of the current sheet, with a what-if worker's inputs in place
+        private String cellRaw(int r, int c) {
+            if (sheet == overlaySheet) {
+                for (int i = 0; i < inputCells.length; i++) {
+                    if (inputCells[i][0] == r && inputCells[i][1] == c) return input(i);
+                }
+            }
+            return sheet.get(r, c);
+        }
+
+        private String physicalRaw(int pr, int pc) {
+            if (sheet == overlaySheet) {
+                for (int i = 0; i < inputCells.length; i++) {
+                    if (inputCells[i][2] == pr && inputCells[i][3] == pc) return input(i);
+                }
+            }
+            return sheet.getPhysical(pr, pc);
+        }
+
+        private String input(int i) {
+            readInput = true;
+            return inputValues[i];
+        }
+
+        private static double parseDoubleOrZero(String s) {
+            if (s == null) return 0.0;
+            try {
+                return Double.parseDouble(s);
+            } catch (NumberFormatException ex) {
+                return 0.0;
+            }
+        }
+
+        /**
+         * Evaluate arithmetic expression (numbers, + - * / ^, parentheses).
+         * Uses shunting-yard algorithm to build RPN and then evaluate.
+         */
+        private double evaluateExpression(String expr) {
+            try {
+                // Tokenize
+                List<String> tokens = tokenizeExpression(expr);
+                if (tokens.isEmpty()) return Double.NaN;
+
+                // Convert to RPN
+                List<String> rpn = toRPN(tokens);
+                if (rpn.isEmpty()) return Double.NaN;
+
+                // Evaluate RPN
+                Deque<Double> stack = new ArrayDeque<>();
+                for (String tok : rpn) {
+                    if (isNumber(tok)) {
+                        stack.push(Double.parseDouble(tok));
+                    } else if (tok.equals("~")) {
+                        if (stack.isEmpty()) return Double.NaN;
+                        stack.push(-stack.pop());
+                    } else {
+                        if (tok.equals("+") || tok.equals("-") || tok.equals("*") || tok.equals("/") || tok.equals("^")) {
+                            if (stack.size() < 2) return Double.NaN;
+                            double b = stack.pop();
+                            double a = stack.pop();
+                            switch (tok) {
+                                case "+": stack.push(a + b); break;
+                                case "-": stack.push(a - b); break;
+                                case "*": stack.push(a * b); break;
+                                case "/":
+                                    if (b == 0) return Double.NaN;
+                                    stack.push(a / b); break;
+                                case "^": stack.push(Math.pow(a, b)); break;
+                            }
+                        } else {
+                            return Double.NaN; // unknown token
+                        }
+                    }
+                }
+                if (stack.size() != 1) return Double.NaN;
+                return stack.pop();
+            } catch (RuntimeException ex) {
+                return Double.NaN;
+            }
+        }
+
+        // Tokenizer: recognizes numbers, operators, parentheses. Unary minus becomes "~", which binds tighter than ^ as in Excel.
+        private List<String> tokenizeExpression(String expr) {
+            List<String> tokens = new ArrayList<>();
+            if (expr == null) return tokens;
+            String s = expr.trim();
+            if (s.isEmpty()) return tokens;
+
+            // remove spaces
+            s = s.replaceAll("\\s+", "");
+
+            int i = 0;
+            while (i < s.length()) {
+                char c = s.charAt(i);
+                if ((c >= '0' && c <= '9') || c == '.') {
+                    int j = i + 1;
+                    while (j < s.length() && ((s.charAt(j) >= '0' && s.charAt(j) <= '9') || s.charAt(j) == '.')) j++;
+                    j = exponentEnd(s, j);
+                    tokens.add(s.substring(i, j));
+                    i = j;
+                } else if (c == '+' || c == '-' || c == '*' || c == '/' || c == '^') {
+                    // handle unary minus: if at start or after '(' or another operator, treat as unary
+                    if (c == '-') {
+                        if (tokens.isEmpty() || tokens.get(tokens.size() - 1).equals("(") ||
+                                tokens.get(tokens.size() - 1).equals("+") ||
+                                tokens.get(tokens.size() - 1).equals("-") ||
+                                tokens.get(tokens.size() - 1).equals("*") ||
+                                tokens.get(tokens.size() - 1).equals("/") ||
+                                tokens.get(tokens.size() - 1).equals("^") ||
+                                tokens.get(tokens.size() - 1).equals("~")) {
+                            tokens.add("~");
+                            i++;
+                            continue;
+                        }
+                    }
+                    tokens.add(String.valueOf(c));
+                    i++;
+                } else if (c == '(' || c == ')') {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                } else {
+                    // unknown char: skip (or invalidate) - allow commas inside expressions to be ignored
+                    i++;
+                }
+            }
+            return tokens;
+        }
+
+        // End of the exponent (E7, e-5) of a number ending at j, as String.valueOf writes large sums; j if none
+        private static int exponentEnd(String s, int j) {
+            if (j >= s.length() || (s.charAt(j) != 'E' && s.charAt(j) != 'e')) return j;
+            int k = j + 1;
+            if (k < s.length() && (s.charAt(k) == '+' || s.charAt(k) == '-')) k++;
+            if (k >= s.length() || !Character.isDigit(s.charAt(k))) return j;
+            while (k < s.length() && Character.isDigit(s.charAt(k))) k++;
+            return k;
+        }
+
+        private boolean isNumber(String s) {
+            if (s == null || s.isEmpty()) return false;
+            char c = s.charAt(0);
+            if (!Character.isDigit(c) && c != '.' && !(s.length() > 1 && (c == '-' || c == '+'))) return false; // operators, without an exception
+            try {
+                Double.parseDouble(s);
+                return true;
+            } catch (NumberFormatException ex) {
+                return false;
+            }
+        }
+
+        // precedence and associativity
+        private int precedence(String op) {
+            switch (op) {
+                case "+": case "-": return 1;
+                case "*": case "/": return 2;
+                case "^": return 3;
+                case "~": return 4; // unary minus: -2^2 is 4, as in Excel
+            }
+            return 0;
+        }
+
+        private boolean isRightAssociative(String op) {
+            return "^".equals(op) || "~".equals(op);
+        }
+
+        private boolean isOperator(String tok) {
+            return tok.equals("+") || tok.equals("-") || tok.equals("*") || tok.equals("/") || tok.equals("^") || tok.equals("~");
+        }
+
+        // Convert to Reverse Polish Notation (shunting-yard); arrayOperands admits the operands of array expressions
+        private List<String> toRPN(List<String> tokens) {
+            return toRPN(tokens, false);
+        }
+
+        private List<String> toRPN(List<String> tokens, boolean arrayOperands) {
+            List<String> output = new ArrayList<>();
+            Deque<String> ops = new ArrayDeque<>();
+
+            for (String tok : tokens) {
+                if (isNumber(tok)) {
+                    output.add(tok);
+                } else if (isOperator(tok)) {
+                    while (!ops.isEmpty() && !ops.peek().equals("(")) {
+                        String top = ops.peek();
+                        if ((isRightAssociative(tok) && precedence(tok) < precedence(top)) ||
+                                (!isRightAssociative(tok) && precedence(tok) <= precedence(top))) {
+                            output.add(ops.pop());
+                        } else {
+                            break;
+                        }
+                    }
+                    ops.push(tok);
+                } else if (tok.equals("(")) {
+                    ops.push(tok);
+                } else if (tok.equals(")")) {
+                    while (!ops.isEmpty() && !ops.peek().equals("(")) {
+                        output.add(ops.pop());
+                    }
+                    if (!ops.isEmpty() && ops.peek().equals("(")) {
+                        ops.pop();
+                    } else {
+                        return Collections.emptyList();
+                    }
+                } else if (arrayOperands) {
+                    output.add(tok); // range, cell or function call
+                } else {
+                    return Collections.emptyList();
+                }
+            }
+
+            while (!ops.isEmpty()) {
+                String t = ops.pop();
+                if (t.equals("(") || t.equals(")")) return Collections.emptyList(); // mismatched
+                output.add(t);
+            }
+
+            return output;
+        }
+
+        /**
+         * Value of an array expression: height x width numbers in row-major order; 1 x 1 is a
+         * scalar. Every block an expression produces is its own temporary, so operators may
+         * overwrite their operands.
+         */
+        private static final class Block {
+            static final int MAX_CELLS = 1 << 24;
+
+            final int height, width;
+            final double[] values;
+
+            Block(int height, int width) {
+                this.height = height;
+                this.width = width;
+                this.values = new double[height * width];
+            }
+
+            static Block scalar(double v) {
+                Block b = new Block(1, 1);
+                b.values[0] = v;
+                return b;
+            }
+        }
+
+        /**
+         * True if expr computes with a range (A1:A10*2, ABS(A1:A3-B1:B3)) rather than passing one
+         * to a function: there is a range outside every call except the element-wise ABS and SQRT.
+         */
+        private static boolean isArrayExpression(String expr) {
+            int i = 0;
+            while (i < expr.length()) {
+                char c = expr.charAt(i);
+                if (c == '"') {
+                    i = closingQuote(expr, i);
+                } else if (c == '\'') {
+                    int end = expr.indexOf('\'', i + 1);
+                    if (end < 0) return false;
+                    i = end + 1;
+                } else if (Character.isLetter(c)) {
+                    int start = i;
+                    while (i < expr.length() && Character.isLetterOrDigit(expr.charAt(i))) i++;
+                    if (i < expr.length() && expr.charAt(i) == '(') {
+                        String name = expr.substring(start, i).toUpperCase();
+                        if (!name.equals("ABS") && !name.equals("SQRT")) i = closingParen(expr, i);
+                    }
+                } else if (c == ':') {
+                    return true;
+                } else {
+                    i++;
+                }
+            }
+            return false;
+        }
+
+        // Index just past the parenthesis that closes the one at open (the end of s if unbalanced)
+        private static int closingParen(String s, int open) {
+            int level = 0;
+            for (int j = open; j < s.length(); j++) {
+                char c = s.charAt(j);
+                if (c == '"') j = closingQuote(s, j) - 1;
+                else if (c == '(') level++;
+                else if (c == ')' && --level == 0) return j + 1;
+            }
+            return s.length();
+        }
+
+        /**
+         * Evaluate an array expression: + - * / ^ and unary minus over ranges, cells, numbers and
+         * function calls, element by element. A range is read into a double[] in one pass over its
+         * physical cells (blanks and text count as 0, formulas are evaluated); a scalar, a single
+         * row or a single column is broadcast against a larger operand. Each operator is one loop
+         * over primitive arrays, so SUM(A1:A100000*B1:B100000) costs two column reads and no
+         * per-cell parsing or boxing. ABS and SQRT apply element-wise, other calls give a scalar.
+         * Returns null for a malformed expression or operands whose shapes do not match.
+         */
+        private Block evaluateArray(String expr) {
+            List<String> tokens = tokenizeArray(expr);
+            if (tokens == null || tokens.isEmpty()) return null;
+            List<String> rpn = toRPN(tokens, true);
+            if (rpn.isEmpty()) return null;
+            Deque<Block> stack = new ArrayDeque<>();
+            for (String tok : rpn) {
+                if (tok.equals("~")) {
+                    if (stack.isEmpty()) return null;
+                    double[] v = stack.peek().values;
+                    for (int i = 0; i < v.length; i++) v[i] = -v[i];
+                } else if (isOperator(tok)) {
+                    if (stack.size() < 2) return null;
+                    Block b = stack.pop();
+                    Block a = stack.pop();
+                    Block result = combine(tok.charAt(0), a, b);
+                    if (result == null) return null;
+                    stack.push(result);
+                } else {
+                    Block operand = arrayOperand(tok);
+                    if (operand == null) return null;
+                    stack.push(operand);
+                }
+            }
+            return stack.size() == 1 ? stack.pop() : null;
+        }
+
+        // Tokens of an array expression; references and calls stay whole, "~" is unary minus. Null if malformed.
+        private static List<String> tokenizeArray(String expr) {
+            List<String> tokens = new ArrayList<>();
+            Matcher ref = RANGE_REF.matcher(expr);
+            int i = 0;
+            while (i < expr.length()) {
+                char c = expr.charAt(i);
+                String last = tokens.isEmpty() ? "(" : tokens.get(tokens.size() - 1);
+                boolean operandExpected = last.equals("(") || last.equals("~") || last.length() == 1 && "+-*/^".indexOf(last.charAt(0)) >= 0;
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if ((c >= '0' && c <= '9') || c == '.') {
+                    int j = i + 1;
+                    while (j < expr.length() && (Character.isDigit(expr.charAt(j)) || expr.charAt(j) == '.')) j++;
+                    j = exponentEnd(expr, j);
+                    tokens.add(expr.substring(i, j));
+                    i = j;
+                } else if (c == '-' && operandExpected) {
+                    tokens.add("~");
+                    i++;
+                } else if (c == '+' && operandExpected) {
+                    i++; // unary plus
+                } else if ("+-*/^()".indexOf(c) >= 0) {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                } else if (Character.isLetter(c) || c == '\'' || c == '_') {
+                    int j = i;
+                    while (j < expr.length() && Character.isLetter(expr.charAt(j))) j++;
+                    if (j < expr.length() && expr.charAt(j) == '(') {
+                        j = closingParen(expr, j);
+                        if (expr.charAt(j - 1) != ')') return null;
+                    } else if (ref.region(i, expr.length()).lookingAt()) {
+                        j = ref.end();
+                    } else {
+                        return null;
+                    }
+                    tokens.add(expr.substring(i, j));
+                    i = j;
+                } else {
+                    return null;
+                }
+            }
+            return tokens;
+        }
+
+        // A number, range, cell or function call of an array expression as a block
+        private Block arrayOperand(String tok) {
+            if (tok.endsWith(")")) {
+                int open = tok.indexOf('(');
+                String name = tok.substring(0, open).toUpperCase();
+                if (name.equals("ABS") || name.equals("SQRT")) {
+                    Block arg = evaluateArray(tok.substring(open + 1, tok.length() - 1));
+                    if (arg == null) return null;
+                    double[] v = arg.values;
+                    for (int i = 0; i < v.length; i++) v[i] = name.equals("ABS") ? Math.abs(v[i]) : Math.sqrt(v[i]);
+                    return arg;
+                }
+                return Block.scalar(evaluateFormula("=" + tok));
+            }
+            if (isNumber(tok)) return Block.scalar(Double.parseDouble(tok));
+            Sheet target = sheetOf(tok);
+            if (target == null) return null;
+            String local = localRef(tok);
+            return target == sheet ? rangeBlock(local) : on(target, () -> rangeBlock(local));
+        }
+
+        // Cells of a range (or one cell) of the current sheet as numbers; cells beyond the sheet are 0
+        private Block rangeBlock(String ref) {
+            String[] parts = ref.split(":");
+            int[] start = parseCell(parts[0]);
+            int[] end = parseCell(parts[parts.length - 1]);
+            if (start == null || end == null) return null;
+            int top = Math.min(start[0], end[0]), bottom = Math.max(start[0], end[0]);
+            int left = Math.min(start[1], end[1]), right = Math.max(start[1], end[1]);
+            if ((long) (bottom - top + 1) * (right - left + 1) > Block.MAX_CELLS) return null;
+            Block block = new Block(bottom - top + 1, right - left + 1);
+            int maxRow = Math.min(rows - 1, bottom), maxCol = Math.min(cols - 1, right);
+            if (top > maxRow || left > maxCol) return block;
+            int[] rowIds = sheet.rowIds(top, maxRow + 1);
+            int[] colIds = sheet.colIds(left, maxCol + 1);
+            double[] values = block.values;
+            for (int i = 0; i < rowIds.length; i++) {
+                int base = i * block.width;
+                for (int j = 0; j < colIds.length; j++) {
+                    String raw = physicalRaw(rowIds[i], colIds[j]);
+                    if (raw == null || raw.isEmpty()) continue;
+                    if (raw.startsWith("=")) {
+                        double v = evaluateFormula(raw);
+                        values[base + j] = Double.isNaN(v) ? 0.0 : v;
+                    } else {
+                        values[base + j] = parseDoubleOrZero(raw);
+                    }
+                }
+            }
+            return block;
+        }
+
+        /**
+         * a op b element by element. A dimension of 1 stretches to the other operand's; otherwise
+         * the dimensions must agree (null if not). The result overwrites an operand of its shape.
+         */
+        private static Block combine(char op, Block a, Block b) {
+            int height = a.height == b.height || b.height == 1 ? a.height : a.height == 1 ? b.height : -1;
+            int width = a.width == b.width || b.width == 1 ? a.width : a.width == 1 ? b.width : -1;
+            if (height < 0 || width < 0) return null;
+            double[] x = a.values, y = b.values;
+            if (x.length == y.length && a.height == b.height) {
+                // same shape: the common case gets a tight loop per operator
+                switch (op) {
+                    case '+': for (int i = 0; i < x.length; i++) x[i] += y[i]; break;
+                    case '-': for (int i = 0; i < x.length; i++) x[i] -= y[i]; break;
+                    case '*': for (int i = 0; i < x.length; i++) x[i] *= y[i]; break;
+                    case '/': for (int i = 0; i < x.length; i++) x[i] = y[i] == 0 ? Double.NaN : x[i] / y[i]; break;
+                    default: for (int i = 0; i < x.length; i++) x[i] = Math.pow(x[i], y[i]);
+                }
+                return a;
+            }
+            Block out = a.height == height && a.width == width ? a : b.height == height && b.width == width ? b : new Block(height, width);
+            double[] z = out.values;
+            for (int r = height - 1; r >= 0; r--) {
+                int ra = a.height == 1 ? 0 : r * a.width, rb = b.height == 1 ? 0 : r * b.width;
+                for (int c = width - 1; c >= 0; c--) {
+                    double u = x[ra + (a.width == 1 ? 0 : c)], v = y[rb + (b.width == 1 ? 0 : c)];
+                    switch (op) {
+                        case '+': z[r * width + c] = u + v; break;
+                        case '-': z[r * width + c] = u - v; break;
+                        case '*': z[r * width + c] = u * v; break;
+                        case '/': z[r * width + c] = v == 0 ? Double.NaN : u / v; break;
+                        default: z[r * width + c] = Math.pow(u, v);
+                    }
+                }
+            }
+            return out;
+        }
+    }
+
+    /**
+     * What-if data table over a range of one sheet, as in Excel. With a column input cell, each
+     * value down the first column goes into that cell in turn and the formulas along the top row
+     * give the results; a row input cell works the other way round; with both, the top-left
+     * formula is evaluated for every pair of a row value and a column value. Nothing is written
+     * to the sheet and there is nothing to undo.
+     *
+     * Points run in parallel, each worker on an engine of its own (Workbook.worker) that reads the
+     * same sheets with the inputs as an overlay. A worker keeps every formula result whose
+     * evaluation read no input, so after its first point it recomputes only the inputs'
+     * dependency cone. The sheets must not change while run() is going.
+     */
+    private static class DataTable {
+        final Sheet sheet;
+        final int[] range, rowInput, colInput; // {top, left, bottom, right}; input cells are null when unused
+        final String[] rowValues, colValues; // raw input values along the top row / down the first column
+        final String[] formulas; // output formulas: along the top row, down the first column, or the corner
+        final AtomicInteger done = new AtomicInteger(); // points finished, for progress
+        volatile boolean cancelled;
+        private final Workbook[] workers;
+
+        // Reads the table and sets up the workers; call it where the sheets are edited
+        DataTable(Workbook wb, Sheet sheet, int[] range, int[] rowInput, int[] colInput) {
+            this.sheet = sheet;
+            this.range = range;
+            this.rowInput = rowInput;
+            this.colInput = colInput;
+            int height = range[2] - range[0], width = range[3] - range[1];
+            rowValues = new String[rowInput != null ? width : 0];
+            colValues = new String[colInput != null ? height : 0];
+            for (int j = 0; j < rowValues.length; j++) rowValues[j] = inputValue(wb, range[0], range[1] + 1 + j);
+            for (int i = 0; i < colValues.length; i++) colValues[i] = inputValue(wb, range[0] + 1 + i, range[1]);
+            if (rowInput != null && colInput != null) {
+                formulas = new String[]{sheet.get(range[0], range[1])};
+            } else if (colInput != null) {
+                formulas = new String[width];
+                for (int j = 0; j < width; j++) formulas[j] = sheet.get(range[0], range[1] + 1 + j);
+            } else {
+                formulas = new String[height];
+                for (int i = 0; i < height; i++) formulas[i] = sheet.get(range[0] + 1 + i, range[1]);
+            }
+            List<int[]> inputs = new ArrayList<>();
+            if (rowInput != null) inputs.add(rowInput);
+            if (colInput != null) inputs.add(colInput);
+            workers = new Workbook[Math.max(1, Math.min(points(), Runtime.getRuntime().availableProcessors()))];
+            for (int w = 0; w < workers.length; w++) workers[w] = wb.worker(sheet, inputs.toArray(new int[0][]));
+        }
+
+        // What goes into an input cell: the header cell's value, so header formulas are taken as they are now
+        private String inputValue(Workbook wb, int r, int c) {
+            String raw = sheet.get(r, c);
+            if (!raw.startsWith("=")) return raw;
+            Object value = wb.evaluateValue(sheet, raw);
+            if (value instanceof String) return (String) value;
+            double d = (Double) value;
+            return d == (long) d ? String.valueOf((long) d) : String.valueOf(d);
+        }
+
+        // Input combinations to evaluate
+        int points() {
+            return rowValues.length > 0 && colValues.length > 0 ? rowValues.length * colValues.length
+                    : Math.max(rowValues.length, colValues.length);
+        }
+
+        /**
+         * Results [row][column] of the table's interior, each a Double or text (a lookup's text
+         * result), or null where the run was cancelled before getting to it.
+         */
+        Object[][] run() {
+            int height = range[2] - range[0], width = range[3] - range[1];
+            Object[][] results = new Object[height][width];
+            AtomicInteger next = new AtomicInteger();
+            IntStream.range(0, workers.length).parallel().forEach(w -> {
+                Workbook engine = workers[w];
+                for (int p = next.getAndIncrement(); p < points() && !cancelled; p = next.getAndIncrement()) {
+                    if (rowValues.length > 0 && colValues.length > 0) {
+                        int i = p / rowValues.length, j = p % rowValues.length;
+                        engine.setInputs(rowValues[j], colValues[i]);
+                        results[i][j] = value(engine, formulas[0]);
+                    } else if (colValues.length > 0) {
+                        engine.setInputs(colValues[p]);
+                        for (int j = 0; j < width; j++) results[p][j] = value(engine, formulas[j]);
+                    } else {
+                        engine.setInputs(rowValues[p]);
+                        for (int i = 0; i < height; i++) results[i][p] = value(engine, formulas[i]);
+                    }
+                    done.incrementAndGet();
+                }
+            });
+            return results;
+        }
+
+        private Object value(Workbook engine, String raw) {
+            if (raw.startsWith("=")) return engine.evaluateValue(sheet, raw);
+            if (raw.isEmpty()) return 0.0;
+            try {
+                return Double.parseDouble(raw);
+            } catch (NumberFormatException ex) {
+                return raw;
+            }
+        }
+    }
+
+    /**
+     * Crash recovery for the workbook. Every cell and structural edit is appended to a journal of
+     * CRC-checked lines; a writer thread fsyncs whatever has queued up since its last write in one
+     * go (group commit), so an edit never waits for the disk. A checkpoint rewrites only the
+     * 4096-row blocks that changed since the previous one and then empties the journal. At startup
+     * the last checkpoint is loaded and the journal replayed on top of it.
+     */
+    private static class Journal {
+        static final String DIR = "miniexcel.wal";
+        static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("miniexcel.journal", "true"));
+        private static final int BLOCK_BITS = 12;
+        private static final Pattern BLOCK_FILE = Pattern.compile("s\\d+-b\\d+-g\\d+\\.csv");
+
+        private final File dir;
+        private final Workbook workbook;
+        private final List<SheetLog> logs = new ArrayList<>(); // one per sheet, in workbook order
+        private final StringBuilder pending = new StringBuilder(); // records the writer has not taken yet
+        private FileOutputStream out;
+        private FileChannel lock; // held for the whole session, so that one process owns the directory
+        private Thread writer;
+        private volatile IOException failure; // of the writer, reported by the next checkpoint
+        private long seq, checkpointSeq; // last record, and last one covered by the checkpoint
+        private int generation, nextId;
+        private boolean replaying, closed;
+
+        /**
+         * Checkpoint of one sheet and what changed since. While attached to the loaded sheet it
+         * journals the sheet's edits by position, and the text of formulas an undo re-anchors.
+         */
+        private class SheetLog implements SheetListener {
+            final int id = nextId++;
+            Sheet sheet;
+            File csv; // the checkpoint is this CSV, for a sheet unchanged since it was opened
+            final List<String> blocks = new ArrayList<>(); // file of each block, "" when it has no cells
+            int rows, cols, structureVersion;
+            boolean allDirty;
+            final BitSet dirty = new BitSet(), formulaBlocks = new BitSet();
+
+            SheetLog(File csv) {
+                this.csv = csv;
+                allDirty = csv == null;
+            }
+
+            boolean isDirty() {
+                return sheet != null && (allDirty || !dirty.isEmpty() || structureVersion != sheet.structureVersion);
+            }
+
+            private void touch(int fromRow, int toRow) {
+                if (csv != null) allDirty = true;
+                dirty.set(fromRow >> BLOCK_BITS, (toRow >> BLOCK_BITS) + 1);
+            }
+
+            @Override
+            public void cellChanged(int pr, int pc, String oldRaw, String newRaw) {
+                int r = sheet.rowIndexOf(pr), c = sheet.colIndexOf(pc);
+                if (r < 0 || c < 0) return;
+                touch(r, r);
+                if (newRaw.startsWith("=")) formulaBlocks.set(r >> BLOCK_BITS);
+                record("S", workbook.indexOf(sheet), r, c, newRaw);
+            }
+
+            @Override
+            public void linesInserted(boolean rowAxis, int at, int count) {
+                int index = workbook.indexOf(sheet);
+                if (rowAxis) touch(at, sheet.rowCount());
+                else allDirty = true;
+                record(rowAxis ? "IR" : "IC", index, at, count);
+                // lines put back by undo come with their cells, and formulas elsewhere point into them again
+                Set<Long> cells = new LinkedHashSet<>();
+                int[] ids = rowAxis ? sheet.rowIds(at, at + count) : sheet.colIds(at, at + count);
+                int[] across = rowAxis ? sheet.colIds(0, sheet.colCount()) : sheet.rowIds(0, sheet.rowCount());
+                for (int id : ids) {
+                    for (int other : across) {
+                        long key = rowAxis ? Sheet.key(id, other) : Sheet.key(other, id);
+                        if (!sheet.getPhysical((int) (key >>> 32), (int) key).isEmpty()) cells.add(key);
+                    }
+                    Set<Long> refs = (rowAxis ? sheet.rowDependents : sheet.colDependents).get(id);
+                    if (refs != null) cells.addAll(refs);
+                }
+                recordCells(index, cells);
+            }
+
+            @Override
+            public void linesDeleted(boolean rowAxis, int at, int count) {
+                if (rowAxis) touch(at, sheet.rowCount());
+                else allDirty = true;
+                record(rowAxis ? "DR" : "DC", workbook.indexOf(sheet), at, count);
+            }
+
+            @Override
+            public void rowsReordered(int from, int[] order) {
+                int index = workbook.indexOf(sheet);
+                touch(from, from + order.length - 1);
+                StringBuilder permutation = new StringBuilder();
+                for (int i = 0; i < order.length; i++) permutation.append(i > 0 ? " " : "").append(order[i]);
+                record("O", index, from, permutation);
+                // an undone sort restores anchors that replaying the permutation would compute differently
+                Set<Long> cells = new LinkedHashSet<>();
+                int[] ids = sheet.rowIds(from, from + order.length), colIds = sheet.colIds(0, sheet.colCount());
+                for (int i = 0; i < order.length; i++) {
+                    if (order[i] == i) continue;
+                    int id = ids[i];
+                    Set<Long> refs = sheet.rowDependents.get(id);
+                    if (refs != null) cells.addAll(refs);
+                    if (id < sheet.formulaCount.length && sheet.formulaCount[id] > 0) {
+                        for (int pc : colIds) if (sheet.cell(id, pc) instanceof Formula) cells.add(Sheet.key(id, pc));
+                    }
+                }
+                recordCells(index, cells);
+            }
+
+            private void recordCells(int index, Set<Long> cells) {
+                for (long key : cells) {
+                    int pr = (int) (key >>> 32), pc = (int) key;
+                    int r = sheet.rowIndexOf(pr), c = sheet.colIndexOf(pc);
+                    if (r < 0 || c < 0) continue;
+                    String raw = sheet.getPhysical(pr, pc);
+                    touch(r, r);
+                    if (raw.startsWith("=")) formulaBlocks.set(r >> BLOCK_BITS);
+                    record("S", index, r, c, raw);
+                }
+            }
+
+            // Bring the checkpoint up to date with s, rewriting the blocks that changed
+            void write(Sheet s) throws IOException {
+                if (csv != null) allDirty = true;
+                if (structureVersion != s.structureVersion) dirty.or(formulaBlocks);
+                int n = (s.rowCount() + (1 << BLOCK_BITS) - 1) >> BLOCK_BITS;
+                for (int b = 0; b < n; b++) {
+                    if (!allDirty && b < blocks.size() && !dirty.get(b)) continue;
+                    String file = writeBlock(s, b);
+                    if (b < blocks.size()) blocks.set(b, file);
+                    else blocks.add(file);
+                }
+                while (blocks.size() > n) blocks.remove(blocks.size() - 1);
+                rows = s.rowCount();
+                cols = s.colCount();
+                structureVersion = s.structureVersion;
+                dirty.clear();
+                allDirty = false;
+                csv = null;
+            }
+
+            // Rows of block b as CSV lines (trailing blanks dropped); "" and no file when they are all blank
+            private String writeBlock(Sheet s, int b) throws IOException {
+                String name = "s" + id + "-b" + b + "-g" + generation + ".csv";
+                File file = new File(dir, name);
+                int from = b << BLOCK_BITS, to = Math.min(s.rowCount(), from + (1 << BLOCK_BITS));
+                int[] colIds = s.colIds(0, s.colCount());
+                boolean any = false, formulas = false;
+                try (FileOutputStream stream = new FileOutputStream(file)) {
+                    Writer w = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 1 << 16);
+                    StringBuilder line = new StringBuilder();
+                    for (int pr : s.rowIds(from, to)) {
+                        line.setLength(0);
+                        int written = 0;
+                        for (int j = 0; j < colIds.length; j++) {
+                            String raw = s.getPhysical(pr, colIds[j]);
+                            if (raw.isEmpty()) continue;
+                            for (; written < j; written++) line.append(',');
+                            line.append(field(raw));
+                            any = true;
+                            formulas |= raw.startsWith("=");
+                        }
+                        w.write(line.append('\n').toString());
+                    }
+                    w.flush();
+                    stream.getFD().sync();
+                }
+                formulaBlocks.set(b, formulas);
+                if (any) return name;
+                file.delete();
+                return "";
+            }
+
+            void readBlock(Sheet s, int b, File file) throws IOException {
+                try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                    String line;
+                    for (int r = b << BLOCK_BITS; (line = br.readLine()) != null; r++) {
+                        List<String> fields = parseCSVLine(line);
+                        for (int c = 0; c < fields.size(); c++) {
+                            String raw = unfield(fields.get(c));
+                            if (raw.isEmpty()) continue;
+                            s.set(r, c, raw);
+                            if (raw.startsWith("=")) formulaBlocks.set(b);
+                        }
+                    }
+                }
+            }
+        }
+
+        Journal(File dir, Workbook workbook) {
+            this.dir = dir;
+            this.workbook = workbook;
+        }
+
+        /**
+         * Take the lock file in the directory before recovering from it. Returns false when
+         * another process holds it; its journal and checkpoint must then be left alone.
+         */
+        boolean lock() throws IOException {
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+            FileChannel channel = FileChannel.open(new File(dir, "lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                if (channel.tryLock() != null) {
+                    lock = channel;
+                    return true;
+                }
+            } catch (OverlappingFileLockException ex) {
+                // another window of this process holds it
+            } catch (IOException | RuntimeException ex) {
+                channel.close();
+                throw ex;
+            }
+            channel.close();
+            return false;
+        }
+
+        void unlock() throws IOException {
+            if (lock != null) lock.close();
+            lock = null;
+        }
+
+        /**
+         * Rebuild the (empty) workbook from the last checkpoint and the journal after it. Returns
+         * false when there is nothing to recover.
+         */
+        boolean recover() throws IOException {
+            File manifest = new File(dir, "checkpoint");
+            if (!manifest.exists()) return false;
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8))) {
+                List<String> head = parseCSVLine(br.readLine());
+                checkpointSeq = seq = Long.parseLong(head.get(0));
+                generation = Integer.parseInt(head.get(1));
+                String line;
+                while ((line = br.readLine()) != null) {
+                    List<String> fields = parseCSVLine(line);
+                    String name = unfield(fields.get(0));
+                    if (fields.get(3).equals("csv")) {
+                        File source = new File(unfield(fields.get(4)));
+                        workbook.add(name, source);
+                        logs.add(new SheetLog(source));
+                        continue;
+                    }
+                    SheetLog log = new SheetLog(null);
+                    log.rows = Integer.parseInt(fields.get(1));
+                    log.cols = Integer.parseInt(fields.get(2));
+                    // size first so that formulas anchor forward references too
+                    Sheet s = new Sheet(log.rows, log.cols);
+                    for (int b = 0; b + 4 < fields.size(); b++) {
+                        String file = fields.get(b + 4);
+                        log.blocks.add(file);
+                        if (!file.isEmpty()) log.readBlock(s, b, new File(dir, file));
+                    }
+                    log.allDirty = false;
+                    workbook.add(name, s);
+                    logs.add(log);
+                }
+            } catch (RuntimeException ex) {
+                throw new IOException("damaged checkpoint " + manifest, ex);
+            }
+            if (workbook.size() == 0) return false;
+            replay(new File(dir, "journal"));
+            return true;
+        }
+
+        // Apply the journal records after the checkpoint, up to the first torn or damaged line
+        private void replay(File journal) throws IOException {
+            if (!journal.exists()) return;
+            replaying = true;
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(journal), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    int end = line.lastIndexOf(',');
+                    if (end < 0) break;
+                    CRC32 crc = new CRC32();
+                    crc.update(line.substring(0, end).getBytes(StandardCharsets.UTF_8));
+                    if (!Long.toHexString(crc.getValue()).equals(line.substring(end + 1))) break;
+                    List<String> fields = new ArrayList<>();
+                    for (String f : parseCSVLine(line.substring(0, end))) fields.add(unfield(f));
+                    long n = Long.parseLong(fields.get(0));
+                    if (n <= checkpointSeq) continue; // written while the checkpoint was being taken
+                    apply(fields);
+                    seq = n;
+                }
+            } catch (RuntimeException ex) {
+                // a record that no longer applies ends the replay, like a damaged one
+            } finally {
+                replaying = false;
+            }
+        }
+
+        private void apply(List<String> f) {
+            String op = f.get(1);
+            if (op.equals("N")) {
+                Sheet added = new Sheet(Integer.parseInt(f.get(3)), Integer.parseInt(f.get(4)));
+                workbook.add(f.get(2), added);
+                logs.add(new SheetLog(null));
+                attach(added);
+                return;
+            }
+            int index = Integer.parseInt(f.get(2));
+            switch (op) {
+                case "R":
+                    workbook.rename(index, f.get(3));
+                    return;
+                case "X":
+                    detach(logs.remove(index));
+                    workbook.remove(index);
+                    return;
+            }
+            Sheet s = workbook.sheet(index);
+            attach(s);
+            int a = Integer.parseInt(f.get(3));
+            switch (op) {
+                case "S": s.set(a, Integer.parseInt(f.get(4)), f.get(5)); break;
+                case "IR": s.insertRows(a, Integer.parseInt(f.get(4))); break;
+                case "IC": s.insertColumns(a, Integer.parseInt(f.get(4))); break;
+                case "DR": s.delete(true, a, Integer.parseInt(f.get(4))); break;
+                case "DC": s.delete(false, a, Integer.parseInt(f.get(4))); break;
+                case "O":
+                    String[] parts = f.get(4).split(" ");
+                    int[] order = new int[parts.length];
+                    for (int i = 0; i < parts.length; i++) order[i] = Integer.parseInt(parts[i]);
+                    s.reorderRows(a, order);
+                    break;
+                default: throw new IllegalArgumentException(op);
+            }
+        }
+
+        // Start journaling the workbook as it is now, beginning with a checkpoint of it
+        void start() throws IOException {
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+            while (logs.size() < workbook.size()) logs.add(new SheetLog(workbook.source(logs.size())));
+            for (int i = 0; i < logs.size(); i++) if (workbook.isLoaded(i)) attach(workbook.sheet(i));
+            out = new FileOutputStream(new File(dir, "journal"), true);
+            checkpoint(false);
+            writer = new Thread(this::writeLoop, "MiniExcel journal");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        // After the workbook was replaced by open(): its sheets are their CSV files again
+        void reset() throws IOException {
+            for (SheetLog log : logs) detach(log);
+            logs.clear();
+            for (int i = 0; i < workbook.size(); i++) logs.add(new SheetLog(workbook.source(i)));
+            // sheets created in memory (an import) only exist once the checkpoint has written them
+            for (int i = 0; i < logs.size(); i++) if (workbook.isLoaded(i)) attach(workbook.sheet(i));
+            checkpoint(false);
+        }
+
+        // Journal the edits of a sheet that was just loaded or shown
+        void attach(Sheet s) {
+            int i = workbook.indexOf(s);
+            if (i < 0 || logs.get(i).sheet == s) return;
+            SheetLog log = logs.get(i);
+            detach(log);
+            // a sheet is only read back while it matches the checkpoint
+            log.sheet = s;
+            log.structureVersion = s.structureVersion;
+            s.addListener(log);
+        }
+
+        // A paged-out sheet; it was clean (see dirtySheets()), so its checkpoint stays valid
+        void detach(Sheet s) {
+            for (SheetLog log : logs) if (log.sheet == s) detach(log);
+        }
+
+        private void detach(SheetLog log) {
+            if (log.sheet != null) log.sheet.removeListener(log);
+            log.sheet = null;
+        }
+
+        // Sheets with changes that are only in the journal; they must stay loaded until the next checkpoint
+        Set<Sheet> dirtySheets() {
+            Set<Sheet> result = new HashSet<>();
+            for (SheetLog log : logs) if (log.isDirty()) result.add(log.sheet);
+            return result;
+        }
+
+        // The last sheet of the workbook is new
+        void sheetAdded() {
+            int i = workbook.size() - 1;
+            Sheet s = workbook.sheet(i);
+            logs.add(new SheetLog(null));
+            record("N", workbook.name(i), s.rowCount(), s.colCount());
+            attach(s);
+        }
+
+        void sheetRenamed(int i) {
+            record("R", i, workbook.name(i));
+        }
+
+        void sheetRemoved(int i) {
+            detach(logs.remove(i));
+            record("X", i);
+        }
+
+        boolean hasChanges() {
+            return seq != checkpointSeq || !dirtySheets().isEmpty();
+        }
+
+        /**
+         * Write the changed blocks of every sheet and a new checkpoint manifest listing them, then
+         * empty the journal. The manifest is replaced atomically, so a crash at any point leaves
+         * either the old checkpoint with its journal or the new one. With all, sheets still backed
+         * by a CSV file are copied into the checkpoint too (before Save overwrites those files).
+         */
+        void checkpoint(boolean all) throws IOException {
+            if (failure != null) throw failure;
+            generation++;
+            long upTo = seq;
+            Set<String> live = new HashSet<>();
+            File tmp = new File(dir, "checkpoint.tmp");
+            try (FileOutputStream stream = new FileOutputStream(tmp)) {
+                PrintWriter pw = new PrintWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+                pw.println(upTo + "," + generation);
+                for (int i = 0; i < logs.size(); i++) {
+                    SheetLog log = logs.get(i);
+                    Sheet s = log.sheet != null ? log.sheet : all && log.csv != null ? workbook.sheet(i) : null;
+                    if (s != null && (log.isDirty() || log.csv != null && all)) log.write(s);
+                    StringBuilder line = new StringBuilder(field(workbook.name(i)));
+                    if (log.csv != null) {
+                        line.append(",0,0,csv,").append(field(log.csv.getAbsolutePath()));
+                    } else {
+                        line.append(',').append(log.rows).append(',').append(log.cols).append(",blocks");
+                        for (String file : log.blocks) line.append(',').append(file);
+                        live.addAll(log.blocks);
+                    }
+                    pw.println(line);
+                }
+                pw.flush();
+                if (pw.checkError()) throw new IOException("could not write " + tmp);
+                stream.getFD().sync();
+            }
+            Files.move(tmp.toPath(), new File(dir, "checkpoint").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            checkpointSeq = upTo;
+            // records the writer still holds are older than the checkpoint; replay skips them
+            synchronized (this) {
+                pending.setLength(0);
+            }
+            if (out != null) {
+                synchronized (out) {
+                    out.getChannel().truncate(0);
+                }
+            }
+            File[] files = dir.listFiles();
+            if (files == null) return;
+            for (File file : files) {
+                if (BLOCK_FILE.matcher(file.getName()).matches() && !live.contains(file.getName())) file.delete();
+            }
+        }
+
+        // Final checkpoint, then stop the writer
+        void close() throws IOException {
+            checkpoint(false);
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            try {
+                writer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            out.close();
+            unlock();
+        }
+
+        private void record(Object... fields) {
+            if (replaying || out == null) return;
+            StringBuilder line = new StringBuilder();
+            for (Object f : fields) line.append(',').append(field(String.valueOf(f)));
+            synchronized (this) {
+                line.insert(0, ++seq);
+                CRC32 crc = new CRC32();
+                crc.update(line.toString().getBytes(StandardCharsets.UTF_8));
+                pending.append(line).append(',').append(Long.toHexString(crc.getValue())).append('\n');
+                notifyAll();
+            }
+        }
+
+        private void writeLoop() {
+            try {
+                while (true) {
+                    byte[] batch;
+                    synchronized (this) {
+                        while (pending.length() == 0 && !closed) wait();
+                        if (pending.length() == 0) return;
+                        batch = pending.toString().getBytes(StandardCharsets.UTF_8);
+                        pending.setLength(0);
+                    }
+                    // records made during this write and fsync go out together as the next batch
+                    synchronized (out) {
+                        out.write(batch);
+                        out.getChannel().force(false);
+                    }
+                }
+            } catch (IOException ex) {
+                failure = ex;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // A journal or block field: backslashes and line breaks escaped, then quoted like CSV
+        private static String field(String s) {
+            if (s.indexOf('\\') >= 0 || s.indexOf('\n') >= 0 || s.indexOf('\r') >= 0) {
+                s = s.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+            }
+            return Workbook.csvField(s);
+        }
+
+        private static String unfield(String s) {
+            if (s.indexOf('\\') < 0) return s;
+            StringBuilder sb = new StringBuilder(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '\\' && i + 1 < s.length()) {
+                    c = s.charAt(++i);
+                    sb.append(c == 'n' ? '\n' : c == 'r' ? '\r' : c);
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Read-only view of a CSV file of any size. The file is memory-mapped and a background pass
+     * records where every STRIDE-th record starts (quote-aware, so quoted line breaks stay inside
+     * their field); row r is then found by seeking to its stride and skipping at most STRIDE - 1
+     * records. Rows are decoded a stride at a time when first asked for and kept in a small LRU
+     * cache, so memory stays flat whatever the file size. row() is meant for a single thread (the EDT).
+     */
+    private static class CsvView implements Closeable {
+        private static final int SEGMENT_BITS = 30; // mappings of 1 GB, below the 2 GB buffer limit
+        private static final int STRIDE = 128;
+        private static final int CACHED_BLOCKS = 32;
+        private final File file;
+        private final FileChannel channel;
+        private final MappedByteBuffer[] segments;
+        private final long length;
+        private volatile long[] starts = new long[1024]; // offset of records 0, STRIDE, 2 * STRIDE, ...
+        private volatile int rowCount, colCount;
+        private volatile long scanned; // bytes the index pass has read
+        private volatile boolean indexed, closed;
+        private final Map<Integer, String[][]> cache = new LinkedHashMap<Integer, String[][]>(CACHED_BLOCKS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String[][]> eldest) {
+                return size() > CACHED_BLOCKS;
+            }
+        };
+
+        CsvView(File file) throws IOException {
+            this.file = file;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            length = channel.size();
+            segments = new MappedByteBuffer[(int) ((length + (1L << SEGMENT_BITS) - 1) >>> SEGMENT_BITS)];
+            for (int i = 0; i < segments.length; i++) {
+                long from = (long) i << SEGMENT_BITS;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(1L << SEGMENT_BITS, length - from));
+            }
+            Thread indexer = new Thread(this::buildIndex, "MiniExcel CSV index");
+            indexer.setDaemon(true);
+            indexer.start();
+        }
+
+        File file() {
+            return file;
+        }
+
+        // Records indexed so far; grows until isIndexed()
+        int rowCount() {
+            return rowCount;
+        }
+
+        // Most fields in any record indexed so far
+        int colCount() {
+            return colCount;
+        }
+
+        boolean isIndexed() {
+            return indexed;
+        }
+
+        double progress() {
+            return length == 0 ? 1 : (double) scanned / length;
+        }
+
+        private void buildIndex() {
+            long[] index = starts;
+            int records = 0, fields = 1, widest = 0;
+            boolean quoted = false, open = false; // open: the current record has bytes
+            long pos = 0;
+            byte[] buffer = new byte[1 << 20];
+            for (MappedByteBuffer segment : segments) {
+                ByteBuffer bytes = segment.duplicate();
+                int n = bytes.limit();
+                for (int chunk = 0; chunk < n && !closed; chunk += buffer.length) {
+                    int end = Math.min(n - chunk, buffer.length);
+                    bytes.get(buffer, 0, end); // scanning a copy beats per-byte buffer access
+                    for (int i = 0; i < end; i++) {
+                        byte c = buffer[i];
+                        open = true;
+                        if (c == '"') {
+                            quoted = !quoted; // an escaped "" toggles twice
+                        } else if (!quoted) {
+                            if (c == ',') {
+                                fields++;
+                            } else if (c == '\n') {
+                                widest = Math.max(widest, fields);
+                                fields = 1;
+                                open = false;
+                                if (++records % STRIDE == 0) {
+                                    int k = records / STRIDE;
+                                    if (k == index.length) {
+                                        index = Arrays.copyOf(index, k * 2);
+                                        starts = index;
+                                    }
+                                    index[k] = pos + chunk + i + 1;
+                                }
+                            }
+                        }
+                    }
+                    // publish after the offsets, so a reader of rowCount also sees them
+                    colCount = widest;
+                    rowCount = records;
+                    scanned = pos + chunk + end;
+                }
+                pos += n;
+            }
+            if (closed) return;
+            if (open) {
+                colCount = Math.max(widest, fields);
+                rowCount = records + 1; // last record without a line break
+            }
+            indexed = true;
+        }
+
+        // Fields of record r, decoded with the rest of its stride unless that is cached
+        String[] row(int r) {
+            int block = r / STRIDE;
+            String[][] rows = cache.get(block);
+            if (rows == null) {
+                int count = Math.min(STRIDE, rowCount - block * STRIDE);
+                rows = decode(starts[block], count);
+                // a stride still being indexed gets more rows later
+                if (count == STRIDE || indexed) cache.put(block, rows);
+            }
+            int i = r - block * STRIDE;
+            return i < rows.length ? rows[i] : new String[0];
+        }
+
+        private String[][] decode(long pos, int count) {
+            String[][] rows = new String[Math.max(0, count)][];
+            List<String> fields = new ArrayList<>();
+            ByteArrayOutputStream field = new ByteArrayOutputStream();
+            for (int r = 0; r < rows.length; r++) {
+                boolean quoted = false;
+                while (pos < length) {
+                    byte c = at(pos++);
+                    if (quoted) {
+                        if (c != '"') field.write(c);
+                        else if (pos < length && at(pos) == '"') field.write(at(pos++));
+                        else quoted = false;
+                    } else if (c == '"') {
+                        quoted = true;
+                    } else if (c == ',') {
+                        fields.add(new String(field.toByteArray(), StandardCharsets.UTF_8));
+                        field.reset();
+                    } else if (c == '\n') {
+                        break;
+                    } else if (c != '\r') {
+                        field.write(c);
+                    }
+                }
+                fields.add(new String(field.toByteArray(), StandardCharsets.UTF_8));
+                field.reset();
+                rows[r] = fields.toArray(new String[0]);
+                fields.clear();
+            }
+            return rows;
+        }
+
+        private byte at(long pos) {
+            return segments[(int) (pos >>> SEGMENT_BITS)].get((int) (pos & ((1L << SEGMENT_BITS) - 1)));
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            cache.clear();
+            channel.close(); // the mappings go when they are collected
+        }
+    }
+
+    /**
+     * Streaming batch mode for CSV files larger than memory: a template row of formulas is applied
+     * to every record and the results are appended to it in the output file. The template is
+     * written for one row of a sheet holding the file (row 2 when there is a header) and is moved
+     * down to each record like a filled-down column; formulas may look back at earlier records
+     * (=B2-B1, =AVERAGE(C1:C5)), never ahead.
+     *
+     * Records are read in chunks; each chunk is evaluated on a sheet of its own that starts with
+     * the last few records before it, as many as the template looks back, so chunks are independent
+     * and run in parallel. Results are written in input order and only a few chunks are in flight
+     * at a time, so memory does not grow with the file. Earlier rows are only seen as input, so a
+     * formula cannot read another formula's result on an earlier row (no running totals).
      */
-    private double evaluateFormula(String expr) {
-        try {
-            expr = expr.substring(1).trim(); // remove '=' and trim spaces
-
-            // process functions iteratively until no functions remain
-            expr = processAllFunctions(expr);
-
-            // Replace single cell references like A1, B2, AA10 etc. with their numeric values (or 0)
-            Pattern pattern = Pattern.compile("([A-Z]+)([0-9]+)");
-            Matcher matcher = pattern.matcher(expr);
-            StringBuffer sb = new StringBuffer();
-
-            while (matcher.find()) {
-                String token = matcher.group();
-                int[] cell = parseCell(token);
-                String val = "0";
-                if (cell != null && cell[0] >= 0 && cell[0] < rows && cell[1] >= 0 && cell[1] < cols) {
-                    String raw = sheet.get(cell[0]).get(cell[1]);
-                    if (raw != null && raw.startsWith("=")) {
-                        double nested = evaluateFormula(raw);
-                        if (!Double.isNaN(nested)) {
-                            val = String.valueOf(nested);
-                        } else {
-                            val = "0";
-                        }
-                    } else {
-                        if (raw == null || raw.isEmpty()) {
-                            val = "0";
-                        } else {
-                            try {
-                                Double.parseDouble(raw);
-                                val = raw;
-                            } catch (NumberFormatException e) {
-                                val = "0";
-                            }
+    private static class CsvBatch {
+        final String[] template; // formulas for templateRow, one per output column
+        final boolean header;
+        final int templateRow; // 0-based sheet row the template is written for
+        int threads = Runtime.getRuntime().availableProcessors();
+        int chunk = 4096;
+        private int width = -1; // fields of the first record; the template's columns follow them
+        private int window; // earlier records a row's formulas can reach
+
+        CsvBatch(String[] template, boolean header, int templateRow) {
+            this.template = template;
+            this.header = header;
+            this.templateRow = templateRow;
+        }
+
+        // Copy in to out with the template's results appended to each record; returns the records processed
+        long run(File in, File out) throws IOException, InterruptedException {
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(in), StandardCharsets.UTF_8), 1 << 16);
+                 Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(out), StandardCharsets.UTF_8), 1 << 16)) {
+                ArrayDeque<String[]> previous = new ArrayDeque<>(); // the last records, for the next chunk's window
+                ArrayDeque<Future<String>> pending = new ArrayDeque<>();
+                long records = 0;
+                String[] record = readRecord(reader);
+                if (record == null) return 0;
+                start(record.length);
+                if (header) {
+                    writer.write(line(record, headerNames()));
+                    remember(previous, record);
+                    record = readRecord(reader);
+                }
+                while (record != null) {
+                    List<String[]> batch = new ArrayList<>(chunk);
+                    while (record != null && batch.size() < chunk) {
+                        if (record.length > width) {
+                            throw new IOException("record " + (records + batch.size() + 1) + " has " + record.length
+                                    + " fields, the first one " + width);
                         }
+                        batch.add(record);
+                        record = readRecord(reader);
+                    }
+                    String[][] before = previous.toArray(new String[0][]);
+                    pending.add(pool.submit(() -> evaluate(before, batch)));
+                    for (String[] r : batch.subList(Math.max(0, batch.size() - window), batch.size())) remember(previous, r);
+                    records += batch.size();
+                    if (pending.size() >= 2 * threads) writer.write(take(pending));
+                }
+                while (!pending.isEmpty()) writer.write(take(pending));
+                return records;
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        // Check the template against the file's width and work out how far it looks back
+        private void start(int fields) throws IOException {
+            width = fields;
+            window = 0;
+            for (String formula : template) {
+                if (!formula.startsWith("=")) throw new IOException("not a formula: " + formula);
+                Matcher m = CELL_REF.matcher(formula.replaceAll("\"[^\"]*\"", ""));
+                while (m.find()) {
+                    int[] cell = parseCell(m.group(2) + m.group(4));
+                    if (cell == null) continue;
+                    if (!m.group(3).isEmpty()) throw new IOException(formula + ": absolute rows ($" + (cell[0] + 1) + ") cannot be streamed");
+                    if (cell[0] > templateRow) throw new IOException(formula + ": refers to a later row (" + m.group() + ")");
+                    if (cell[0] < templateRow && cell[1] >= width) {
+                        throw new IOException(formula + ": earlier rows can only be read in the input columns (" + m.group() + ")");
                     }
+                    window = Math.max(window, templateRow - cell[0]);
                 }
-                matcher.appendReplacement(sb, Matcher.quoteReplacement(val));
             }
-            matcher.appendTail(sb);
+        }
 
-            String processed = sb.toString();
+        private String[] headerNames() {
+            String[] names = new String[template.length];
+            for (int i = 0; i < names.length; i++) names[i] = template[i].substring(1);
+            return names;
+        }
 
-            // Evaluate arithmetic expression using internal evaluator
-            return evaluateExpression(processed);
-        } catch (StackOverflowError so) {
-            so.printStackTrace();
-            return Double.NaN;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return Double.NaN;
-        }
-    }
-
-    // Find and replace functions (supports nested functions inside args)
-    private String processAllFunctions(String expr) {
-        // Keep applying replacements until no function patterns are left
-        // functionName(args...) where args can contain commas, nested parentheses
-        boolean changed = true;
-        String working = expr;
-        while (changed) {
-            changed = false;
-            // regex finds something like NAME(...) where NAME is letters
-            Pattern p = Pattern.compile("([A-Z]+)\\(" , Pattern.CASE_INSENSITIVE);
-            Matcher m = p.matcher(working);
-            if (!m.find()) break;
-            // We must scan manually to capture full parentheses groups
+        private void remember(ArrayDeque<String[]> previous, String[] record) {
+            if (window == 0) return;
+            previous.add(record);
+            if (previous.size() > window) previous.removeFirst();
+        }
+
+        private static String take(ArrayDeque<Future<String>> pending) throws IOException, InterruptedException {
+            try {
+                return pending.removeFirst().get();
+            } catch (ExecutionException e) {
+                throw new IOException("evaluation failed", e.getCause());
+            }
+        }
+
+        // Output lines of one chunk: its records on a sheet of their own after the window rows before them
+        private String evaluate(String[][] before, List<String[]> batch) {
+            Sheet s = new Sheet(before.length + batch.size(), width + template.length);
+            Workbook wb = new Workbook();
+            wb.add("Sheet1", s);
+            for (int r = 0; r < before.length; r++) fill(s, r, before[r]);
+            for (int i = 0; i < batch.size(); i++) {
+                int r = before.length + i;
+                fill(s, r, batch.get(i));
+                for (int k = 0; k < template.length; k++) s.set(r, width + k, shiftReferences(template[k], r - templateRow, 0));
+            }
+            StringBuilder out = new StringBuilder(batch.size() * 16 * (width + template.length));
+            String[] results = new String[template.length];
+            for (int i = 0; i < batch.size(); i++) {
+                int r = before.length + i;
+                for (int k = 0; k < template.length; k++) results[k] = text(wb.evaluateValue(s, s.get(r, width + k)));
+                out.append(line(batch.get(i), results));
+            }
+            return out.toString();
+        }
+
+        private static void fill(Sheet s, int r, String[] record) {
+            for (int c = 0; c < record.length; c++) if (!record[c].isEmpty()) s.set(r, c, record[c]);
+        }
+
+        // A result at full precision: a data file is read by programs, not people
+        private static String text(Object value) {
+            if (value instanceof String) return (String) value;
+            double v = (Double) value;
+            if (Double.isNaN(v)) return "ERROR";
+            return v == (long) v ? String.valueOf((long) v) : String.valueOf(v);
+        }
+
+        private String line(String[] record, String[] results) {
             StringBuilder sb = new StringBuilder();
-            int i = 0;
-            while (i < working.length()) {
-                char c = working.charAt(i);
-                if (Character.isLetter(c)) {
-                    // possible start of function name
-                    int startName = i;
-                    while (i < working.length() && Character.isLetter(working.charAt(i))) i++;
-                    if (i < working.length() && working.charAt(i) == '(') {
-                        String fname = working.substring(startName, i).toUpperCase();
-                        int parenStart = i;
-                        int level = 0;
-                        int j = i;
-                        for (; j < working.length(); j++) {
-                            char cc = working.charAt(j);
-                            if (cc == '(') level++;
-                            else if (cc == ')') {
-                                level--;
-                                if (level == 0) {
-                                    break;
-                                }
-                            }
-                        }
-                        if (j >= working.length()) {
-                            // mismatched parentheses — just append remainder and break
-                            sb.append(working.substring(startName));
-                            i = working.length();
-                            break;
-                        } else {
-                            String inner = working.substring(parenStart + 1, j); // content inside parentheses
-                            // compute function value
-                            Double val = applyFunction(fname, inner.trim());
-                            if (val == null || Double.isNaN(val)) {
-                                sb.append("0"); // On error, substitute 0
-                            } else {
-                                // replace with numeric literal (unformatted)
-                                sb.append(String.valueOf(val));
-                            }
-                            i = j + 1;
-                            changed = true;
-                            continue;
-                        }
+            for (int c = 0; c < width; c++) {
+                if (c > 0) sb.append(',');
+                if (c < record.length) sb.append(Workbook.csvField(record[c]));
+            }
+            for (String result : results) sb.append(',').append(Workbook.csvField(result));
+            return sb.append('\n').toString();
+        }
+
+        // The fields of the next record, which may span lines inside quotes; null at the end of the input
+        static String[] readRecord(BufferedReader in) throws IOException {
+            List<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            int c = in.read();
+            if (c < 0) return null;
+            for (; c >= 0; c = in.read()) {
+                if (quoted) {
+                    if (c != '"') {
+                        field.append((char) c);
+                        continue;
+                    }
+                    in.mark(1);
+                    if (in.read() == '"') {
+                        field.append('"');
                     } else {
-                        // not a function, append char at startName and continue
-                        sb.append(working.charAt(startName));
-                        i = startName + 1;
+                        in.reset();
+                        quoted = false;
                     }
-                } else {
-                    sb.append(c);
-                    i++;
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\n') {
+                    break;
+                } else if (c != '\r') {
+                    field.append((char) c);
                 }
             }
-            working = sb.toString();
+            fields.add(field.toString());
+            return fields.toArray(new String[0]);
         }
-        return working;
     }
 
-    // Apply a named function; returns null or NaN on error
-    private Double applyFunction(String name, String argsText) {
-        try {
-            String fname = name.toUpperCase();
-            List<String> args = splitArgs(argsText);
-            List<Double> numbers = new ArrayList<>();
+    /**
+     * XLSX import and export over java.util.zip and StAX. Both directions stream row by row between
+     * the XML and the sheets, with no DOM and no second copy of a sheet. Text goes through the
+     * shared-strings table, formulas stay formulas (Excel recalculates them on open) and numbers
+     * stay numbers.
+     */
+    private static class Xlsx {
+        private static final String MAIN_NS = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+        private static final String DOC_REL_NS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+        private static final String PKG_REL_NS = "http://schemas.openxmlformats.org/package/2006/relationships";
+        private static final String TYPES_NS = "http://schemas.openxmlformats.org/package/2006/content-types";
+        private static final String TYPE_PREFIX = "application/vnd.openxmlformats-officedocument.spreadsheetml.";
+        // functions Excel only knows under their _xlfn. name in files
+        private static final Pattern NEW_FUNCTIONS = Pattern.compile("(?<![A-Za-z0-9_.])(XLOOKUP|MAXIFS|MINIFS)\\(");
+        private static final Pattern NUMBER = Pattern.compile("[+-]?(\\d+\\.?\\d*|\\.\\d+)([eE][+-]?\\d+)?");
 
-            // Collect numeric values from all args
-            for (String a : args) {
-                a = a.trim();
-                if (a.isEmpty()) continue;
+        /**
+         * Write the sheets (snapshots, so this can run while the workbook is being edited); the
+         * shared strings come last, once the sheets have collected them.
+         */
+        static void write(String[] names, Sheet.Snapshot[] sheets, File file) throws IOException {
+            XMLOutputFactory factory = XMLOutputFactory.newInstance();
+            Map<String, Integer> strings = new LinkedHashMap<>();
+            int count = sheets.length;
+            try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+                XMLStreamWriter x = part(zip, factory, "[Content_Types].xml");
+                x.writeStartElement("Types");
+                x.writeDefaultNamespace(TYPES_NS);
+                contentType(x, "Default", "Extension", "rels", "application/vnd.openxmlformats-package.relationships+xml");
+                contentType(x, "Default", "Extension", "xml", "application/xml");
+                contentType(x, "Override", "PartName", "/xl/workbook.xml", TYPE_PREFIX + "sheet.main+xml");
+                for (int i = 1; i <= count; i++) {
+                    contentType(x, "Override", "PartName", "/xl/worksheets/sheet" + i + ".xml", TYPE_PREFIX + "worksheet+xml");
+                }
+                contentType(x, "Override", "PartName", "/xl/sharedStrings.xml", TYPE_PREFIX + "sharedStrings+xml");
+                end(zip, x);
 
-                if (a.contains(":")) {
-                    numbers.addAll(getRangeValuesAll(a));
-                } else {
-                    int[] cell = parseCell(a);
-                    if (cell != null) {
-                        String raw = safeCell(cell[0], cell[1]);
-                        if (raw != null && raw.startsWith("=")) {
-                            double v = evaluateFormula(raw);
-                            numbers.add(Double.isNaN(v) ? 0.0 : v);
-                        } else {
-                            numbers.add(parseDoubleOrZero(raw));
-                        }
+                x = part(zip, factory, "_rels/.rels");
+                x.writeStartElement("Relationships");
+                x.writeDefaultNamespace(PKG_REL_NS);
+                relationship(x, "rId1", "officeDocument", "xl/workbook.xml");
+                end(zip, x);
+
+                x = part(zip, factory, "xl/workbook.xml");
+                x.writeStartElement("workbook");
+                x.writeDefaultNamespace(MAIN_NS);
+                x.writeNamespace("r", DOC_REL_NS);
+                x.writeStartElement("sheets");
+                for (int i = 1; i <= count; i++) {
+                    x.writeEmptyElement("sheet");
+                    x.writeAttribute("name", names[i - 1]);
+                    x.writeAttribute("sheetId", String.valueOf(i));
+                    x.writeAttribute(DOC_REL_NS, "id", "rId" + i);
+                }
+                x.writeEndElement();
+                x.writeEmptyElement("calcPr");
+                x.writeAttribute("fullCalcOnLoad", "1");
+                end(zip, x);
+
+                x = part(zip, factory, "xl/_rels/workbook.xml.rels");
+                x.writeStartElement("Relationships");
+                x.writeDefaultNamespace(PKG_REL_NS);
+                for (int i = 1; i <= count; i++) relationship(x, "rId" + i, "worksheet", "worksheets/sheet" + i + ".xml");
+                relationship(x, "rId" + (count + 1), "sharedStrings", "sharedStrings.xml");
+                end(zip, x);
+
+                for (int i = 0; i < count; i++) {
+                    x = part(zip, factory, "xl/worksheets/sheet" + (i + 1) + ".xml");
+                    writeSheet(x, sheets[i], strings);
+                    end(zip, x);
+                }
+
+                x = part(zip, factory, "xl/sharedStrings.xml");
+                x.writeStartElement("sst");
+                x.writeDefaultNamespace(MAIN_NS);
+                x.writeAttribute("uniqueCount", String.valueOf(strings.size()));
+                for (String s : strings.keySet()) {
+                    x.writeStartElement("si");
+                    x.writeStartElement("t");
+                    if (!s.equals(s.trim())) x.writeAttribute("xml", "http://www.w3.org/XML/1998/namespace", "space", "preserve");
+                    x.writeCharacters(s);
+                    x.writeEndElement();
+                    x.writeEndElement();
+                }
+                end(zip, x);
+            } catch (XMLStreamException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+
+        private static void writeSheet(XMLStreamWriter x, Sheet.Snapshot s, Map<String, Integer> strings) throws XMLStreamException {
+            int rowCount = s.rowCount(), colCount = s.colCount();
+            String[] columns = new String[colCount];
+            for (int c = 0; c < colCount; c++) columns[c] = getExcelColumnName(c);
+            x.writeStartElement("worksheet");
+            x.writeDefaultNamespace(MAIN_NS);
+            x.writeEmptyElement("dimension");
+            x.writeAttribute("ref", "A1:" + columns[colCount - 1] + rowCount);
+            x.writeStartElement("sheetData");
+            for (int r = 0; r < rowCount; r++) {
+                boolean started = false;
+                for (int c = 0; c < colCount; c++) {
+                    String raw = s.get(r, c);
+                    if (raw.isEmpty()) continue;
+                    if (!started) {
+                        x.writeStartElement("row");
+                        x.writeAttribute("r", String.valueOf(r + 1));
+                        started = true;
+                    }
+                    x.writeStartElement("c");
+                    x.writeAttribute("r", columns[c] + (r + 1));
+                    if (raw.startsWith("=")) {
+                        x.writeStartElement("f");
+                        x.writeCharacters(NEW_FUNCTIONS.matcher(raw.substring(1)).replaceAll("_xlfn.$1("));
+                        x.writeEndElement();
+                    } else if (isNumber(raw)) {
+                        x.writeStartElement("v");
+                        x.writeCharacters(raw);
+                        x.writeEndElement();
                     } else {
-                        try {
-                            numbers.add(Double.parseDouble(a));
-                        } catch (NumberFormatException ex) {
-                            // Evaluate expression with cell references
-                            String expanded = a;
-                            Pattern pattern = Pattern.compile("([A-Z]+)([0-9]+)");
-                            Matcher matcher = pattern.matcher(expanded);
-                            StringBuffer sb = new StringBuffer();
-                            while (matcher.find()) {
-                                String token = matcher.group();
-                                int[] rc = parseCell(token);
-                                String val = "0";
-                                if (rc != null) {
-                                    String raw = safeCell(rc[0], rc[1]);
-                                    if (raw != null && raw.startsWith("=")) {
-                                        double nested = evaluateFormula(raw);
-                                        if (!Double.isNaN(nested)) val = String.valueOf(nested);
-                                    } else {
-                                        val = String.valueOf(parseDoubleOrZero(raw));
-                                    }
-                                }
-                                matcher.appendReplacement(sb, Matcher.quoteReplacement(val));
-                            }
-                            matcher.appendTail(sb);
-                            double eval = evaluateExpression(sb.toString());
-                            numbers.add(Double.isNaN(eval) ? 0.0 : eval);
-                        }
+                        Integer index = strings.get(raw);
+                        if (index == null) strings.put(raw, index = strings.size());
+                        x.writeAttribute("t", "s");
+                        x.writeStartElement("v");
+                        x.writeCharacters(index.toString());
+                        x.writeEndElement();
                     }
+                    x.writeEndElement();
                 }
+                if (started) x.writeEndElement();
             }
+            x.writeEndElement();
+        }
 
-            // Precompute commonly used values for interrelated functions
-            double sum = numbers.stream().mapToDouble(Double::doubleValue).sum();
-            double avg = numbers.isEmpty() ? 0.0 : numbers.stream().mapToDouble(Double::doubleValue).average().orElse(0.0);
-            double min = numbers.isEmpty() ? 0.0 : numbers.stream().mapToDouble(Double::doubleValue).min().orElse(0.0);
-            double max = numbers.isEmpty() ? 0.0 : numbers.stream().mapToDouble(Double::doubleValue).max().orElse(0.0);
-            double prod = 1.0;
-            for (double d : numbers) prod *= d;
+        private static boolean isNumber(String raw) {
+            char first = raw.charAt(0);
+            return (first >= '0' && first <= '9' || first == '-' || first == '+' || first == '.') && NUMBER.matcher(raw).matches();
+        }
 
-            switch (fname) {
-                case "SUM": return sum;
-                case "AVG":
-                case "AVERAGE": return avg;
-                case "MIN": return min;
-                case "MAX": return max;
-                case "COUNT": return (double) numbers.size();
-                case "MEDIAN":
-                    if (numbers.isEmpty()) return 0.0;
-                    Collections.sort(numbers);
-                    int n = numbers.size();
-                    return (n % 2 == 1) ? numbers.get(n / 2) : (numbers.get(n / 2 - 1) + numbers.get(n / 2)) / 2.0;
-                case "MODE":
-                    if (numbers.isEmpty()) return 0.0;
-                    Map<Double, Integer> freq = new HashMap<>();
-                    for (Double d : numbers) freq.put(d, freq.getOrDefault(d, 0) + 1);
-                    double mode = numbers.get(0);
-                    int best = 0;
-                    for (Map.Entry<Double, Integer> e : freq.entrySet()) {
-                        if (e.getValue() > best || (e.getValue() == best && e.getKey() < mode)) {
-                            mode = e.getKey();
-                            best = e.getValue();
-                        }
+        private static XMLStreamWriter part(ZipOutputStream zip, XMLOutputFactory factory, String name) throws IOException, XMLStreamException {
+            zip.putNextEntry(new ZipEntry(name));
+            // the writer makes many tiny writes, each of which would go through the deflater
+            XMLStreamWriter x = factory.createXMLStreamWriter(new BufferedOutputStream(new FilterOutputStream(zip) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+            }, 1 << 16), "UTF-8");
+            x.writeStartDocument("UTF-8", "1.0");
+            return x;
+        }
+
+        // Close the part's open elements and entry; the zip stream itself stays open
+        private static void end(ZipOutputStream zip, XMLStreamWriter x) throws IOException, XMLStreamException {
+            x.writeEndDocument();
+            x.flush(); // down through the buffer
+            x.close();
+            zip.closeEntry();
+        }
+
+        private static void contentType(XMLStreamWriter x, String element, String key, String value, String type) throws XMLStreamException {
+            x.writeEmptyElement(element);
+            x.writeAttribute(key, value);
+            x.writeAttribute("ContentType", type);
+        }
+
+        private static void relationship(XMLStreamWriter x, String id, String type, String target) throws XMLStreamException {
+            x.writeEmptyElement("Relationship");
+            x.writeAttribute("Id", id);
+            x.writeAttribute("Type", DOC_REL_NS + "/" + type);
+            x.writeAttribute("Target", target);
+        }
+
+        /**
+         * Read every sheet of an XLSX file into wb, replacing its sheets. A sheet is streamed
+         * twice: once for its size, so that formulas anchor forward references, then for the cells.
+         */
+        static void read(File file, Workbook wb) throws IOException {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            List<String> names = new ArrayList<>();
+            List<Sheet> sheets = new ArrayList<>();
+            try (ZipFile zip = new ZipFile(file)) {
+                Map<String, String> targets = new HashMap<>(); // relationship id -> part
+                String sharedStrings = "xl/sharedStrings.xml";
+                XMLStreamReader x = open(zip, factory, "xl/_rels/workbook.xml.rels");
+                while (x.hasNext()) {
+                    if (x.next() != XMLStreamConstants.START_ELEMENT || !x.getLocalName().equals("Relationship")) continue;
+                    String target = x.getAttributeValue(null, "Target");
+                    target = target.startsWith("/") ? target.substring(1) : "xl/" + target;
+                    targets.put(x.getAttributeValue(null, "Id"), target);
+                    if (x.getAttributeValue(null, "Type").endsWith("/sharedStrings")) sharedStrings = target;
+                }
+                x.close();
+                List<String> strings = new ArrayList<>();
+                if (zip.getEntry(sharedStrings) != null) {
+                    x = open(zip, factory, sharedStrings);
+                    while (x.hasNext()) {
+                        if (x.next() == XMLStreamConstants.START_ELEMENT && x.getLocalName().equals("si")) strings.add(text(x, "si"));
+                    }
+                    x.close();
+                }
+                x = open(zip, factory, "xl/workbook.xml");
+                List<String> parts = new ArrayList<>();
+                while (x.hasNext()) {
+                    if (x.next() != XMLStreamConstants.START_ELEMENT || !x.getLocalName().equals("sheet")) continue;
+                    names.add(x.getAttributeValue(null, "name"));
+                    parts.add(targets.get(x.getAttributeValue(DOC_REL_NS, "id")));
+                }
+                x.close();
+                for (String part : parts) {
+                    if (part == null || zip.getEntry(part) == null) throw new IOException("missing worksheet " + part);
+                    int[] size = readSheet(open(zip, factory, part), strings, null);
+                    Sheet s = new Sheet(Math.max(1, size[0]), Math.max(1, size[1]));
+                    readSheet(open(zip, factory, part), strings, s);
+                    sheets.add(s);
+                }
+            } catch (XMLStreamException | RuntimeException e) {
+                throw new IOException("not a readable XLSX file: " + e.getMessage(), e);
+            }
+            if (sheets.isEmpty()) throw new IOException("the file has no sheets");
+            wb.clear();
+            for (int i = 0; i < sheets.size(); i++) wb.add(names.get(i), sheets.get(i));
+        }
+
+        // Cells of a worksheet into target, or only its extent {rows, cols} when target is null
+        private static int[] readSheet(XMLStreamReader x, List<String> strings, Sheet target) throws XMLStreamException {
+            int row = -1, col = -1, rows = 0, cols = 0;
+            String type = null, value = null, formula = null;
+            Map<String, String[]> shared = new HashMap<>(); // si -> {formula, row, col} of its master cell
+            while (x.hasNext()) {
+                int event = x.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (x.getLocalName()) {
+                        case "row":
+                            String r = x.getAttributeValue(null, "r");
+                            row = r == null ? row + 1 : Integer.parseInt(r) - 1;
+                            col = -1;
+                            break;
+                        case "c":
+                            String ref = x.getAttributeValue(null, "r");
+                            col = ref == null ? col + 1 : column(ref);
+                            type = x.getAttributeValue(null, "t");
+                            value = formula = null;
+                            rows = Math.max(rows, row + 1);
+                            cols = Math.max(cols, col + 1);
+                            break;
+                        case "f":
+                            if (target == null) break;
+                            String si = "shared".equals(x.getAttributeValue(null, "t")) ? x.getAttributeValue(null, "si") : null;
+                            formula = x.getElementText();
+                            if (si != null && formula.isEmpty() && shared.containsKey(si)) {
+                                // a copy of the master formula, shifted like a paste
+                                String[] master = shared.get(si);
+                                formula = shiftReferences("=" + master[0], row - Integer.parseInt(master[1]), col - Integer.parseInt(master[2])).substring(1);
+                            } else if (si != null) {
+                                shared.put(si, new String[]{formula, String.valueOf(row), String.valueOf(col)});
+                            }
+                            break;
+                        case "v":
+                            if (target != null) value = x.getElementText();
+                            break;
+                        case "is":
+                            if (target != null) value = text(x, "is");
+                            break;
                     }
-                    return mode;
-                case "STDEV":
-                    if (numbers.size() <= 1) return 0.0;
-                    double sumsq = 0.0;
-                    for (double d : numbers) sumsq += (d - avg) * (d - avg);
-                    return Math.sqrt(sumsq / (numbers.size() - 1));
-                case "RANGE": return max - min;
-                case "PRODUCT": return numbers.isEmpty() ? 0.0 : prod;
-                case "ABS": return numbers.isEmpty() ? 0.0 : Math.abs(numbers.get(0));
-                case "SQRT": return numbers.isEmpty() ? 0.0 : Math.sqrt(numbers.get(0));
-                case "MEAN":
-                    return numbers.isEmpty() ? 0.0 : Math.pow(prod, 1.0 / numbers.size()); // geometric mean uses PRODUCT
-                default: return Double.NaN;
+                } else if (event == XMLStreamConstants.END_ELEMENT && target != null && x.getLocalName().equals("c")) {
+                    String raw;
+                    if (formula != null) raw = "=" + formula.replace("_xlfn.", "").replace("_xlws.", "");
+                    else if (value == null) raw = "";
+                    else if ("s".equals(type)) raw = strings.get(Integer.parseInt(value.trim()));
+                    else if ("b".equals(type)) raw = value.trim().equals("1") ? "TRUE" : "FALSE";
+                    else raw = value;
+                    if (!raw.isEmpty()) target.set(row, col, raw);
+                }
+            }
+            x.close();
+            return new int[]{rows, cols};
+        }
+
+        // The text of an element (shared string or inline string), joining its rich-text runs
+        private static String text(XMLStreamReader x, String element) throws XMLStreamException {
+            StringBuilder sb = new StringBuilder();
+            while (x.hasNext()) {
+                int event = x.next();
+                if (event == XMLStreamConstants.START_ELEMENT && x.getLocalName().equals("t")) sb.append(x.getElementText());
+                else if (event == XMLStreamConstants.START_ELEMENT && x.getLocalName().equals("rPh")) skip(x);
+                else if (event == XMLStreamConstants.END_ELEMENT && x.getLocalName().equals(element)) break;
             }
+            return sb.toString();
+        }
+
+        // Skip the current element, e.g. phonetic hints whose text is not part of the value
+        private static void skip(XMLStreamReader x) throws XMLStreamException {
+            for (int depth = 1; depth > 0; ) {
+                int event = x.next();
+                if (event == XMLStreamConstants.START_ELEMENT) depth++;
+                else if (event == XMLStreamConstants.END_ELEMENT) depth--;
+            }
+        }
 
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            return Double.NaN;
+        // Zero-based column of a cell reference such as AB12
+        private static int column(String ref) {
+            int col = 0;
+            for (int i = 0; i < ref.length() && ref.charAt(i) >= 'A'; i++) col = col * 26 + (ref.charAt(i) - 'A' + 1);
+            return col - 1;
+        }
+
+        private static XMLStreamReader open(ZipFile zip, XMLInputFactory factory, String part) throws IOException, XMLStreamException {
+            ZipEntry entry = zip.getEntry(part);
+            if (entry == null) throw new IOException("missing " + part);
+            return factory.createXMLStreamReader(new BufferedInputStream(zip.getInputStream(entry), 1 << 16), "UTF-8");
         }
     }
 
+    // Minimal JSON for the server: objects parse to LinkedHashMaps, arrays to Lists, numbers to Doubles
+    private static class Json {
+        private final String text;
+        private int pos;
 
-    // Helper: split args at commas not inside nested parentheses
-    private List<String> splitArgs(String s) {
-        List<String> out = new ArrayList<>();
-        if (s == null) return out;
-        int level = 0;
-        StringBuilder cur = new StringBuilder();
-        for (int i = 0; i < s.length(); i++) {
-            char c = s.charAt(i);
-            if (c == ',' && level == 0) {
-                out.add(cur.toString().trim());
-                cur.setLength(0);
-            } else {
-                if (c == '(') level++;
-                else if (c == ')') if (level > 0) level--;
-                cur.append(c);
-            }
-        }
-        if (cur.length() > 0) out.add(cur.toString().trim());
-        return out;
-    }
-
-    // Expand ranges (A1:B2) and also single cell references into a list of numeric values (including nested formulas)
-    private List<Double> getRangeValuesAll(String range) {
-        List<Double> values = new ArrayList<>();
-        if (range == null || range.isEmpty()) return values;
-        String[] parts = range.split(":");
-        if (parts.length == 1) {
-            int[] cell = parseCell(parts[0].trim());
-            if (cell != null && validCell(cell[0], cell[1])) {
-                String raw = safeCell(cell[0], cell[1]);
-                if (raw == null || raw.isEmpty()) {
-                    values.add(0.0);
-                } else if (raw.startsWith("=")) {
-                    double res = evaluateFormula(raw);
-                    values.add(Double.isNaN(res) ? 0.0 : res);
-                } else {
-                    values.add(parseDoubleOrZero(raw));
-                }
-            }
-            return values;
-        } else if (parts.length == 2) {
-            int[] start = parseCell(parts[0].trim());
-            int[] end = parseCell(parts[1].trim());
-            if (start == null || end == null) return values;
-            int minRow = Math.min(start[0], end[0]);
-            int maxRow = Math.max(start[0], end[0]);
-            int minCol = Math.min(start[1], end[1]);
-            int maxCol = Math.max(start[1], end[1]);
-            for (int r = minRow; r <= maxRow; r++) {
-                for (int c = minCol; c <= maxCol; c++) {
-                    if (validCell(r, c)) {
-                        String raw = safeCell(r, c);
-                        if (raw == null || raw.isEmpty()) {
-                            values.add(0.0);
-                        } else if (raw.startsWith("=")) {
-                            double res = evaluateFormula(raw);
-                            values.add(Double.isNaN(res) ? 0.0 : res);
-                        } else {
-                            values.add(parseDoubleOrZero(raw));
+        private Json(String text) {
+            this.text = text;
+        }
+
+        // Throws IllegalArgumentException for malformed input
+        static Object parse(String text) {
+            Json json = new Json(text);
+            Object value = json.value();
+            json.space();
+            if (json.pos != text.length()) throw json.error("unexpected text");
+            return value;
+        }
+
+        private Object value() {
+            space();
+            if (pos >= text.length()) throw error("unexpected end");
+            char c = text.charAt(pos);
+            if (c == '{') {
+                Map<String, Object> map = new LinkedHashMap<>();
+                pos++;
+                space();
+                if (peek('}')) return map;
+                do {
+                    space();
+                    if (!peek('"')) throw error("expected a key");
+                    pos--;
+                    String key = string();
+                    space();
+                    if (!peek(':')) throw error("expected ':'");
+                    map.put(key, value());
+                    space();
+                } while (peek(','));
+                if (!peek('}')) throw error("expected '}'");
+                return map;
+            }
+            if (c == '[') {
+                List<Object> list = new ArrayList<>();
+                pos++;
+                space();
+                if (peek(']')) return list;
+                do {
+                    list.add(value());
+                    space();
+                } while (peek(','));
+                if (!peek(']')) throw error("expected ']'");
+                return list;
+            }
+            if (c == '"') return string();
+            if (text.startsWith("true", pos)) {
+                pos += 4;
+                return Boolean.TRUE;
+            }
+            if (text.startsWith("false", pos)) {
+                pos += 5;
+                return Boolean.FALSE;
+            }
+            if (text.startsWith("null", pos)) {
+                pos += 4;
+                return null;
+            }
+            int start = pos;
+            while (pos < text.length() && "+-.0123456789eE".indexOf(text.charAt(pos)) >= 0) pos++;
+            try {
+                return Double.parseDouble(text.substring(start, pos));
+            } catch (NumberFormatException e) {
+                throw error("unexpected character");
+            }
+        }
+
+        private String string() {
+            StringBuilder sb = new StringBuilder();
+            pos++; // opening quote
+            while (true) {
+                if (pos >= text.length()) throw error("unterminated string");
+                char c = text.charAt(pos++);
+                if (c == '"') return sb.toString();
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (pos >= text.length()) throw error("unterminated string");
+                char e = text.charAt(pos++);
+                switch (e) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        if (pos + 4 > text.length()) throw error("bad escape");
+                        try {
+                            sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException ex) {
+                            throw error("bad escape");
                         }
-                    }
+                        pos += 4;
+                        break;
+                    default: sb.append(e);
                 }
             }
         }
-        return values;
-    }
 
-    private boolean validCell(int r, int c) {
-        return r >= 0 && r < rows && c >= 0 && c < cols && r < sheet.size() && c < sheet.get(r).size();
-    }
+        private boolean peek(char c) {
+            if (pos < text.length() && text.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
 
-    private String safeCell(int r, int c) {
-        if (!validCell(r, c)) return "";
-        return sheet.get(r).get(c);
-    }
+        private void space() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+        }
 
-    private double parseDoubleOrZero(String s) {
-        if (s == null) return 0.0;
-        try {
-            return Double.parseDouble(s);
-        } catch (NumberFormatException ex) {
-            return 0.0;
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("JSON: " + message + " at " + pos);
         }
-    }
 
-    private int[] parseCell(String ref) {
-        try {
-            ref = ref.trim().toUpperCase();
-            Matcher m = Pattern.compile("([A-Z]+)([0-9]+)").matcher(ref);
-            if (m.matches()) {
-                String colPart = m.group(1);
-                int col = 0;
-                for (char c : colPart.toCharArray()) {
-                    col = col * 26 + (c - 'A' + 1);
+        static String write(Object value) {
+            StringBuilder out = new StringBuilder();
+            write(value, out);
+            return out.toString();
+        }
+
+        private static void write(Object value, StringBuilder out) {
+            if (value == null) {
+                out.append("null");
+            } else if (value instanceof Double) {
+                double d = (Double) value;
+                if (Double.isNaN(d) || Double.isInfinite(d)) out.append("null");
+                else out.append(number(d));
+            } else if (value instanceof Boolean) {
+                out.append(value);
+            } else if (value instanceof Map) {
+                out.append('{');
+                boolean first = true;
+                for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                    if (!first) out.append(',');
+                    first = false;
+                    write(String.valueOf(e.getKey()), out);
+                    out.append(':');
+                    write(e.getValue(), out);
                 }
-                col--; // zero-index
-                int rowIdx = Integer.parseInt(m.group(2)) - 1;
-                return new int[]{rowIdx, col};
+                out.append('}');
+            } else if (value instanceof List) {
+                out.append('[');
+                boolean first = true;
+                for (Object item : (List<?>) value) {
+                    if (!first) out.append(',');
+                    first = false;
+                    write(item, out);
+                }
+                out.append(']');
+            } else {
+                String s = value.toString();
+                out.append('"');
+                for (int i = 0; i < s.length(); i++) {
+                    char c = s.charAt(i);
+                    if (c == '"' || c == '\\') out.append('\\').append(c);
+                    else if (c == '\n') out.append("\\n");
+                    else if (c == '\r') out.append("\\r");
+                    else if (c == '\t') out.append("\\t");
+                    else if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+                    else out.append(c);
+                }
+                out.append('"');
             }
-        } catch (Exception ignored) {}
-        return null;
+        }
+
+        // 5 rather than 5.0, so that numbers read back the way a cell shows them
+        static String number(double d) {
+            return d == Math.rint(d) && Math.abs(d) < 1e15 ? String.valueOf((long) d) : Double.toString(d);
+        }
     }
 
     /**
-     * Evaluate arithmetic expression (numbers, + - * / ^, parentheses).
-     * Uses shunting-yard algorithm to build RPN and then evaluate.
+     * Headless calculation server: named workbooks shared by any number of local clients over
+     * HTTP/JSON (see README). The sets of a request are applied and then its gets evaluated as one
+     * atomic step. The engine evaluates in a per-workbook context, so a workbook runs one request
+     * at a time; workbooks map onto a fixed set of lock stripes, so different ones run in parallel
+     * without a lock per workbook. Requests run on virtual threads where the JDK has them (21+),
+     * else on a fixed pool.
      */
-    private double evaluateExpression(String expr) {
-        try {
-            // Tokenize
-            List<String> tokens = tokenizeExpression(expr);
-            if (tokens.isEmpty()) return Double.NaN;
+    private static class CalcServer {
+        private static final int STRIPES = 64;
+        private static final int MAX_ROWS = 1 << 20, MAX_COLS = 1 << 14; // Excel's limits
+        private static final long MAX_REQUEST_CELLS = 1 << 20; // cells one request may set and get, in all its ranges
+        private final Map<String, Workbook> workbooks = new ConcurrentHashMap<>();
+        private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+        private final HttpServer http;
+        private final ExecutorService executor = executor();
 
-            // Convert to RPN
-            List<String> rpn = toRPN(tokens);
-            if (rpn.isEmpty()) return Double.NaN;
+        CalcServer(int port) throws IOException {
+            for (int i = 0; i < STRIPES; i++) stripes[i] = new ReentrantLock();
+            http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 4096);
+            http.createContext("/workbooks/", this::handle);
+            http.setExecutor(executor);
+        }
 
-            // Evaluate RPN
-            Deque<Double> stack = new ArrayDeque<>();
-            for (String tok : rpn) {
-                if (isNumber(tok)) {
-                    stack.push(Double.parseDouble(tok));
-                } else {
-                    if (tok.equals("+") || tok.equals("-") || tok.equals("*") || tok.equals("/") || tok.equals("^")) {
-                        if (stack.size() < 2) return Double.NaN;
-                        double b = stack.pop();
-                        double a = stack.pop();
-                        switch (tok) {
-                            case "+": stack.push(a + b); break;
-                            case "-": stack.push(a - b); break;
-                            case "*": stack.push(a * b); break;
-                            case "/":
-                                if (b == 0) return Double.NaN;
-                                stack.push(a / b); break;
-                            case "^": stack.push(Math.pow(a, b)); break;
-                        }
-                    } else {
-                        return Double.NaN; // unknown token
-                    }
-                }
-            }
-            if (stack.size() != 1) return Double.NaN;
-            return stack.pop();
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            return Double.NaN;
-        }
-    }
-
-    // Tokenizer: recognizes numbers, operators, parentheses. Handles unary minus by converting to (0 - x) pattern in tokens.
-    private List<String> tokenizeExpression(String expr) {
-        List<String> tokens = new ArrayList<>();
-        if (expr == null) return tokens;
-        String s = expr.trim();
-        if (s.isEmpty()) return tokens;
-
-        // remove spaces
-        s = s.replaceAll("\\s+", "");
-
-        int i = 0;
-        while (i < s.length()) {
-            char c = s.charAt(i);
-            if ((c >= '0' && c <= '9') || c == '.') {
-                int j = i + 1;
-                while (j < s.length() && ((s.charAt(j) >= '0' && s.charAt(j) <= '9') || s.charAt(j) == '.')) j++;
-                tokens.add(s.substring(i, j));
-                i = j;
-            } else if (c == '+' || c == '-' || c == '*' || c == '/' || c == '^') {
-                // handle unary minus: if at start or after '(' or another operator, treat as unary
-                if (c == '-') {
-                    if (tokens.isEmpty() || tokens.get(tokens.size() - 1).equals("(") ||
-                            tokens.get(tokens.size() - 1).equals("+") ||
-                            tokens.get(tokens.size() - 1).equals("-") ||
-                            tokens.get(tokens.size() - 1).equals("*") ||
-                            tokens.get(tokens.size() - 1).equals("/") ||
-                            tokens.get(tokens.size() - 1).equals("^")) {
-                        // unary minus: convert to (0 - number) pattern by pushing "0" and "-" operator
-                        tokens.add("0");
-                        tokens.add("-");
-                        i++;
-                        continue;
-                    }
-                }
-                tokens.add(String.valueOf(c));
-                i++;
-            } else if (c == '(' || c == ')') {
-                tokens.add(String.valueOf(c));
-                i++;
-            } else {
-                // unknown char: skip (or invalidate) - allow commas inside expressions to be ignored
-                i++;
+        private static ExecutorService executor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newFixedThreadPool(Math.max(16, 4 * Runtime.getRuntime().availableProcessors()));
             }
         }
-        return tokens;
-    }
 
-    private boolean isNumber(String s) {
-        if (s == null) return false;
-        try {
-            Double.parseDouble(s);
-            return true;
-        } catch (NumberFormatException ex) {
-            return false;
+        void start() {
+            http.start();
         }
-    }
 
-    // precedence and associativity
-    private int precedence(String op) {
-        switch (op) {
-            case "+": case "-": return 1;
-            case "*": case "/": return 2;
-            case "^": return 3;
+        void stop() {
+            http.stop(0);
+            executor.shutdown();
         }
-        return 0;
-    }
 
-    private boolean isRightAssociative(String op) {
-        return "^".equals(op);
-    }
+        int port() {
+            return http.getAddress().getPort();
+        }
 
-    // Convert to Reverse Polish Notation (shunting-yard)
-    private List<String> toRPN(List<String> tokens) {
-        List<String> output = new ArrayList<>();
-        Deque<String> ops = new ArrayDeque<>();
+        // Serve the workbook saved in dir (workbook.txt or sheet.csv) under a name
+        void open(String name, File dir) throws IOException {
+            Workbook wb = new Workbook();
+            wb.open(dir);
+            workbooks.put(name, wb);
+        }
 
-        for (String tok : tokens) {
-            if (isNumber(tok)) {
-                output.add(tok);
-            } else if (tok.equals("+") || tok.equals("-") || tok.equals("*") || tok.equals("/") || tok.equals("^")) {
-                while (!ops.isEmpty() && !ops.peek().equals("(")) {
-                    String top = ops.peek();
-                    if ((isRightAssociative(tok) && precedence(tok) < precedence(top)) ||
-                            (!isRightAssociative(tok) && precedence(tok) <= precedence(top))) {
-                        output.add(ops.pop());
-                    } else {
+        private ReentrantLock stripe(String name) {
+            return stripes[(name.hashCode() & Integer.MAX_VALUE) % STRIPES];
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            int status = 200;
+            Object response;
+            try {
+                String name = URLDecoder.decode(exchange.getRequestURI().getRawPath().substring("/workbooks/".length()), "UTF-8");
+                if (name.isEmpty() || name.contains("/")) throw new NoSuchElementException("no such resource");
+                switch (exchange.getRequestMethod()) {
+                    case "POST":
+                        String body;
+                        try (InputStream in = exchange.getRequestBody()) {
+                            body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                        }
+                        Object request = body.trim().isEmpty() ? new LinkedHashMap<>() : Json.parse(body);
+                        if (!(request instanceof Map)) throw new IllegalArgumentException("the request must be a JSON object");
+                        response = apply(name, (Map<?, ?>) request, true);
                         break;
-                    }
+                    case "GET":
+                        Map<String, Object> query = new LinkedHashMap<>();
+                        List<Object> gets = new ArrayList<>();
+                        String raw = exchange.getRequestURI().getRawQuery();
+                        for (String param : raw == null ? new String[0] : raw.split("&")) {
+                            int eq = param.indexOf('=');
+                            String key = URLDecoder.decode(eq < 0 ? param : param.substring(0, eq), "UTF-8");
+                            String value = eq < 0 ? "" : URLDecoder.decode(param.substring(eq + 1), "UTF-8");
+                            if (key.equals("get")) gets.addAll(Arrays.asList(value.split(",")));
+                            else query.put(key, value);
+                        }
+                        query.put("get", gets);
+                        response = apply(name, query, false);
+                        break;
+                    case "DELETE":
+                        if (workbooks.remove(name) == null) throw new NoSuchElementException("no workbook " + name);
+                        response = Collections.singletonMap("deleted", name);
+                        break;
+                    default:
+                        status = 405;
+                        response = Collections.singletonMap("error", "use GET, POST or DELETE");
                 }
-                ops.push(tok);
-            } else if (tok.equals("(")) {
-                ops.push(tok);
-            } else if (tok.equals(")")) {
-                while (!ops.isEmpty() && !ops.peek().equals("(")) {
-                    output.add(ops.pop());
+            } catch (NoSuchElementException e) {
+                status = 404;
+                response = Collections.singletonMap("error", e.getMessage());
+            } catch (IllegalArgumentException e) {
+                status = 400;
+                response = Collections.singletonMap("error", e.getMessage());
+            } catch (Exception | Error e) {
+                // anything else still gets an answer, and the pool thread lives on
+                status = 500;
+                response = Collections.singletonMap("error", String.valueOf(e));
+            }
+            byte[] bytes = Json.write(response).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+
+        // {"sheet": default sheet, "set": {ref: value or rows of values}, "get": [ref, ...]} -> {"values": {ref: value or rows}}
+        private Map<String, Object> apply(String name, Map<?, ?> request, boolean create) {
+            Workbook wb = create ? workbooks.computeIfAbsent(name, k -> {
+                Workbook fresh = new Workbook();
+                fresh.add("Sheet1", new Sheet(1, 1));
+                return fresh;
+            }) : workbooks.get(name);
+            if (wb == null) throw new NoSuchElementException("no workbook " + name);
+            Object sheetName = request.get("sheet");
+            Object set = request.get("set"), get = request.get("get");
+            if (set != null && !(set instanceof Map)) throw new IllegalArgumentException("\"set\" must be an object");
+            if (get != null && !(get instanceof List)) throw new IllegalArgumentException("\"get\" must be an array");
+            long cells = 0;
+            if (set != null) {
+                for (Object ref : ((Map<?, ?>) set).keySet()) cells += cells(String.valueOf(ref));
+            }
+            if (get != null) {
+                for (Object ref : (List<?>) get) cells += cells(String.valueOf(ref));
+            }
+            if (cells > MAX_REQUEST_CELLS) throw new IllegalArgumentException("the request covers " + cells + " cells, at most " + MAX_REQUEST_CELLS + " are allowed");
+            Map<String, Object> values = new LinkedHashMap<>();
+            ReentrantLock lock = stripe(name);
+            lock.lock();
+            try {
+                if (set != null) {
+                    for (Map.Entry<?, ?> e : ((Map<?, ?>) set).entrySet()) write(wb, (String) sheetName, (String) e.getKey(), e.getValue());
                 }
-                if (!ops.isEmpty() && ops.peek().equals("(")) {
-                    ops.pop();
-                } else {
-                    return Collections.emptyList();
+                if (get != null) {
+                    for (Object ref : (List<?>) get) values.put(String.valueOf(ref), read(wb, (String) sheetName, String.valueOf(ref)));
                 }
-            } else {
-                return Collections.emptyList();
+            } finally {
+                lock.unlock();
             }
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("values", values);
+            return response;
         }
 
-        while (!ops.isEmpty()) {
-            String t = ops.pop();
-            if (t.equals("(") || t.equals(")")) return Collections.emptyList(); // mismatched
-            output.add(t);
+        private void write(Workbook wb, String sheetName, String ref, Object value) {
+            Sheet s = sheetFor(wb, sheetName, ref, true);
+            int[] range = range(ref);
+            if (range[0] == range[2] && range[1] == range[3] && !(value instanceof List)) {
+                grow(s, range[2] + 1, range[3] + 1);
+                s.set(range[0], range[1], raw(value));
+                return;
+            }
+            if (!(value instanceof List)) throw new IllegalArgumentException(ref + ": a range takes an array of rows");
+            List<?> rowsOfValues = (List<?>) value;
+            grow(s, range[2] + 1, range[3] + 1);
+            for (int r = range[0]; r <= range[2]; r++) {
+                Object row = r - range[0] < rowsOfValues.size() ? rowsOfValues.get(r - range[0]) : null;
+                List<?> cells = row instanceof List ? (List<?>) row : Collections.singletonList(row);
+                for (int c = range[1]; c <= range[3]; c++) s.set(r, c, raw(c - range[1] < cells.size() ? cells.get(c - range[1]) : null));
+            }
+        }
+
+        private Object read(Workbook wb, String sheetName, String ref) {
+            Sheet s = sheetFor(wb, sheetName, ref, false);
+            int[] range = range(ref);
+            if (range[0] == range[2] && range[1] == range[3]) return value(wb, s, range[0], range[1]);
+            List<Object> rowsOfValues = new ArrayList<>();
+            for (int r = range[0]; r <= range[2]; r++) {
+                List<Object> row = new ArrayList<>();
+                for (int c = range[1]; c <= range[3]; c++) row.add(value(wb, s, r, c));
+                rowsOfValues.add(row);
+            }
+            return rowsOfValues;
+        }
+
+        // Numbers as numbers, text as text, a blank as null and a failed formula as "ERROR"
+        private static Object value(Workbook wb, Sheet s, int r, int c) {
+            if (r >= s.rowCount() || c >= s.colCount()) return null;
+            String raw = s.get(r, c);
+            if (raw.isEmpty()) return null;
+            if (raw.startsWith("=")) {
+                Object value = wb.evaluateValue(s, raw);
+                return value instanceof Double && ((Double) value).isNaN() ? "ERROR" : value;
+            }
+            try {
+                return Double.parseDouble(raw);
+            } catch (NumberFormatException e) {
+                return raw;
+            }
+        }
+
+        private static String raw(Object value) {
+            if (value == null) return "";
+            if (value instanceof Double) return Json.number((Double) value);
+            if (value instanceof Boolean) return (Boolean) value ? "TRUE" : "FALSE";
+            if (value instanceof String) return (String) value;
+            throw new IllegalArgumentException("a cell value must be a number, text, boolean or null");
+        }
+
+        // The sheet a reference names (Sheet2!A1), else the request's sheet, else the first one
+        private static Sheet sheetFor(Workbook wb, String sheetName, String ref, boolean create) {
+            Matcher m = Workbook.SHEET_PREFIX.matcher(ref.trim());
+            String name = m.matches() ? m.group(1) : sheetName;
+            if (name == null) return wb.sheet(0);
+            if (name.startsWith("'") && name.endsWith("'") && name.length() > 1) name = name.substring(1, name.length() - 1);
+            int i = wb.indexOf(name);
+            if (i >= 0) return wb.sheet(i);
+            if (!create) throw new NoSuchElementException("no sheet " + name);
+            if (!Workbook.validName(name)) throw new IllegalArgumentException("invalid sheet name " + name);
+            Sheet s = new Sheet(1, 1);
+            wb.add(name, s);
+            return s;
+        }
+
+        // {top, left, bottom, right} of A1 or A1:C3 (either corner first)
+        private static int[] range(String ref) {
+            String local = Workbook.localRef(ref).replace("$", "");
+            String[] corners = local.split(":");
+            int[] a = parseCell(corners[0]), b = corners.length == 2 ? parseCell(corners[1]) : a;
+            if (corners.length > 2 || a == null || b == null) throw new IllegalArgumentException("bad reference " + ref);
+            int[] range = {Math.min(a[0], b[0]), Math.min(a[1], b[1]), Math.max(a[0], b[0]), Math.max(a[1], b[1])};
+            if (range[0] < 0 || range[1] < 0 || range[2] >= MAX_ROWS || range[3] >= MAX_COLS) throw new IllegalArgumentException("reference out of bounds " + ref);
+            return range;
+        }
+
+        private static long cells(String ref) {
+            int[] range = range(ref);
+            return (long) (range[2] - range[0] + 1) * (range[3] - range[1] + 1);
         }
 
-        return output;
+        private static void grow(Sheet s, int rows, int cols) {
+            if (s.colCount() < cols) s.insertColumns(s.colCount(), cols - s.colCount());
+            if (s.rowCount() < rows) s.insertRows(s.rowCount(), rows - s.rowCount());
+        }
     }
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--server")) {
+            serve(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--batch")) {
+            batch(args);
+            return;
+        }
         SwingUtilities.invokeLater(() -> {
             MiniExcel app = new MiniExcel();
+            if (app.recovered) return; // the last session is back, keep it as it was
             app.model.setRawValueAt("22",0,0);
             app.model.setRawValueAt("12",1,0);
             app.model.setRawValueAt("=SUM(A1:A2)",2,0);
-            app.model.fireTableDataChanged();
         });
     }
+
+    // --server [port] [name=dir ...]: no window, just the calculation server on localhost
+    private static void serve(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        try {
+            CalcServer server = new CalcServer(args.length > 1 ? Integer.parseInt(args[1]) : 8080);
+            for (int i = 2; i < args.length; i++) {
+                int eq = args[i].indexOf('=');
+                File dir = new File(eq < 0 ? args[i] : args[i].substring(eq + 1));
+                server.open(eq < 0 ? dir.getName() : args[i].substring(0, eq), dir);
+            }
+            server.start();
+            System.out.println("MiniExcel calculation server on http://localhost:" + server.port() + "/workbooks/");
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Cannot start the server: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // --batch in.csv out.csv [--header] [--row n] [--threads n] [--chunk n] =formula ...: no window, stream in through the template
+    private static void batch(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        try {
+            List<String> formulas = new ArrayList<>();
+            boolean header = false;
+            int row = -1, threads = 0, chunk = 0;
+            for (int i = 3; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--header": header = true; break;
+                    case "--row": row = Integer.parseInt(args[++i]); break;
+                    case "--threads": threads = Integer.parseInt(args[++i]); break;
+                    case "--chunk": chunk = Integer.parseInt(args[++i]); break;
+                    default: formulas.add(args[i]);
+                }
+            }
+            if (args.length < 3 || formulas.isEmpty() || row == 0) {
+                System.err.println("usage: java MiniExcel --batch in.csv out.csv [--header] [--row n] [--threads n] [--chunk n] =formula ...");
+                System.exit(2);
+            }
+            CsvBatch job = new CsvBatch(formulas.toArray(new String[0]), header, (row > 0 ? row : header ? 2 : 1) - 1);
+            if (threads > 0) job.threads = threads;
+            if (chunk > 0) job.chunk = chunk;
+            long started = System.nanoTime();
+            long records = job.run(new File(args[1]), new File(args[2]));
+            System.out.println(records + " records in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+        } catch (IOException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("Batch failed: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 }
\ No newline at end of file